@@ -1,39 +1,81 @@
 package com.github.xiangyuecn.areacity.query;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
+import org.locationtech.jts.algorithm.CGAlgorithmsDD;
+import org.locationtech.jts.algorithm.Orientation;
+import org.locationtech.jts.algorithm.PointLocation;
+import org.locationtech.jts.algorithm.locate.PointOnGeometryLocator;
+import org.locationtech.jts.algorithm.locate.SimplePointInAreaLocator;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Location;
 import org.locationtech.jts.geom.MultiPolygon;
 import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.geom.Puntal;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.geom.prep.PreparedPolygon;
+import org.locationtech.jts.index.ItemVisitor;
+import org.locationtech.jts.index.hprtree.HPRtree;
+import org.locationtech.jts.index.strtree.AbstractNode;
+import org.locationtech.jts.index.strtree.Boundable;
+import org.locationtech.jts.index.strtree.ItemBoundable;
 import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.io.ByteArrayInStream;
+import org.locationtech.jts.io.InStream;
 import org.locationtech.jts.io.WKBReader;
 import org.locationtech.jts.io.WKBWriter;
 import org.locationtech.jts.io.WKTWriter;
@@ -49,7 +91,7 @@ import org.locationtech.jts.operation.distance.DistanceOp;
  * 部分原理：
  *      1. 初始化时，会将边界图形按网格动态的切分成小的图形，大幅减少查询时的几何计算量从而性能优异；
  *      2. 内存中只会保存小的图形的外接矩形（Envelope），小的图形本身会序列化成WKB数据（根据Init方式存入文件或内存），因此内存占用很低；
- *      3. 内存中的外接矩形（Envelope）数据会使用jts的STRTree索引，几何计算查询时，先从EnvelopeSTRTree中初步筛选出符合条件的边界，RTree性能极佳，大幅过滤掉不相关的边界；
+ *      3. 内存中的外接矩形（Envelope）数据会使用jts的STRTree索引（可通过SetEnvelopeIndexType切换成紧凑希尔伯特R树等），几何计算查询时，先从EnvelopeSTRTree中初步筛选出符合条件的边界，RTree性能极佳，大幅过滤掉不相关的边界；
  *      4. 对EnvelopeSTRTree初步筛选出来的边界，读取出WKB数据反序列化成小的图形，然后进行精确的几何计算（因为是小图，所以读取和计算性能极高）。
  * 
  * jts库地址：https://github.com/locationtech/jts
@@ -85,84 +127,707 @@ public class AreaCityQuery {
 	 * @param res 可以为null，如果提供结果对象，可通过此对象的Set_XXX属性控制某些查询行为，比如设置Set_ReturnWKTKey可以额外返回边界的WKT文本数据；并且本次查询的结果和统计数据将累加到这个结果内（性能测试用）。注意：此结果对象非线程安全
 	 */
 	public QueryResult QueryPoint(double lng, double lat, Func<String,Boolean> where, QueryResult res) throws Exception{
-		CheckInitIsOK();
-		return QueryGeometry(Factory.createPoint(new Coordinate(lng, lat)), where, res);
+		__Dataset data=AcquireData();
+		try {
+			return __Query(data, null, new Coordinate(lng, lat), where, res, null, null);
+		} finally {
+			data.Release();
+		}
 	}
 	/**
 	 * 先几何计算查询出包含此坐标点的所有边界图形的属性数据，此时和QueryPoint方法功能完全一致。
 	 * <br><br>当没有边界图形包含此坐标点时，会查询出和此坐标点距离最近的边界图形的属性数据，同一级别的边界图形只会返回距离最近的一条属性数据，比如：范围内匹配到多个市，只返回最近的一个市；级别的划分依据为属性中的deep值，deep值为空的为同的一级
-	 * ；结果属性中会额外添加PointDistance（图形与坐标的距离，单位米）、PointDistanceID（图形唯一标识符）两个值；由于多进行了一次范围查询，性能会比QueryPoint方法低些。
+	 * ；结果属性中会额外添加PointDistance（图形与坐标的距离，单位米）、PointDistanceID（图形唯一标识符）两个值，结果按deep从小到大排列；由于多进行了一次最近距离查找，性能会比QueryPoint方法低些。
+	 * <br>最近距离查找时外接矩形索引按距离从近到远遍历，每一级找到最近的数据后这一级就不再继续查找，无需计算范围内的所有数据。
 	 * <br><br>本方法主要用途是解决：当坐标位于界线外侧（如海岸线、境界线）时QueryPoint方法将不会有边界图形能够匹配包含此坐标（就算距离只相差1cm），本方法将能够匹配到附近不远的边界图形数据。
 	 * 
 	 * <br><br>更多参数文档请参考QueryPoint方法，本方法线程安全。
 	 * 
 	 * @see #QueryPoint(double, double, Func, QueryResult)
-	 * @param toleranceMetre 距离范围容差值，单位米，比如取值2500，相当于一个以此坐标为中心点、半径为2.5km的圆形范围；当没有任何边界图形包含此坐标点时，会查询出与此坐标点的距离不超过此值 且 距离最近的边界图形属性数据；取值为0时不进行范围查找；取值为-1时不限制距离大小，会遍历所有数据导致性能极低
+	 * @param toleranceMetre 距离范围容差值，单位米，比如取值2500，相当于一个以此坐标为中心点、半径为2.5km的圆形范围；当没有任何边界图形包含此坐标点时，会查询出与此坐标点的距离不超过此值 且 距离最近的边界图形属性数据；取值为0时不进行范围查找；取值为-1时不限制距离大小，每一级都会返回最近的一条数据
 	 */
 	public QueryResult QueryPointWithTolerance(double lng, double lat, Func<String,Boolean> where, QueryResult res, int toleranceMetre) throws Exception {
-		CheckInitIsOK();
 		if(res!=null && res.Result==null) throw new Exception("不支持无Result调用");
+		if(res!=null && res.Set_ResultIds) throw new Exception("不支持Set_ResultIds调用");
 		
-		int resLen0=res==null?0:res.Result.size();
-		Point point=Factory.createPoint(new Coordinate(lng, lat));
-		QueryResult res1=QueryGeometry(point, where, res);
-		if(res1.Result.size()>resLen0 || toleranceMetre==0) {
-			return res1; //查找到了的就直接返回
+		__Dataset data=AcquireData();
+		try {
+			int resLen0=res==null?0:res.Result.size();
+			QueryResult res1=__Query(data, null, new Coordinate(lng, lat), where, res, null, null);
+			if(res1.Result.size()>resLen0 || toleranceMetre==0) {
+				return res1; //查找到了的就直接返回
+			}
+			
+			return __QueryNearest(data, lng, lat, where, res1, toleranceMetre);
+		} finally {
+			data.Release();
 		}
+	}
+	/**
+	 * 查找距离坐标点最近的边界图形，每一级只取最近的一个：对外接矩形索引按距离下限从近到远遍历（best-first），距离下限为坐标点到外接矩形的最短球面距离；
+	 * 某一级已找到的最近距离不超过当前遍历到的距离下限时，这一级就确定了，后续这一级的数据都会跳过；所有级别都确定了、或距离下限超过容差时就结束遍历，无需查询所有数据
+	 */
+	private QueryResult __QueryNearest(__Dataset data, double lng, double lat, Func<String,Boolean> where, QueryResult res, int toleranceMetre) throws Exception {
+		long t_Start=System.nanoTime();
+		boolean returnWkt=res.Set_ReturnWKTKey!=null && res.Set_ReturnWKTKey.length()>0;
+		__PartitionIndex index=data.EnvelopeIndex;
+		__PropIndex propIndex=data.PropIndex;
+		__GeoStore polygons=data.PolygonStore;
+		String[] props=data.PropStrings;
+		double maxDist=toleranceMetre>0?toleranceMetre:Double.MAX_VALUE;
 		
-		Geometry geom;
-		if(toleranceMetre>0) { //以点为中心，容差为半径，构造出一个圆，扩大到容差范围进行查找
-			geom=CreateSimpleCircle(lng, lat, toleranceMetre, 24);
-		} else { //不限制范围
-			geom=CreateRect(-180, -90, 180, 90);
+		//要遍历的分区，分区内只有一级数据时，这一级确定后整个分区都跳过
+		int levelCount=propIndex.DeepLevelCount;
+		boolean[] queryParts=new boolean[index.Values.length];
+		for(int i=0;i<queryParts.length;i++) {
+			queryParts[i]=res.Set_Partitions==null;
+			for(int n=0;res.Set_Partitions!=null && n<res.Set_Partitions.length;n++) {
+				if(index.Values[i].equals(res.Set_Partitions[n])) queryParts[i]=true;
+			}
 		}
-		HashMap<String, Double> propDists=new HashMap<>();
-		HashMap<String, Object[]> deepDists=new HashMap<>();
-		DecimalFormat df=new DecimalFormat("0.00");
-		res1.QueryCount--;
-		res1=QueryGeometryProcess(geom, where, res1, new Func<Object[], Boolean>(){
-			@Override
-			public Boolean Exec(Object[] args) throws Exception {
-				boolean add=false;
-				String prop=(String)args[0];
-				Geometry geom=(Geometry)args[1];
-				String lineNo=(String)args[2];
+		if(res.Set_Partitions!=null && index.Key.length()==0) {
+			throw new Exception("Set_Partitions无效，init前未设置SetIndexPartitionKey，索引未分区");
+		}
+		//能找到数据的级别，全部确定了就结束遍历；不限制距离时where先筛选一遍所有属性，避免遍历完所有数据也找不到的级别
+		boolean[] levelAlive=new boolean[levelCount];
+		byte[] whereOK=toleranceMetre<0 && where!=null?new byte[props.length]:null;
+		int aliveCount=0;
+		for(int i=0;i<props.length;i++) {
+			int level=propIndex.DeepLevel[i];
+			if(levelAlive[level] || !queryParts[index.PropParts[i]]) continue;
+			if(propIndex.Removed!=null && propIndex.Removed[i]) continue;
+			if(whereOK!=null) {
+				whereOK[i]=(byte)(where.Exec(props[i])?1:2);
+				if(whereOK[i]!=1) continue;
+			}
+			levelAlive[level]=true;
+			aliveCount++;
+		}
+		double[] levelDist=new double[levelCount];
+		int[] levelIdx=new int[levelCount];
+		Arrays.fill(levelDist, Double.MAX_VALUE);
+		Arrays.fill(levelIdx, -1);
+				
+		__QueryContext ctx=QueryContexts.get();
+		if(ctx.InUse) {
+			ctx=new __QueryContext();
+		}
+		ctx.InUse=true;
+		try {
+			__NearestQueue queue=ctx.NearestQueue;
+			queue.Clear();
+			for(int i=0;i<index.Trees.length;i++) {
+				if(queryParts[i]) {
+					index.Trees[i].NearestRoot(i, queue);
+					if(index.DeltaTrees!=null && index.DeltaTrees[i]!=null) {
+						index.DeltaTrees[i].NearestRoot(i, queue);
+					}
+				}
+			}
+			Point point=Factory.createPoint(new Coordinate(lng, lat));
+			double[] envs=polygons.Envs;
+			int doneCount=0;
+			while(queue.Count>0 && doneCount<aliveCount) {
+				double minDist=queue.PeekKey();
+				if(minDist>maxDist) break;
+				//已找到的距离不超过当前距离下限的级别，不会再有更近的数据了
+				for(int i=0;i<levelCount;i++) {
+					if(levelAlive[i] && levelDist[i]<=minDist) {
+						levelAlive[i]=false;
+						doneCount++;
+					}
+				}
+				if(doneCount>=aliveCount) break;
+				
+				int part=queue.PeekPart(), idx=queue.PeekIdx();
+				__SpatialIndex tree=queue.PeekTree();
+				Object node=queue.PeekNode();
+				queue.Poll();
+				int partLevel=index.PartLevels[part];
+				if(partLevel!=-1 && !levelAlive[partLevel]) {
+					continue;
+				}
+				if(tree!=null) {//索引节点，子节点按距离下限加入队列
+					tree.NearestExpand(node, idx, lng, lat, maxDist, part, envs, queue);
+					continue;
+				}
+				
+				//Polygon数据，计算精确距离
+				if((polygons.Flags[idx] & GEO_Flag_Deleted)!=0) continue;
+				int propId=polygons.PropId[idx];
+				int level=propIndex.DeepLevel[propId];
+				if(!levelAlive[level]) continue;
+				if(where!=null) {
+					if(whereOK!=null) {
+						if(whereOK[propId]==2) continue;
+					} else if(!where.Exec(props[propId])) {
+						continue;
+					}
+				}
+				res.EnvelopeHitCount++;
+				int n=idx*4;
+				if((polygons.Flags[idx] & GEO_Flag_FullCell)!=0) {
+					//内部完整格子，最近点在外接矩形上，无需读取图形
+					double x=Math.max(envs[n], Math.min(envs[n+1], lng)), y=Math.max(envs[n+2], Math.min(envs[n+3], lat));
+					double dist=Distance(x, y, lng, lat);
+					if(dist<levelDist[level]) {
+						levelDist[level]=dist;
+						levelIdx[level]=idx;
+					}
+					continue;
+				}
+				Object subObj=__QueryReadGeometry(data, ctx, res, idx);
+				Geometry subGeom=subObj instanceof __PreparedPolygon?((__PreparedPolygon)subObj).Geom:(Geometry)subObj;
 				
-				Coordinate[] ps=DistanceOp.nearestPoints(geom, point);
+				long t_Exact=System.nanoTime();
+				Coordinate[] ps=DistanceOp.nearestPoints(subGeom, point);
 				double dist=Distance(ps[0].x, ps[0].y, ps[1].x, ps[1].y);
-				Double exists=propDists.get(lineNo);
-				if(exists==null || exists>dist) {//去重，相同一条数据只取距离最近的
-					Matcher m=Exp_OkGeoCsv_Deep.matcher(prop);
-					String deep=m.find()?m.group(1):"";
-					Object[] deepExists=deepDists.get(deep);
-					if(deepExists==null || (double)deepExists[0]>dist) {//去重，同一级别只取距离最近的
-						add=true;
-						propDists.put(lineNo, dist);
-						deepDists.put(deep, new Object[] { dist, lineNo });
-						prop=prop.substring(0, prop.length()-1)+", \"PointDistanceID\": "+lineNo+", \"PointDistance\": "+df.format(dist)+"}";
-						args[0]=prop;
+				res.DurationN_ExactHitQuery+=System.nanoTime()-t_Exact;
+				if(dist<levelDist[level]) {//同一级别只取距离最近的，同一条数据拆分出来的多个Polygon也是取最近的
+					levelDist[level]=dist;
+					levelIdx[level]=idx;
+				}
+			}
+			
+			//按deep从小到大添加到结果中
+			DecimalFormat df=new DecimalFormat("0.00");
+			for(int i=0;i<levelCount;i++) {
+				int idx=levelIdx[i];
+				if(idx==-1 || levelDist[i]>maxDist) continue;
+				String prop=props[polygons.PropId[idx]];
+				prop=prop.substring(0, prop.length()-1)+", \"PointDistanceID\": "+polygons.LineNo[idx]+", \"PointDistance\": "+df.format(levelDist[i])+"}";
+				if(returnWkt) {
+					prop=__QueryReturnWkt(data, ctx, res, prop, polygons.FullPos[idx]);
+				}
+				res.Result.add(prop);
+				res.ExactHitCount++;
+			}
+		} finally {
+			ctx.InUse=false;
+		}
+		res.DurationN_EnvelopeHitQuery+=System.nanoTime()-t_Start;
+		res.EndTimeN=System.nanoTime();
+		return res;
+	}
+	/** 坐标点到外接矩形的最短球面距离（单位米），用作矩形内所有坐标到此点的距离下限 **/
+	static private double DistanceMinToEnvelope(double lng, double lat, double minX, double maxX, double minY, double maxY) {
+		//经度差：在矩形经度范围内为0，否则取到最近一边的经度差（考虑跨180度经线）
+		double dLng=0;
+		if(lng<minX) {
+			dLng=Math.min(minX-lng, lng+360-maxX);
+		} else if(lng>maxX) {
+			dLng=Math.min(lng-maxX, minX+360-lng);
+		}
+		if(dLng==0) {
+			return Distance(lng, lat, lng, Math.max(minY, Math.min(maxY, lat)));
+		}
+		//经度差固定时距离随经度差增大而增大，最近点在最近的那条经线上；经线上离此点最近的纬度为垂足：tan(垂足纬度)=tan(lat)/cos(经度差)
+		if(dLng<90) {
+			double d=Math.PI/180;
+			double footLat=Math.atan(Math.tan(lat*d)/Math.cos(dLng*d))/d;
+			return Distance(0, lat, dLng, Math.max(minY, Math.min(maxY, footLat)));
+		}
+		//经度差超过90度时，经线上越靠近极点越近
+		return Math.min(Distance(0, lat, dLng, minY), Distance(0, lat, dLng, maxY));
+	}
+	/**
+	 * 最近距离查找时用的优先队列（小顶堆），按距离下限排序；元素为索引树（tree）中的一个节点（node对象、或节点位置idx，由索引树自己决定），或tree为null时为Polygon数据编号（idx），part为所在的索引分区
+	 */
+	static private class __NearestQueue {
+		private double[] Keys=new double[64];
+		private __SpatialIndex[] Trees=new __SpatialIndex[64];
+		private Object[] Nodes=new Object[64];
+		private int[] Idxs=new int[64], Parts=new int[64];
+		public int Count;
+		
+		public void Clear() {
+			Arrays.fill(Trees, 0, Count, null);
+			Arrays.fill(Nodes, 0, Count, null);
+			Count=0;
+		}
+		public void Add(double key, __SpatialIndex tree, Object node, int idx, int part) {
+			if(Count==Keys.length) {
+				int size=Count*2;
+				Keys=Arrays.copyOf(Keys, size); Trees=Arrays.copyOf(Trees, size); Nodes=Arrays.copyOf(Nodes, size);
+				Idxs=Arrays.copyOf(Idxs, size); Parts=Arrays.copyOf(Parts, size);
+			}
+			int i=Count++;
+			while(i>0) {//上浮
+				int p=(i-1)>>1;
+				if(Keys[p]<=key) break;
+				set(i, p);
+				i=p;
+			}
+			Keys[i]=key; Trees[i]=tree; Nodes[i]=node; Idxs[i]=idx; Parts[i]=part;
+		}
+		public double PeekKey() { return Keys[0]; }
+		public __SpatialIndex PeekTree() { return Trees[0]; }
+		public Object PeekNode() { return Nodes[0]; }
+		public int PeekIdx() { return Idxs[0]; }
+		public int PeekPart() { return Parts[0]; }
+		/** 移除堆顶元素 **/
+		public void Poll() {
+			int last=--Count;
+			double key=Keys[last];
+			int i=0;
+			while(true) {//最后一个元素放到堆顶后下沉
+				int c=i*2+1;
+				if(c>=last) break;
+				if(c+1<last && Keys[c+1]<Keys[c]) c++;
+				if(key<=Keys[c]) break;
+				set(i, c);
+				i=c;
+			}
+			set(i, last);
+			Trees[last]=null;
+			Nodes[last]=null;
+		}
+		private void set(int to, int from) {
+			Keys[to]=Keys[from]; Trees[to]=Trees[from]; Nodes[to]=Nodes[from]; Idxs[to]=Idxs[from]; Parts[to]=Parts[from];
+		}
+	}
+	
+	
+	/**
+	 * 按上下级关系查询包含此坐标点的所有边界图形的属性数据，结果和QueryPoint方法基本一致（省市区等数据是严格逐级嵌套的）。
+	 * <br>先从最深的一级（比如区县）开始查询，查询到了就不再对上级进行几何计算，直接通过init时生成的上下级关系（pid）推导出所有上级（市、省）；每次查询只需对一级数据进行精确计算，性能比QueryPoint更高。
+	 * <br>如果查询到的数据上下级关系不完整（pid对应的上级不存在），剩下的上级会按QueryPoint的方式进行几何计算查询。
+	 * <br>需要init时外接矩形索引是按deep分区的（SetIndexPartitionKey默认值），否则、或者res设置了Set_Partitions时，和QueryPoint方法完全一致。
+	 * <br>注意：边界数据不严格嵌套时（比如简化过的边界），在界线附近的坐标点推导出的上级可能和几何计算的结果不同；where函数也会用于筛选推导出来的上级。
+	 * <br>更多参数文档请参考QueryPoint方法，本方法线程安全。
+	 *
+	 * @see #QueryPoint(double, double, Func, QueryResult)
+	 */
+	public QueryResult QueryPointHierarchy(double lng, double lat, Func<String,Boolean> where, QueryResult res) throws Exception{
+		__Dataset data=AcquireData();
+		try {
+			return __QueryPointHierarchy(data, lng, lat, where, res);
+		} finally {
+			data.Release();
+		}
+	}
+	private QueryResult __QueryPointHierarchy(__Dataset data, double lng, double lat, Func<String,Boolean> where, QueryResult res) throws Exception{
+		if(res==null) res=new QueryResult();
+		__PartitionIndex index=data.EnvelopeIndex;
+		__PropIndex propIndex=data.PropIndex;
+		String[][] levels=index.DeepLevels;
+		Coordinate point=new Coordinate(lng, lat);
+		if(levels==null || res.Set_Partitions!=null) {
+			return __Query(data, null, point, where, res, null, null);
+		}
+		long t_Start=System.nanoTime();
+		if(res.StartTimeN==0) res.StartTimeN=t_Start;
+		
+		boolean returnWkt=!res.Set_ResultIds && res.Set_ReturnWKTKey!=null && res.Set_ReturnWKTKey.length()>0;
+		if(returnWkt && data.WkbsFilePath.length()==0) {
+			throw new Exception("Set_ReturnWKT错误，初始化时必须保存了wkbs结构化数据文件，或者用的wkbs文件初始化的，否则不允许查询WKT数据");
+		}
+		
+		//从最深的一级开始查询，结果先以属性编号存到临时结果中
+		QueryResult tmp=new QueryResult();
+		tmp.Set_ResultIds=true;
+		tmp.Set_EnvelopeHitResult=res.Set_EnvelopeHitResult;
+		int level=levels.length-1;
+		for(;level>=0;level--) {
+			tmp.Set_Partitions=levels[level];
+			__Query(data, null, point, where, tmp, null, null);
+			if(tmp.ResultIdsCount>0) break;
+		}
+		
+		//推导出所有上级，上下级关系不完整时剩下的上级进行几何计算
+		int count=tmp.ResultIdsCount;
+		boolean chainOK=true;
+		for(int i=0;i<count;i++) {
+			chainOK&=propIndex.ChainOK[tmp.ResultIds[i]];
+		}
+		if(!chainOK) {
+			if(level>0) {
+				tmp.Set_Partitions=new String[level];
+				for(int i=0;i<level;i++) tmp.Set_Partitions[i]=levels[i][0];
+				__Query(data, null, point, where, tmp, null, null);
+			}
+		} else {
+			for(int i=0;i<count;i++) {
+				for(int p=propIndex.Parent[tmp.ResultIds[i]];p!=-1;p=propIndex.Parent[p]) {
+					boolean exists=false;
+					for(int n=count;n<tmp.ResultIdsCount;n++) {
+						if(tmp.ResultIds[n]==p) {
+							exists=true;
+							break;
+						}
 					}
+					if(exists) break;//这个上级已经推导过了，更上级的也是
+					if(where!=null && !where.Exec(data.PropStrings[p])) continue;
+					tmp.addResultId(p);
+					tmp.ExactHitCount++;
+					tmp.HierarchyDerivedCount++;
 				}
-				return add;
 			}
-		});
-		//清理掉结果中多余的数据，每一级取一个，同一数据取最后一个
-		HashSet<String> ids=new HashSet<>(), exists=new HashSet<>();
-		for(Object[] o : deepDists.values()) ids.add((String)o[1]);
-		for(int i=res1.Result.size()-1;i>=resLen0;i--) {
-			String prop=res1.Result.get(i);
-			Matcher m=Exp_PointDistanceID.matcher(prop); m.find();
-			String lineNo=m.group(1);
-			if(!ids.contains(lineNo) || exists.contains(lineNo)) {
-				res1.Result.remove(i);
-			}else {
-				exists.add(lineNo);
+		}
+		
+		//合并到结果中
+		tmp.QueryCount=1;
+		res.Add(tmp);
+		for(int i=0;i<tmp.ResultIdsCount;i++) {
+			int propId=tmp.ResultIds[i];
+			if(res.Set_ResultIds) {
+				res.addResultId(propId);
+			} else if(res.Result!=null) {
+				String prop=data.PropStrings[propId];
+				if(returnWkt) {
+					int fullPos=data.FeatureStore.FullPos[propIndex.FeatureIdxs[propIndex.FeatureStarts[propId]]];
+					prop=__QueryReturnWkt(data, new __QueryContext(), res, prop, fullPos);
+				}
+				res.Result.add(prop);
+			}
+		}
+		res.EndTimeN=System.nanoTime();
+		return res;
+	}
+	
+	
+	/**
+	 * 批量查询多个坐标点，功能和循环调用QueryPoint方法一致，结果按输入坐标的顺序存放。
+	 * <br>内部会先将坐标点按所在的希尔伯特曲线（Hilbert curve）格子排序后再逐个查询，相邻的坐标点在空间上也相邻，每个格子只查询一次索引，能重复利用已解码图形缓存、wkbs文件页缓存；整批查询复用同一个查询上下文，结果只记录属性编号最后再按输入顺序直接写入，批量查询大量坐标点时吞吐量比逐个调用QueryPoint更高。
+	 * <br>
+	 * <br>查询完成后：res.Result中按输入顺序依次存放每个坐标点的结果，res.PointsResultIndex记录了每个坐标点的结果在Result中的位置，可通过res.GetPointResult(i)取第i个坐标点的结果；如果res.Result为null将只统计数据。
+	 * <br>更多参数文档请参考QueryPoint方法，本方法线程安全。
+	 *
+	 * @see #QueryPoint(double, double, Func, QueryResult)
+	 * @param lngs 经度坐标值列表
+	 * @param lats 纬度坐标值列表，长度必须和lngs相同
+	 */
+	public QueryResult QueryPoints(double[] lngs, double[] lats, Func<String,Boolean> where, QueryResult res) throws Exception{
+		__Dataset data=AcquireData();
+		try {
+			return __QueryPoints(data, lngs, lats, where, res, 1);
+		} finally {
+			data.Release();
+		}
+	}
+	/**
+	 * 多线程并行批量查询多个坐标点，功能和QueryPoints方法一致，结果按输入坐标的顺序存放，适合一次性查询海量的坐标点。
+	 * <br>坐标点按希尔伯特曲线排序后，切分成多段在空间上连续的小块，放到ForkJoinPool中并行查询；每个小块使用独立的QueryResult，线程间没有共享的可变数据，全部完成后用QueryResult.Add合并统计数据。
+	 * <br>注意：where函数会被多个线程同时调用，必须是线程安全的。
+	 * <br>更多参数文档请参考QueryPoints方法，本方法线程安全。
+	 *
+	 * @see #QueryPoints(double[], double[], Func, QueryResult)
+	 * @param threadCount 并行线程数，取值0时使用ForkJoinPool.commonPool()公共线程池；取值1时和QueryPoints方法一样在当前线程中查询
+	 */
+	public QueryResult QueryPointsParallel(double[] lngs, double[] lats, Func<String,Boolean> where, QueryResult res, int threadCount) throws Exception{
+		__Dataset data=AcquireData();
+		try {
+			return __QueryPoints(data, lngs, lats, where, res, threadCount);
+		} finally {
+			data.Release();
+		}
+	}
+	private QueryResult __QueryPoints(__Dataset data, double[] lngs, double[] lats, Func<String,Boolean> where, QueryResult res, int threadCount) throws Exception{
+		if(lngs.length!=lats.length) throw new Exception("QueryPoints的lngs和lats长度不一致");
+		if(res==null) res=new QueryResult();
+		if(res.StartTimeN==0) res.StartTimeN=System.nanoTime();
+		int len=lngs.length;
+		
+		//坐标点所在的希尔伯特曲线格子大小，按平均每格16个坐标点左右来取；曲线上位置相邻的格子在空间上也相邻，每个格子只查询一次索引，格子内的坐标点共用初步筛选结果
+		int level=1;
+		while(level<15 && (1L<<(level*2))*16<len) level++;
+		int shift=(15-level)*2;
+		double minX=Double.MAX_VALUE, minY=Double.MAX_VALUE, maxX=-Double.MAX_VALUE, maxY=-Double.MAX_VALUE;
+		for(int i=0;i<len;i++) {
+			minX=Math.min(minX, lngs[i]); maxX=Math.max(maxX, lngs[i]);
+			minY=Math.min(minY, lats[i]); maxY=Math.max(maxY, lats[i]);
+		}
+		double scaleX=maxX>minX?32767/(maxX-minX):0, scaleY=maxY>minY?32767/(maxY-minY):0;
+		
+		//按格子在曲线上的位置计数排序，只需要格子有序，格子内的坐标点保持输入顺序，无需对全部坐标点做比较排序
+		int[] cells=new int[len], cellStarts=new int[(1<<(level*2))+1];
+		for(int i=0;i<len;i++) {
+			int x=(int)((lngs[i]-minX)*scaleX), y=(int)((lats[i]-minY)*scaleY);//NaN会转成0
+			int cell=HilbertIndex(x, y)>>>shift;
+			cells[i]=cell;
+			cellStarts[cell+1]++;
+		}
+		for(int i=1;i<cellStarts.length;i++) {
+			cellStarts[i]+=cellStarts[i-1];
+		}
+		int[] order=new int[len], fills=Arrays.copyOf(cellStarts, cellStarts.length-1);
+		for(int i=0;i<len;i++) {
+			order[fills[cells[i]]++]=i;
+		}
+		
+		//切分成多个小块，块的边界对齐到格子边界；小块数量为线程数的几倍，用于均衡负载；坐标点太少时不值得多线程
+		ForkJoinPool pool=null;
+		if(threadCount!=1 && len>=1024) {
+			pool=threadCount<=0?ForkJoinPool.commonPool():new ForkJoinPool(threadCount);
+		}
+		ArrayList<Integer> bounds=new ArrayList<>();
+		bounds.add(0);
+		if(pool!=null) {
+			int step=Math.max(1, len/(pool.getParallelism()*4));
+			for(int n=step;n<len;n+=step) {
+				while(n<len && cells[order[n]]==cells[order[n-1]]) n++;
+				if(n<len) bounds.add(n);
+			}
+		}
+		bounds.add(len);
+		
+		//每个小块的结果先放到自己的临时列表里，最后再按输入顺序放回去；不需要返回wkt时结果只存属性编号，合并时再直接取属性字符串
+		boolean useIds=res.Set_ResultIds, hasResult=useIds || res.Result!=null;
+		boolean returnWkt=res.Set_ReturnWKTKey!=null && res.Set_ReturnWKTKey.length()>0;
+		boolean partIds=useIds || !returnWkt;
+		int[] starts=new int[len], ends=new int[len];
+		QueryResult[] parts=new QueryResult[bounds.size()-1];
+		ArrayList<Callable<QueryResult>> tasks=new ArrayList<>();
+		for(int k=0;k<parts.length;k++) {
+			QueryResult part=new QueryResult();
+			part.Result=hasResult && !partIds?new ArrayList<>():null;
+			part.Set_ResultIds=hasResult && partIds;
+			part.Set_Partitions=res.Set_Partitions;
+			part.Set_ReturnWKTKey=res.Set_ReturnWKTKey;
+			part.Set_EnvelopeHitResult=res.Set_EnvelopeHitResult==null?null:new ArrayList<>();
+			parts[k]=part;
+			int from=bounds.get(k), to=bounds.get(k+1);
+			tasks.add(new Callable<QueryResult>() {
+				@Override
+				public QueryResult call() throws Exception {
+					__QueryPointsChunk(data, lngs, lats, order, cells, from, to, where, part, starts, ends);
+					return part;
+				}
+			});
+		}
+		if(pool==null) {
+			for(Callable<QueryResult> task : tasks) task.call();
+		} else {
+			try {
+				for(Future<QueryResult> future : pool.invokeAll(tasks)) {
+					try {
+						future.get();
+					} catch(ExecutionException e) {
+						Throwable err=e.getCause();
+						throw err instanceof Exception?(Exception)err:e;
+					}
+				}
+			} finally {
+				if(pool!=ForkJoinPool.commonPool()) pool.shutdown();
+			}
+		}
+		
+		//合并统计数据
+		for(QueryResult part : parts) {
+			if(part.QueryCount==0) continue;
+			res.Add(part);
+			if(res.Set_EnvelopeHitResult!=null) {
+				res.Set_EnvelopeHitResult.addAll(part.Set_EnvelopeHitResult);
+			}
+		}
+		if(!hasResult) {
+			res.EndTimeN=System.nanoTime();
+			return res;
+		}
+		
+		//多个小块的结果拼接到一起，starts、ends加上小块的偏移量
+		int[] ids=parts[0].ResultIds;
+		ArrayList<String> strs=parts[0].Result;
+		if(parts.length>1) {
+			int total=0;
+			for(QueryResult part : parts) {
+				total+=partIds?part.ResultIdsCount:part.Result.size();
+			}
+			if(partIds) ids=new int[total]; else strs=new ArrayList<>(total);
+			for(int k=0,offset=0;k<parts.length;k++) {
+				QueryResult part=parts[k];
+				int count=partIds?part.ResultIdsCount:part.Result.size();
+				if(partIds) {
+					if(count>0) System.arraycopy(part.ResultIds, 0, ids, offset, count);
+				} else {
+					strs.addAll(part.Result);
+				}
+				if(offset>0) {
+					for(int n=bounds.get(k),to=bounds.get(k+1);n<to;n++) {
+						int i=order[n];
+						starts[i]+=offset; ends[i]+=offset;
+					}
+				}
+				offset+=count;
+			}
+		}
+		
+		//按输入顺序直接写入最终结果
+		int base=useIds?res.ResultIdsCount:res.Result.size(), total=0;
+		int[] idxs=new int[len+1];
+		for(int i=0;i<len;i++) {
+			idxs[i]=base+total;
+			total+=ends[i]-starts[i];
+		}
+		idxs[len]=base+total;
+		if(useIds) {
+			if(res.ResultIds==null || res.ResultIds.length<base+total) {
+				res.ResultIds=Arrays.copyOf(res.ResultIds==null?new int[0]:res.ResultIds, base+total);
+			}
+			int[] dest=res.ResultIds;
+			for(int i=0,p=base;i<len;i++) {
+				for(int j=starts[i],e=ends[i];j<e;j++) dest[p++]=ids[j];
+			}
+			res.ResultIdsCount=base+total;
+		} else {
+			ArrayList<String> list=res.Result;
+			list.ensureCapacity(base+total);
+			String[] props=data.PropStrings;
+			for(int i=0;i<len;i++) {
+				for(int j=starts[i],e=ends[i];j<e;j++) {
+					list.add(partIds?props[ids[j]]:strs.get(j));
+				}
+			}
+		}
+		res.PointsResultIndex=idxs;
+		res.EndTimeN=System.nanoTime();
+		return res;
+	}
+	/**
+	 * 批量查询排好序的一段坐标点：order中[from,to)这段，每个格子只查询一次索引，结果在res.Result（或ResultIds）中的位置存入starts、ends。
+	 * <br>常规的坐标点查询（wkb射线法计算、无需返回wkt等）直接在这里逐个计算，整个小块复用同一个查询上下文，不创建任何对象，耗时统计按格子累计；其他情况逐个调用__Query
+	 */
+	private void __QueryPointsChunk(__Dataset data, double[] lngs, double[] lats, int[] order, int[] cells, int from, int to, Func<String,Boolean> where, QueryResult res, int[] starts, int[] ends) throws Exception {
+		if(res.StartTimeN==0) res.StartTimeN=System.nanoTime();
+		__QueryTileHits tile=new __QueryTileHits();
+		Envelope tileEnv=new Envelope();
+		Coordinate point=new Coordinate();
+		boolean useIds=res.Set_ResultIds, hasResult=useIds || res.Result!=null;
+		boolean returnWkt=res.Set_ReturnWKTKey!=null && res.Set_ReturnWKTKey.length()>0;
+		boolean fast=SetQueryPointUseWkbLocator && !returnWkt && res.Set_EnvelopeHitResult==null
+				&& !(data.ReadFromMemory && SetInitStoreInMemoryUseObject);
+		
+		__QueryContext ctx=null;
+		if(fast) {
+			ctx=QueryContexts.get();
+			if(ctx.InUse) {
+				ctx=new __QueryContext();
+			}
+			ctx.InUse=true;
+		}
+		try {
+			for(int n0=from,n1;n0<to;n0=n1) {
+				int cell=cells[order[n0]];
+				tileEnv.setToNull();
+				for(n1=n0;n1<to && cells[order[n1]]==cell;n1++) {
+					int i=order[n1];
+					if(!Double.isNaN(lngs[i]) && !Double.isNaN(lats[i])) {//NaN坐标不会匹配任何数据，不能参与计算区域范围
+						tileEnv.expandToInclude(lngs[i], lats[i]);
+					}
+				}
+				long t_Start=System.nanoTime();
+				tile.HitCount=0;
+				if(!tileEnv.isNull()) {//全是NaN时为空
+					data.EnvelopeIndex.Query(tileEnv, tile, res.Set_Partitions);
+				}
+				long t_Exact=System.nanoTime();
+				res.DurationN_EnvelopeHitQuery+=t_Exact-t_Start;
+				
+				for(int n=n0;n<n1;n++) {
+					int i=order[n];
+					if(hasResult) starts[i]=useIds?res.ResultIdsCount:res.Result.size();
+					point.x=lngs[i]; point.y=lats[i];
+					if(fast) {
+						__QueryPointInTile(data, ctx, point, where, res, tile);
+					} else {
+						__Query(data, null, point, where, res, null, tile);
+					}
+					if(hasResult) ends[i]=useIds?res.ResultIdsCount:res.Result.size();
+				}
+				if(fast) {
+					res.DurationN_ExactHitQuery+=System.nanoTime()-t_Exact;
+				}
+			}
+		} finally {
+			if(ctx!=null) ctx.InUse=false;
+		}
+		res.EndTimeN=System.nanoTime();
+	}
+	/** 批量查询时查询一个坐标点，和__Query中坐标点查询的逻辑一致，只是不再单独统计每一步的耗时，结果只存属性编号（或只统计） **/
+	private void __QueryPointInTile(__Dataset data, __QueryContext ctx, Coordinate point, Func<String,Boolean> where, QueryResult res, __QueryTileHits tile) throws Exception {
+		res.QueryCount++;
+		ctx.MatchCount=0;
+		__GeoStore polygons=data.PolygonStore;
+		double[] envs=polygons.Envs;
+		double x=point.x, y=point.y;
+		int hitCount=0;
+		for(int k=0,len=tile.HitCount;k<len;k++) {
+			int idx=tile.Hits[k], n=idx*4;
+			if(!(x>=envs[n] && x<=envs[n+1] && y>=envs[n+2] && y<=envs[n+3])) {
+				continue;
+			}
+			hitCount++;
+			int flags=polygons.Flags[idx];
+			if((flags & GEO_Flag_Deleted)!=0) {//已被增量更新删除
+				continue;
+			}
+			int lineNo=polygons.LineNo[idx];
+			if(ctx.IsMatchLine(lineNo)) {
+				continue;
+			}
+			int propId=polygons.PropId[idx];
+			if(where!=null && !where.Exec(data.PropStrings[propId])) {
+				continue;
+			}
+		
+			boolean isMatch;
+			if((flags & GEO_Flag_FullCell)!=0) {
+				res.FullCellHitCount++;
+				isMatch=true;
+			} else {
+				__WkbPointLocator locator=ctx.PointLocator;
+				if(data.ReadFromMemory) {
+					locator.Bind((byte[])polygons.Wkbs[idx], 0);
+				} else {
+					data.BindWkb(locator, polygons.SubPos[idx]);
+				}
+				int loc=locator.Locate(x, y);
+				if(loc==-1) {//不支持的wkb格式，用jts计算
+					Object subObj=__QueryReadGeometry(data, ctx, res, idx);
+					if(subObj instanceof __PreparedPolygon) {
+						loc=((__PreparedPolygon)subObj).Locator.locate(point);
+					} else {
+						loc=SimplePointInAreaLocator.locate(point, (Geometry)subObj);
+					}
+				}
+				isMatch=loc!=Location.EXTERIOR;
+			}
+			if(isMatch) {
+				if(res.Set_ResultIds) res.addResultId(propId);
+				res.ExactHitCount++;
+				ctx.AddMatchLine(lineNo);
+			}
+		}
+		res.EnvelopeHitCount+=hitCount;
+	}
+	/** 批量坐标点查询时，一小片区域内的外接矩形初步筛选结果，区域内的坐标点共用 **/
+	static private class __QueryTileHits extends __IndexVisitor {
+		public int[] Hits=new int[64];
+		public int HitCount;
+		
+		@Override
+		public void Visit(int idx) {
+			if(HitCount==Hits.length) {
+				Hits=Arrays.copyOf(Hits, HitCount*2);
+			}
+			Hits[HitCount++]=idx;
+		}
+	}
+	/** 计算坐标(x,y)在希尔伯特曲线上的位置，x、y取值0-32767 **/
+	static private int HilbertIndex(int x, int y) {
+		int d=0;
+		for(int s=1<<14;s>0;s>>=1) {
+			int rx=(x & s)>0?1:0, ry=(y & s)>0?1:0;
+			d+=s*s*((3*rx)^ry);
+			if(ry==0) {//旋转象限
+				if(rx==1) {
+					x=s-1-x; y=s-1-y;
+				}
+				int t=x; x=y; y=t;
 			}
 		}
-		return res1;
+		return d;
 	}
-	static private Pattern Exp_PointDistanceID=Pattern.compile("\"PointDistanceID[\\s\":]+(\\d+)");
-	static private Pattern Exp_OkGeoCsv_Deep=Pattern.compile("\"deep[\\s\":]+(\\d+)");
 	
 	
 	/**
@@ -194,120 +859,539 @@ public class AreaCityQuery {
 	 *            <br>[2]String：为当前数据对应的完整图形的唯一标识符，用于数据去重
 	 */
 	public QueryResult QueryGeometryProcess(Geometry geom, Func<String,Boolean> where, QueryResult res, Func<Object[], Boolean> process) throws Exception{
-		CheckInitIsOK();
+		__Dataset data=AcquireData();
+		try {
+			return __Query(data, geom, null, where, res, process, null);
+		} finally {
+			data.Release();
+		}
+	}
+	/**
+	 * 查询的实现，point不为null时为坐标点查询（geom为null），直接用坐标点进行精确计算，无需创建图形对象；否则为geom图形查询
+	 * <br>tile不为null时为批量坐标点查询，tile中为包含了此坐标点的一小片区域的初步筛选结果，无需再查询索引
+	 */
+	private QueryResult __Query(__Dataset data, Geometry geom, Coordinate point, Func<String,Boolean> where, QueryResult res, Func<Object[], Boolean> process, __QueryTileHits tile) throws Exception{
 		if(res==null) res=new QueryResult();
 		res.QueryCount++;
 		long t_Start=System.nanoTime();
 		if(res.StartTimeN==0) res.StartTimeN=t_Start;
 		
 		boolean returnWkt=res.Set_ReturnWKTKey!=null && res.Set_ReturnWKTKey.length()>0;
-		if(returnWkt && WkbsFilePath.length()==0) {
+		if(returnWkt && data.WkbsFilePath.length()==0) {
 			throw new Exception("Set_ReturnWKT错误，初始化时必须保存了wkbs结构化数据文件，或者用的wkbs文件初始化的，否则不允许查询WKT数据");
 		}
 		
-		//先查找Envelope，基本不消耗时间
-		@SuppressWarnings("rawtypes")
-		List list=EnvelopeSTRTree.query(geom.getEnvelopeInternal());
-		res.DurationN_EnvelopeHitQuery+=System.nanoTime()-t_Start;
-		res.EnvelopeHitCount+=list.size();
+		//取一个当前线程的查询上下文，如果在回调里面又发起了查询，上下文正在使用中，就临时新建一个
+		__QueryContext ctx=QueryContexts.get();
+		if(ctx.InUse) {
+			ctx=new __QueryContext();
+		}
+		ctx.InUse=true;
+		try {
+			//先查找Envelope，基本不消耗时间
+			ctx.HitCount=0;
+			ctx.MatchCount=0;
+			if(point!=null && tile!=null) {
+				//从区域的初步筛选结果中过滤出外接矩形包含此坐标点的，顺序和直接查询索引的结果一致
+				double[] envs=data.PolygonStore.Envs;
+				for(int i=0,len=tile.HitCount;i<len;i++) {
+					int idx=tile.Hits[i], n=idx*4;
+					if(point.x>=envs[n] && point.x<=envs[n+1] && point.y>=envs[n+2] && point.y<=envs[n+3]) {
+						ctx.AddHit(idx);
+					}
+				}
+			} else if(point!=null) {
+				ctx.Envelope.init(point.x, point.x, point.y, point.y);
+				data.EnvelopeIndex.Query(ctx.Envelope, ctx, res.Set_Partitions);
+			} else {
+				data.EnvelopeIndex.Query(geom.getEnvelopeInternal(), ctx, res.Set_Partitions);
+			}
+			res.DurationN_EnvelopeHitQuery+=System.nanoTime()-t_Start;
+			res.EnvelopeHitCount+=ctx.HitCount;
 		
-		//进行精确查找
-		String matchLines=",";
-		for(int i=0,len=list.size();i<len;i++) {
-			@SuppressWarnings("unchecked")
-			Map<String, Object> store=(Map<String, Object>)list.get(i);
+			//进行精确查找
+			__GeoStore polygons=data.PolygonStore;
+			String[] props=data.PropStrings;
+			PreparedGeometry geomPrepared=null;
+			for(int i=0,len=ctx.HitCount;i<len;i++) {
+				int idx=ctx.Hits[i];
+				if((polygons.Flags[idx] & GEO_Flag_Deleted)!=0) {//已被增量更新删除
+					continue;
+				}
 
-			byte[] wkbSub=null;
-			String[] wkbPos=getWkbPos(store);
-			String lineNo=wkbPos[0];
-			int fullPos=Integer.parseInt(wkbPos[1]);
-			int subPos=Integer.parseInt(wkbPos[2]);
+				int lineNo=polygons.LineNo[idx];
+				int fullPos=polygons.FullPos[idx];
+				int subPos=polygons.SubPos[idx];
+				String propStr=props[polygons.PropId[idx]];
 			
-			//如果wkb对应的这条数据已经有一个sub匹配了，就不需要在继续查询
-			if(process==null && matchLines.indexOf(","+lineNo+",")!=-1) {//提供了process自定义处理，不去重
-				continue;
-			}
-			
-			//提供了where筛选
-			if(where!=null) {
-				if(!where.Exec(getProp(store))) {
+				//如果wkb对应的这条数据已经有一个sub匹配了，就不需要在继续查询
+				if(process==null && ctx.IsMatchLine(lineNo)) {//提供了process自定义处理，不去重
 					continue;
 				}
-			}
 			
-			//读取wkb数据
-			long t_IO=System.nanoTime();
-			Geometry subGeom=null;
-			if(ReadFromMemory) {
-				//从内存中得到wkb数据 或 直接存的对象
-				if(SetInitStoreInMemoryUseObject) {
-					subGeom=(Geometry)store.get("wkb");
-				} else {
-					wkbSub=(byte[])store.get("wkb");
+				//提供了where筛选
+				if(where!=null) {
+					if(!where.Exec(propStr)) {
+						continue;
+					}
 				}
-			} else {
-				wkbSub=ReadWkbFromFile(subPos);
-			}
-			res.DurationN_IO+=System.nanoTime()-t_IO;
-			
-			//转换回图形
-			long t_GeometryParse=System.nanoTime();
-			if(subGeom==null) {
-				subGeom=new WKBReader(Factory).read(wkbSub);
-			}
-			res.DurationN_GeometryParse+=System.nanoTime()-t_GeometryParse;
-			
-			//是否精确匹配
-			long t_Exact=System.nanoTime();
-			boolean isMatch=subGeom.intersects(geom);
-			res.DurationN_ExactHitQuery+=System.nanoTime()-t_Exact;
-			if(isMatch) {
-				String prop=getProp(store);
-				if(process!=null) { // 自定义计算
-					t_Exact=System.nanoTime();
-					Object[] args=new Object[] { prop, subGeom, lineNo };
-					if(!process.Exec(args)) {
-						isMatch=false;
+				
+				//坐标点落在了内部完整格子的外接矩形内，一定在图形内，无需读取和解析图形
+				if(point!=null && (polygons.Flags[idx] & GEO_Flag_FullCell)!=0 && res.Set_EnvelopeHitResult==null) {
+					res.FullCellHitCount++;
+					__QueryAddResult(data, ctx, res, propStr, polygons.PropId[idx], lineNo, fullPos, returnWkt);
+					continue;
+				}
+				
+				//坐标点查询，直接在wkb数据上用射线法计算，无需解析成图形对象
+				if(point!=null && SetQueryPointUseWkbLocator && res.Set_EnvelopeHitResult==null
+						&& !(data.ReadFromMemory && SetInitStoreInMemoryUseObject)) {
+					long t_IO=System.nanoTime();
+					__WkbPointLocator locator=ctx.PointLocator;
+					if(data.ReadFromMemory) {
+						locator.Bind((byte[])polygons.Wkbs[idx], 0);
 					} else {
-						prop=(String)args[0];
+						data.BindWkb(locator, subPos);
 					}
+					res.DurationN_IO+=System.nanoTime()-t_IO;
+					
+					long t_Exact=System.nanoTime();
+					int loc=locator.Locate(point.x, point.y);
 					res.DurationN_ExactHitQuery+=System.nanoTime()-t_Exact;
+					if(loc!=-1) {
+						if(loc!=Location.EXTERIOR) {
+							__QueryAddResult(data, ctx, res, propStr, polygons.PropId[idx], lineNo, fullPos, returnWkt);
+						}
+						continue;
+					}
+					//不支持的wkb格式，用jts计算
 				}
 				
-				if(isMatch) {
-					if(returnWkt) { // 需要同时返回完整图形的wkt数据
-						t_IO=System.nanoTime();
-						byte[] wkbFull=ReadWkbFromFile(fullPos);
-						res.DurationN_IO+=System.nanoTime()-t_IO;
-						
-						t_GeometryParse=System.nanoTime();
-						Geometry fullGeom=new WKBReader(Factory).read(wkbFull);
-						res.DurationN_GeometryParse+=System.nanoTime()-t_GeometryParse;
-						
-						String wkt=new WKTWriter().write(fullGeom);
-						prop=prop.substring(0, prop.length()-1)+", \""+res.Set_ReturnWKTKey+"\": \""+wkt+"\"}";
+				//读取图形
+				Object subObj=__QueryReadGeometry(data, ctx, res, idx);
+				Geometry subGeom=null;
+				__PreparedPolygon subPrepared=null;
+				if(subObj instanceof __PreparedPolygon) {
+					subPrepared=(__PreparedPolygon)subObj;
+					subGeom=subPrepared.Geom;
+				} else {
+					subGeom=(Geometry)subObj;
+				}
+				
+				//是否精确匹配
+				long t_Exact=System.nanoTime();
+				boolean isMatch;
+				if(point!=null) {//坐标点直接判断在图形内部或边上
+					if(subPrepared!=null) {
+						isMatch=subPrepared.Locator.locate(point)!=Location.EXTERIOR;
+					} else {
+						isMatch=SimplePointInAreaLocator.locate(point, subGeom)!=Location.EXTERIOR;
 					}
-					
-					if(res.Result!=null) {
-						res.Result.add(prop);
+				} else {
+					if(geomPrepared==null && !(geom instanceof Puntal) && ctx.HitCount>1) {
+						//要和多个图形计算，输入的图形只预处理一次
+						geomPrepared=PreparedGeometryFactory.prepare(geom);
+					}
+					if(geomPrepared!=null) {
+						isMatch=geomPrepared.intersects(subGeom);
+					} else if(subPrepared!=null) {
+						isMatch=subPrepared.Prepared.intersects(geom);
+					} else {
+						isMatch=subGeom.intersects(geom);
 					}
-					res.ExactHitCount++;
-					
-					matchLines+=lineNo+",";
+				}
+				res.DurationN_ExactHitQuery+=System.nanoTime()-t_Exact;
+				if(isMatch) {
+					String prop=propStr;
+					if(process!=null) { // 自定义计算
+						t_Exact=System.nanoTime();
+						Object[] args=new Object[] { prop, subGeom, lineNo+"" };
+						if(!process.Exec(args)) {
+							isMatch=false;
+						} else {
+							prop=(String)args[0];
+						}
+						res.DurationN_ExactHitQuery+=System.nanoTime()-t_Exact;
+					}
+					
+					if(isMatch) {
+						__QueryAddResult(data, ctx, res, prop, polygons.PropId[idx], lineNo, fullPos, returnWkt);
+					}
+				}
+				
+				if(res.Set_EnvelopeHitResult!=null) {//将初步筛选的结果存入数组，如果要求了的话
+					String prop=propStr;
+					prop="{\"_PolygonPointNum_\": "+subGeom.getNumPoints()+","+prop.substring(1);
+					res.Set_EnvelopeHitResult.add(prop);
 				}
 			}
-			
-			if(res.Set_EnvelopeHitResult!=null) {//将初步筛选的结果存入数组，如果要求了的话
-				String prop=getProp(store);
-				prop="{\"_PolygonPointNum_\": "+subGeom.getNumPoints()+","+prop.substring(1);
-				res.Set_EnvelopeHitResult.add(prop);
-			}
+		} finally {
+			ctx.InUse=false;
 		}
 		
 		res.EndTimeN=System.nanoTime();
 		return res;
 	}
 	
+	/** 读取一条Polygon数据的图形，返回Geometry，或者缓存中预处理过的__PreparedPolygon **/
+	private Object __QueryReadGeometry(__Dataset data, __QueryContext ctx, QueryResult res, int idx) throws Exception {
+		__GeoStore polygons=data.PolygonStore;
+		__GeometryCache cache=data.GeometryCache;
+		
+		//读取wkb数据
+		long t_IO=System.nanoTime();
+		Object subObj=null;
+		if(data.ReadFromMemory && SetInitStoreInMemoryUseObject) {
+			//从内存中得到直接存的对象
+			subObj=polygons.Wkbs[idx];
+		} else if(cache!=null) {
+			//从缓存中得到已解码的图形
+			subObj=cache.Get(idx);
+			if(subObj!=null) {
+				res.GeometryCacheHitCount++;
+			} else {
+				res.GeometryCacheMissCount++;
+			}
+		}
+		byte[] wkbSub=null;
+		InStream wkbSubStream=null;
+		if(subObj==null) {
+			if(data.ReadFromMemory) {//从内存中得到wkb数据
+				wkbSub=(byte[])polygons.Wkbs[idx];
+			} else {
+				wkbSubStream=data.ReadWkb(polygons.SubPos[idx]);
+			}
+		}
+		res.DurationN_IO+=System.nanoTime()-t_IO;
+		if(subObj!=null) {
+			return subObj;
+		}
+		
+		//转换回图形
+		long t_GeometryParse=System.nanoTime();
+		Geometry subGeom;
+		if(wkbSubStream!=null) {
+			subGeom=ctx.WkbReader.read(wkbSubStream);
+		} else {
+			subGeom=ctx.WkbReader.read(wkbSub);
+		}
+		subObj=subGeom;
+		if(cache!=null) {
+			if(SetUsePreparedGeometry) {//缓存预处理后的图形，后续查询可以复用
+				subObj=new __PreparedPolygon(subGeom);
+			}
+			res.GeometryCacheEvictCount+=cache.Put(idx, subObj);
+		}
+		res.DurationN_GeometryParse+=System.nanoTime()-t_GeometryParse;
+		return subObj;
+	}
+	/** 精确匹配了一条数据，加入到结果中 **/
+	private void __QueryAddResult(__Dataset data, __QueryContext ctx, QueryResult res, String prop, int propId, int lineNo, int fullPos, boolean returnWkt) throws Exception {
+		if(res.Set_ResultIds) { // 只返回属性编号
+			res.addResultId(propId);
+		} else {
+			if(returnWkt) { // 需要同时返回完整图形的wkt数据
+				prop=__QueryReturnWkt(data, ctx, res, prop, fullPos);
+			}
+			if(res.Result!=null) {
+				res.Result.add(prop);
+			}
+		}
+		res.ExactHitCount++;
+		
+		ctx.AddMatchLine(lineNo);
+	}
+	/** 读取完整图形的wkt数据，添加到属性中 **/
+	private String __QueryReturnWkt(__Dataset data, __QueryContext ctx, QueryResult res, String prop, int fullPos) throws Exception {
+		long t_IO=System.nanoTime();
+		InStream wkbFull=data.ReadWkb(fullPos);
+		res.DurationN_IO+=System.nanoTime()-t_IO;
+		
+		long t_GeometryParse=System.nanoTime();
+		Geometry fullGeom=ctx.WkbReader.read(wkbFull);
+		res.DurationN_GeometryParse+=System.nanoTime()-t_GeometryParse;
+		
+		String wkt=new WKTWriter().write(fullGeom);
+		return prop.substring(0, prop.length()-1)+", \""+res.Set_ReturnWKTKey+"\": \""+wkt+"\"}";
+	}
+	/** 每个线程一个查询上下文，查询时复用里面的对象 **/
+	private final ThreadLocal<__QueryContext> QueryContexts=new ThreadLocal<__QueryContext>() {
+		@Override
+		protected __QueryContext initialValue() {
+			return new __QueryContext();
+		}
+	};
+	/**
+	 * 查询上下文，存放一次查询中需要用到的可复用对象：wkb读取器、外接矩形、索引遍历结果缓冲、匹配去重集合；每个线程复用一个，稳定运行时坐标点查询基本不会再分配内存，降低GC压力
+	 */
+	static private class __QueryContext extends __IndexVisitor {
+		/** 是否正在查询中 **/
+		public boolean InUse;
+		public final WKBReader WkbReader=new WKBReader(Factory);
+		public final __WkbPointLocator PointLocator=new __WkbPointLocator();
+		public final Envelope Envelope=new Envelope();
+		public final __NearestQueue NearestQueue=new __NearestQueue();
+		
+		/** 外接矩形初步筛选出来的Polygon数据编号 **/
+		public int[] Hits=new int[64];
+		public int HitCount;
+		/** 已精确匹配了的数据行号，用于去重，数量很少直接遍历查找 **/
+		public int[] MatchLines=new int[16];
+		public int MatchCount;
+		
+		@Override
+		public void Visit(int idx) {
+			AddHit(idx);
+		}
+		public void AddHit(int idx) {
+			if(HitCount==Hits.length) {
+				Hits=Arrays.copyOf(Hits, HitCount*2);
+			}
+			Hits[HitCount++]=idx;
+		}
+		public boolean IsMatchLine(int lineNo) {
+			for(int i=0;i<MatchCount;i++) {
+				if(MatchLines[i]==lineNo) return true;
+			}
+			return false;
+		}
+		public void AddMatchLine(int lineNo) {
+			if(MatchCount==MatchLines.length) {
+				MatchLines=Arrays.copyOf(MatchLines, MatchCount*2);
+			}
+			MatchLines[MatchCount++]=lineNo;
+		}
+	}
+	/**
+	 * 直接在wkb数据上计算坐标点是否在Polygon、MultiPolygon内，无需解析成jts图形对象，不分配内存；用的射线法（crossing number），计算规则和jts的RayCrossingCounter完全一致：
+	 * 边上的点算BOUNDARY，孔洞内的点算EXTERIOR，孔洞边上的点算BOUNDARY；wkb数据可以是byte[]，也可以是内存映射的ByteBuffer，每个线程一个对象，绑定数据后调用Locate
+	 */
+	static private class __WkbPointLocator {
+		private byte[] Bytes;
+		private ByteBuffer Buf;
+		private int Base, Pos;
+		
+		/** 绑定byte[]中从base位置开始的wkb数据 **/
+		public void Bind(byte[] bytes, int base) {
+			Bytes=bytes; Buf=null; Base=base;
+		}
+		/** 绑定ByteBuffer中从base位置开始的wkb数据，只会用绝对位置读取，不会修改ByteBuffer的状态，多线程共享的ByteBuffer也可以 **/
+		public void Bind(ByteBuffer buf, int base) {
+			Bytes=null; Buf=buf; Base=base;
+		}
+		
+		/** 计算坐标点在图形中的位置，返回Location.INTERIOR、BOUNDARY、EXTERIOR；不支持的wkb数据返回-1（比如带Z值的） **/
+		public int Locate(double x, double y) {
+			Pos=Base;
+			boolean big=readByte()==0;
+			int type=readInt(big);
+			if(type==3) {//Polygon
+				return locatePolygon(big, x, y);
+			}
+			if(type==6) {//MultiPolygon
+				int num=readInt(big);
+				for(int i=0;i<num;i++) {
+					boolean big2=readByte()==0;
+					if(readInt(big2)!=3) {
+						return -1;
+					}
+					int loc=locatePolygon(big2, x, y);
+					if(loc!=Location.EXTERIOR) {
+						return loc;
+					}
+				}
+				return Location.EXTERIOR;
+			}
+			return -1;
+		}
+		private int locatePolygon(boolean big, double x, double y) {
+			int rings=readInt(big);
+			int loc=rings==0?Location.EXTERIOR:Location.INTERIOR;
+			boolean done=rings==0;
+			for(int r=0;r<rings;r++) {
+				int num=readInt(big);
+				int start=Pos;
+				Pos+=16*num;//读取完所有的环，MultiPolygon需要接着读下一个Polygon
+				if(done) {
+					continue;
+				}
+				int ringLoc=locateRing(big, start, num, x, y);
+				if(r==0) {//外环
+					if(ringLoc!=Location.INTERIOR) {
+						loc=ringLoc;
+						done=true;
+					}
+				} else if(ringLoc==Location.BOUNDARY) {//孔洞边上
+					loc=Location.BOUNDARY;
+					done=true;
+				} else if(ringLoc==Location.INTERIOR) {//孔洞内
+					loc=Location.EXTERIOR;
+					done=true;
+				}
+			}
+			return loc;
+		}
+		private int locateRing(boolean big, int start, int num, double x, double y) {
+			int crossings=0;
+			double x2=readDouble(big, start), y2=readDouble(big, start+8);
+			for(int i=1;i<num;i++) {
+				int p=start+i*16;
+				double x1=readDouble(big, p), y1=readDouble(big, p+8);
+				//RayCrossingCounter.countSegment(p1, p2)，p1为当前点，p2为上一个点
+				if(x1<x && x2<x) {
+					//线段在坐标点左边
+				} else if(x==x2 && y==y2) {
+					return Location.BOUNDARY;
+				} else if(y1==y && y2==y) {//水平线段，判断是否在线段上
+					if(x>=Math.min(x1, x2) && x<=Math.max(x1, x2)) {
+						return Location.BOUNDARY;
+					}
+				} else if((y1>y && y2<=y) || (y2>y && y1<=y)) {
+					int orient=CGAlgorithmsDD.orientationIndex(x1, y1, x2, y2, x, y);
+					if(orient==0) {
+						return Location.BOUNDARY;
+					}
+					if(y2<y1) orient=-orient;
+					if(orient==1) crossings++;
+				}
+				x2=x1; y2=y1;
+			}
+			return (crossings & 1)==1?Location.INTERIOR:Location.EXTERIOR;
+		}
+		
+		private byte readByte() {
+			byte v=Bytes!=null?Bytes[Pos]:Buf.get(Pos);
+			Pos++;
+			return v;
+		}
+		private int readInt(boolean big) {
+			int v;
+			if(Bytes!=null) {
+				byte[] b=Bytes; int p=Pos;
+				v=((b[p]&0xff)<<24) | ((b[p+1]&0xff)<<16) | ((b[p+2]&0xff)<<8) | (b[p+3]&0xff);
+			} else {
+				v=Buf.getInt(Pos);
+			}
+			Pos+=4;
+			return big?v:Integer.reverseBytes(v);
+		}
+		private double readDouble(boolean big, int p) {
+			long v;
+			if(Bytes!=null) {
+				byte[] b=Bytes;
+				v=((long)(b[p]&0xff)<<56) | ((long)(b[p+1]&0xff)<<48) | ((long)(b[p+2]&0xff)<<40) | ((long)(b[p+3]&0xff)<<32)
+					| ((long)(b[p+4]&0xff)<<24) | ((b[p+5]&0xff)<<16) | ((b[p+6]&0xff)<<8) | (b[p+7]&0xff);
+			} else {
+				v=Buf.getLong(p);
+			}
+			return Double.longBitsToDouble(big?v:Long.reverseBytes(v));
+		}
+	}
+	/**
+	 * 已解码的Polygon图形缓存，以PolygonStore数据编号为key，按估算的内存字节数限制大小，使用CLOCK算法淘汰：读取时只设置一下访问标记，无锁；写入和淘汰时加锁，淘汰时跳过有访问标记的图形（清除标记给一次机会），淘汰最近未被访问的图形
+	 */
+	static private class __GeometryCache {
+		private final AtomicReferenceArray<Object> Slots;
+		private final byte[] Refs;//访问标记，多线程同时写入也无所谓
+		private final int[] Sizes;
+		private final int[] Ring;//已缓存的数据编号，循环队列
+		private int RingHead, RingCount;
+		
+		public final long MaxSize;
+		public volatile long Size;
+		public final LongAdder HitCount=new LongAdder();
+		public final LongAdder MissCount=new LongAdder();
+		public final LongAdder EvictCount=new LongAdder();
+		
+		public __GeometryCache(int count, long maxSize) {
+			Slots=new AtomicReferenceArray<>(count);
+			Refs=new byte[count];
+			Sizes=new int[count];
+			Ring=new int[count];
+			MaxSize=maxSize;
+		}
+		/** 读取缓存的图形（Geometry或__PreparedPolygon），没有缓存返回null **/
+		public Object Get(int idx) {
+			Object geom=Slots.get(idx);
+			if(geom!=null) {
+				Refs[idx]=1;
+				HitCount.increment();
+			} else {
+				MissCount.increment();
+			}
+			return geom;
+		}
+		/** 缓存一个图形（Geometry或__PreparedPolygon），返回淘汰掉的图形数量 **/
+		synchronized public int Put(int idx, Object geom) {
+			if(Slots.get(idx)!=null) {//其他线程已经存了
+				return 0;
+			}
+			int size;
+			if(geom instanceof __PreparedPolygon) {
+				size=((__PreparedPolygon)geom).EstimateSize();
+			} else {
+				size=EstimateSize((Geometry)geom);
+				((Geometry)geom).getEnvelopeInternal();//提前算好外接矩形，多线程共享时不再修改对象
+			}
+			if(size>MaxSize) {
+				return 0;
+			}
+			
+			int evict=0;
+			while(Size+size>MaxSize && RingCount>0) {
+				int key=Ring[RingHead];
+				RingHead=(RingHead+1)%Ring.length;
+				RingCount--;
+				if(Refs[key]!=0) {//最近被访问过，清除标记，放到队尾
+					Refs[key]=0;
+					Ring[(RingHead+RingCount)%Ring.length]=key;
+					RingCount++;
+				} else {
+					Slots.set(key, null);
+					Size-=Sizes[key];
+					evict++;
+				}
+			}
+			Refs[idx]=0;
+			Sizes[idx]=size;
+			Ring[(RingHead+RingCount)%Ring.length]=idx;
+			RingCount++;
+			Size+=size;
+			Slots.set(idx, geom);
+			
+			EvictCount.add(evict);
+			return evict;
+		}
+		/** 估算图形对象占用的内存字节数：每个坐标点一个Coordinate对象+数组引用，每个环、Polygon的对象开销 **/
+		static public int EstimateSize(Geometry geom) {
+			int rings=0;
+			for(int i=0,L=geom.getNumGeometries();i<L;i++) {
+				rings+=((Polygon)geom.getGeometryN(i)).getNumInteriorRing()+1;
+			}
+			return 96*geom.getNumGeometries()+64*rings+44*geom.getNumPoints();
+		}
+	}
+	/**
+	 * 预处理过的Polygon图形，创建时就生成好坐标点查询用的线段索引（IndexedPointInAreaLocator），后续查询直接复用，无需每次重新计算；多线程共享使用
+	 */
+	static private class __PreparedPolygon {
+		public final Geometry Geom;
+		public final PreparedGeometry Prepared;
+		public final PointOnGeometryLocator Locator;
+		
+		public __PreparedPolygon(Geometry geom) {
+			Geom=geom;
+			Prepared=PreparedGeometryFactory.prepare(geom);
+			Locator=((PreparedPolygon)Prepared).getPointLocator();
+			Envelope env=geom.getEnvelopeInternal();
+			Locator.locate(new Coordinate(env.getMinX(), env.getMinY()));//立即生成索引
+		}
+		/** 估算占用的内存字节数：图形本身+每条线段一个索引节点 **/
+		public int EstimateSize() {
+			return __GeometryCache.EstimateSize(Geom)+64*Geom.getNumPoints();
+		}
+	}
+	
 	
 	
 	/**
@@ -322,11 +1406,18 @@ public class AreaCityQuery {
 	 * 
 	 * @param wktKey 可以为null，比如填：wkt、polygon，作为json里的key: 存放wkt文本数据；如果传入空值，将只返回属性，不查询wkt文本数据；此参数会覆盖res.Set_ReturnWKTKey值
 	 * @param res 可以为null，如果提供结果对象，可通过此对象的Set_XXX属性控制某些查询行为，并且本次查询的结果和统计数据将累加到这个结果内（性能测试用）。注意：此结果对象非线程安全
-	 * @param where 必须提供一个函数，筛选属性数据（所有数据全过一遍），会传入属性的json字符串，如果需要匹配这个边界图形就返回true，否则返回false跳过这条边界图形
+	 * @param where 必须提供一个函数，筛选属性数据（所有数据全过一遍），会传入属性的json字符串，如果需要匹配这个边界图形就返回true，否则返回false跳过这条边界图形；如果传入的是PropWhere对象，将直接从init时生成的属性索引中查找数据，无需遍历所有数据，性能极高
 	 * @param onFind 可选提供一个回调函数，每次查询到一条wkt数据后会通过onFind回传，String[]参数为[prop,wkt]；如果返回false数据将不会存入res结果中（也会忽略wktKey参数），需在回调中自行处理数据
 	 */
 	public QueryResult ReadWKT_FromWkbsFile(String wktKey, QueryResult res, Func<String,Boolean> where, Func<String[], Boolean> onFind) throws Exception{
-		CheckInitIsOK();
+		__Dataset data=AcquireData();
+		try {
+			return __ReadWKT(data, wktKey, res, where, onFind);
+		} finally {
+			data.Release();
+		}
+	}
+	private QueryResult __ReadWKT(__Dataset data, String wktKey, QueryResult res, Func<String,Boolean> where, Func<String[], Boolean> onFind) throws Exception{
 		if(res==null) res=new QueryResult();
 		res.QueryCount++;
 		long t_Start=System.nanoTime();
@@ -338,17 +1429,21 @@ public class AreaCityQuery {
 		if(onFind!=null) {
 			readWkt=true;
 		}
-		if(readWkt && WkbsFilePath.length()==0) {
+		if(readWkt && data.WkbsFilePath.length()==0) {
 			throw new Exception("初始化时必须保存了wkbs结构化数据文件，或者用的wkbs文件初始化的，否则不允许查询WKT数据");
 		}
 		
-		for(int i=0,iL=WKTDataStores.size();i<iL;i++) {
-			HashMap<String, Object> store=WKTDataStores.get(i);
-			
+		__GeoStore features=data.FeatureStore;
+		String[] props=data.PropStrings;
+		long t_Find=System.nanoTime();
+		int[] featureIdxs=__FindFeatures(data, where);//where为PropWhere时直接从属性索引中查找
+		res.DurationN_ExactHitQuery+=System.nanoTime()-t_Find;
+		for(int n=0,iL=featureIdxs==null?features.Count:featureIdxs.length;n<iL;n++) {
+			int i=featureIdxs==null?n:featureIdxs[n];
 			//属性是否符合条件
 			long t_Exact=System.nanoTime();
-			String prop=getProp(store);
-			boolean isFind=where.Exec(prop);
+			String prop=props[features.PropId[i]];
+			boolean isFind=featureIdxs==null?where.Exec(prop):((PropWhere)where).__ExecWhere(prop);
 			res.DurationN_ExactHitQuery+=System.nanoTime()-t_Exact;
 			if(!isFind) {
 				continue;
@@ -357,13 +1452,12 @@ public class AreaCityQuery {
 			String wkt=null;
 			if(readWkt) {
 				//读取wkb
-				byte[] wkbFull=null;
-				if(!store.containsKey("empty")) {
-					String[] wkbPos=getWkbPos(store);
-					int fullPos=Integer.parseInt(wkbPos[1]);
+				InStream wkbFull=null;
+				if(features.Type[i]!=WKBS_Type_Empty) {
+					int fullPos=features.FullPos[i];
 					
 					long t_IO=System.nanoTime();
-					wkbFull=ReadWkbFromFile(fullPos);
+					wkbFull=data.ReadWkb(fullPos);
 					res.DurationN_IO+=System.nanoTime()-t_IO;
 				}
 				
@@ -400,17 +1494,65 @@ public class AreaCityQuery {
 	
 	
 	
+	/** where为PropWhere时，从属性索引中查找出匹配的FeatureStore数据下标，从小到大排序；否则返回null需要遍历所有数据 **/
+	private int[] __FindFeatures(__Dataset data, Func<String,Boolean> where) {
+		if(!(where instanceof PropWhere)) {
+			return null;
+		}
+		__PropIndex index=data.PropIndex;
+		int[] propIds=index.Find((PropWhere)where);
+		int count=0;
+		for(int propId : propIds) {
+			count+=index.FeatureStarts[propId+1]-index.FeatureStarts[propId];
+		}
+		int[] idxs=new int[count];
+		count=0;
+		for(int propId : propIds) {
+			int start=index.FeatureStarts[propId], len=index.FeatureStarts[propId+1]-start;
+			System.arraycopy(index.FeatureIdxs, start, idxs, count, len);
+			count+=len;
+		}
+		Arrays.sort(idxs);//和遍历所有数据时的顺序保持一致
+		return idxs;
+	}
+	/**
+	 * 按属性筛选条件，从init时生成的属性索引中查找出所有匹配的属性编号（从小到大排序），无需遍历所有属性数据；属性编号可通过GetPropString等方法取属性数据
+	 */
+	public int[] FindPropIds(PropWhere where) throws Exception {
+		__Dataset data=GetData();
+		int[] propIds=data.PropIndex.Find(where);
+		if(where.Where==null) {
+			return propIds;
+		}
+		int count=0;
+		for(int propId : propIds) {
+			if(where.Where.Exec(data.PropStrings[propId])) {
+				propIds[count++]=propId;
+			}
+		}
+		return Arrays.copyOf(propIds, count);
+	}
+	
+	
+	
 	/**
 	 * 调试用的，读取已在wkbs结构化文件中保存的网格划分图形WKT数据，用于核对网格划分情况。
 	 * <br>读取到的wkt文本，可以直接粘贴到页面内渲染显示：https://xiangyuecn.github.io/AreaCity-JsSpider-StatsGov/assets/geo-echarts.html
 	 * 
 	 * @param wktKey 可以为null，比如填：wkt、polygon，作为json里的key: 存放wkt文本数据；如果传入空值，将只返回属性，不查询wkt文本数据；此参数会覆盖res.Set_ReturnWKTKey值
 	 * @param res 可以为null，如果提供结果对象，可通过此对象的Set_XXX属性控制某些查询行为，并且本次查询的结果和统计数据将累加到这个结果内（性能测试用）。注意：此结果对象非线程安全
-	 * @param where 必须提供一个函数，筛选属性数据（所有数据全过一遍），会传入属性的json字符串，如果需要匹配这个边界图形就返回true，否则返回false跳过这条边界图形
+	 * @param where 必须提供一个函数，筛选属性数据（所有数据全过一遍），会传入属性的json字符串，如果需要匹配这个边界图形就返回true，否则返回false跳过这条边界图形；如果传入的是PropWhere对象，将直接从init时生成的属性索引中查找数据，无需遍历所有数据，性能极高
 	 * @param onFind 可选提供一个回调函数，每次查询到一条wkt数据后会通过onFind回传，String[]参数为[prop,wkt]；如果返回false数据将不会存入res结果中（也会忽略wktKey参数），需在回调中自行处理数据
 	 */
 	public QueryResult Debug_ReadGeometryGridSplitsWKT(String wktKey, QueryResult res, Func<String,Boolean> where, Func<String[], Boolean> onFind) throws Exception {
-		CheckInitIsOK();
+		__Dataset data=AcquireData();
+		try {
+			return __DebugReadGridSplitsWKT(data, wktKey, res, where, onFind);
+		} finally {
+			data.Release();
+		}
+	}
+	private QueryResult __DebugReadGridSplitsWKT(__Dataset data, String wktKey, QueryResult res, Func<String,Boolean> where, Func<String[], Boolean> onFind) throws Exception {
 		if(res==null) res=new QueryResult();
 		res.QueryCount++;
 		long t_Start=System.nanoTime();
@@ -422,17 +1564,25 @@ public class AreaCityQuery {
 		if(onFind!=null) {
 			readWkt=true;
 		}
-		if(readWkt && WkbsFilePath.length()==0) {
+		if(readWkt && data.WkbsFilePath.length()==0) {
 			throw new Exception("初始化时必须保存了wkbs结构化数据文件，或者用的wkbs文件初始化的，否则不允许查询WKT数据");
 		}
 		
-		for(int i=0,iL=WKTDataStores.size();i<iL;i++) {
-			HashMap<String, Object> store=WKTDataStores.get(i);
-
+		__GeoStore features=data.FeatureStore;
+		String[] props=data.PropStrings;
+		HashMap<Integer, ArrayList<Integer>> lineSubsPos=null;
+		if(readWkt) {//每行数据grid拆分后的数据在wkbs里面的记录编号
+			lineSubsPos=data.PolygonStore.LineSubsPos();
+		}
+		long t_Find=System.nanoTime();
+		int[] featureIdxs=__FindFeatures(data, where);//where为PropWhere时直接从属性索引中查找
+		res.DurationN_ExactHitQuery+=System.nanoTime()-t_Find;
+		for(int n=0,iL=featureIdxs==null?features.Count:featureIdxs.length;n<iL;n++) {
+			int i=featureIdxs==null?n:featureIdxs[n];
 			//属性是否符合条件
 			long t_Exact=System.nanoTime();
-			String prop=getProp(store);
-			boolean isFind=where.Exec(prop);
+			String prop=props[features.PropId[i]];
+			boolean isFind=featureIdxs==null?where.Exec(prop):((PropWhere)where).__ExecWhere(prop);
 			res.DurationN_ExactHitQuery+=System.nanoTime()-t_Exact;
 			if(!isFind) {
 				continue;
@@ -440,8 +1590,7 @@ public class AreaCityQuery {
 			
 			String wkt=null;
 			if(readWkt) {
-				String[] wkbPos=getWkbPos(store);
-				ArrayList<Integer> subs=LineSubsPos.get(wkbPos[0]);
+				ArrayList<Integer> subs=lineSubsPos.get(features.LineNo[i]);
 				if(subs==null) {
 					continue;
 				}
@@ -450,7 +1599,7 @@ public class AreaCityQuery {
 				ArrayList<Polygon> pols=new ArrayList<Polygon>();
 				for(int i2=0,i2L=subs.size();i2<i2L;i2++) {
 					long t_IO=System.nanoTime();
-					byte[] wkb=ReadWkbFromFile(subs.get(i2));
+					InStream wkb=data.ReadWkb(subs.get(i2));
 					res.DurationN_IO+=System.nanoTime()-t_IO;
 					
 					long t_GeometryParse=System.nanoTime();
@@ -508,13 +1657,13 @@ public class AreaCityQuery {
 	 * 
 	 * @param dataFilePath 数据文件路径（支持：*.wkbs、*.json），从这个文件读取数据；如果autoUseExistsWkbsFile=true并且saveWkbsFilePath文件存在时（已生成了结构化数据文件），可以不提供此参数
 	 * @param saveWkbsFilePath 可选提供一个.wkbs后缀的文件路径：dataFile是wkbs时不可以提供；dataFile是geojson时，加载geojson解析的数据会自动生成此结构化数据文件；如果和dataFile都不提供wkbs文件时查询中将不允许获取WKT数据
-	 * @param autoUseExistsWkbsFile 当传true时：如果检测到saveWkbsFilePath对应文件已成功生成过了，将直接使用这个wkbs文件作为dataFile（直接忽略dataFilePath参数）；建议传true，这样只需要首次加载生成了结构文件，以后读取数据都非常快（数据更新时需删除wkbs文件）
+	 * @param autoUseExistsWkbsFile 当传true时：如果检测到saveWkbsFilePath对应文件已成功生成过了，将直接使用这个wkbs文件作为dataFile（直接忽略dataFilePath参数）；建议传true，这样只需要首次加载生成了结构文件，以后读取数据都非常快（数据更新时需删除wkbs文件，或者传false重新生成，重新生成时会复用旧文件中没有变的数据，参考SetInitReuseWkbsFile）
 	 */
 	public void Init_StoreInMemory(String dataFilePath, String saveWkbsFilePath, boolean autoUseExistsWkbsFile) {
-		__Init(autoUseExistsWkbsFile, dataFilePath, saveWkbsFilePath, true);
+		__Init(autoUseExistsWkbsFile, dataFilePath, saveWkbsFilePath, true, saveWkbsFilePath);
 	}
 	/**
-	 * 用加载数据到结构化数据文件的模式进行初始化，推荐使用本方法初始化，边界图形数据存入结构化数据文件中，内存占用很低（查询时会反复读取文件对应内容，查询性能消耗主要在IO上，IO性能极高问题不大）；本方法可以反复调用但只会初始化一次，每次查询前都调用即可（查询会在初始化完成后进行）
+	 * 用加载数据到结构化数据文件的模式进行初始化，推荐使用本方法初始化，边界图形数据存入结构化数据文件中，内存占用很低（查询时会反复读取文件对应内容，查询性能消耗主要在IO上，IO性能极高问题不大；默认使用内存映射读取文件，可通过SetInitStoreInWkbsFileUseMmap关闭）；本方法可以反复调用但只会初始化一次，每次查询前都调用即可（查询会在初始化完成后进行）
 	 * <pre>
 	 * 支持文件(utf-8)：
 	 *  - *.wkbs saveWkbsFilePath生成的结构化数据文件，读取效率高。
@@ -526,10 +1675,160 @@ public class AreaCityQuery {
 	 * 
 	 * @param dataFilePath 数据文件路径（支持：*.wkbs、*.json），从这个文件读取数据；如果autoUseExistsWkbsFile=true并且saveWkbsFilePath文件存在时（已生成了结构化数据文件），可以不提供此参数
 	 * @param saveWkbsFilePath 不提供，或一个.wkbs后缀的文件路径：dataFile是wkbs时不可以提供；dataFile是geojson时，必须提供，加载geojson解析的数据会存入此文件
-	 * @param autoUseExistsWkbsFile 当传true时：如果检测到saveWkbsFilePath对应文件已成功生成过了，将直接使用这个wkbs文件作为dataFile（直接忽略dataFilePath参数）；建议传true，这样只需要首次加载生成了结构文件，以后读取数据都非常快（数据更新时需删除wkbs文件）
+	 * @param autoUseExistsWkbsFile 当传true时：如果检测到saveWkbsFilePath对应文件已成功生成过了，将直接使用这个wkbs文件作为dataFile（直接忽略dataFilePath参数）；建议传true，这样只需要首次加载生成了结构文件，以后读取数据都非常快（数据更新时需删除wkbs文件，或者传false重新生成，重新生成时会复用旧文件中没有变的数据，参考SetInitReuseWkbsFile）
 	 */
 	public void Init_StoreInWkbsFile(String dataFilePath, String saveWkbsFilePath, boolean autoUseExistsWkbsFile) {
-		__Init(autoUseExistsWkbsFile, dataFilePath, saveWkbsFilePath, false);
+		__Init(autoUseExistsWkbsFile, dataFilePath, saveWkbsFilePath, false, saveWkbsFilePath);
+	}
+	
+	/**
+	 * 异步初始化：用Init_StoreInMemory的模式在executor中进行初始化，不阻塞调用线程；详细请参考InitAsync_StoreInWkbsFile
+	 */
+	public CompletableFuture<QueryInitInfo> InitAsync_StoreInMemory(String dataFilePath, String saveWkbsFilePath, boolean autoUseExistsWkbsFile, Executor executor) {
+		return __InitAsync(autoUseExistsWkbsFile, dataFilePath, saveWkbsFilePath, true, executor);
+	}
+	/**
+	 * 异步初始化：用Init_StoreInWkbsFile的模式在executor中进行初始化，调用后立即返回，初始化完成时返回的CompletableFuture得到InitInfo，初始化失败时为异常完成（错误消息为InitInfo.ErrMsg）
+	 * <pre>
+	 * - 调用时就已经将init状态设为了1初始化中，之后开始的查询可以设置SetQueryWaitInitTimeout等待数据就绪，而不是直接抛出未初始化的异常；服务启动时不用等init完成就可以开始接受请求
+	 * - 初始化期间可通过GetInitProgress()随时获取实时进度，读取进度不加锁，不会阻塞init；OnInitProgress回调照常进行（在init流水线的提交线程中按行的顺序回调，回调时不持有任何锁）
+	 * - 已经初始化过了时直接返回已完成的结果；正在初始化时（比如同时调用了Init）会等这次初始化结束后完成
+	 * - 多个实例同时初始化时，解析拆分图形的线程（包括超大边界并行网格拆分的子任务）共用SetInitSharedThreadBudget线程预算，总线程数不会成倍超过cpu核心数
+	 * </pre>
+	 * 参数和Init_StoreInWkbsFile相同
+	 * @param executor 在这个线程池中执行初始化，为null时新开一个线程执行；初始化内部的多线程解析另外有专用的线程，不会占用这个线程池的线程
+	 */
+	public CompletableFuture<QueryInitInfo> InitAsync_StoreInWkbsFile(String dataFilePath, String saveWkbsFilePath, boolean autoUseExistsWkbsFile, Executor executor) {
+		return __InitAsync(autoUseExistsWkbsFile, dataFilePath, saveWkbsFilePath, false, executor);
+	}
+	private CompletableFuture<QueryInitInfo> __InitAsync(boolean autoUseExistsWkbsFile, String dataFilePath, String saveWkbsFilePath, boolean readFromMemory, Executor executor) {
+		CompletableFuture<QueryInitInfo> future=new CompletableFuture<>();
+		//在调用线程中就抢占初始化，返回后马上开始的查询就能等待这次初始化完成
+		boolean begin=__InitBegin(false);
+		QueryInitInfo info=InitInfo;
+		if(!begin && InitLock[0]>=2) {//已经初始化过了
+			__InitAsyncComplete(future, InitLock[0], info);
+			return future;
+		}
+		Runnable task=new Runnable() {
+			@Override
+			public void run() {
+				int status=3;
+				QueryInitInfo runInfo=info;
+				try {
+					if(begin) {
+						status=__InitRun(autoUseExistsWkbsFile, dataFilePath, saveWkbsFilePath, readFromMemory, saveWkbsFilePath);
+					} else {//别的线程正在初始化，等它结束
+						__Init(autoUseExistsWkbsFile, dataFilePath, saveWkbsFilePath, readFromMemory, saveWkbsFilePath);
+						status=InitLock[0];
+						runInfo=InitInfo;
+					}
+				} finally {
+					__InitAsyncComplete(future, status, runInfo);
+				}
+			}
+		};
+		try {
+			if(executor==null) {
+				new Thread(task, "AreaCityQuery-InitAsync").start();
+			} else {
+				executor.execute(task);
+			}
+		} catch(Throwable e) {//线程池拒绝执行
+			if(begin) {
+				InitInfo.ErrMsg="初始化发生异常："+ErrorStack(e);
+				__InitEnd(3, null);
+			}
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	/** 按初始化结束时的状态完成异步初始化返回的future **/
+	private void __InitAsyncComplete(CompletableFuture<QueryInitInfo> future, int status, QueryInitInfo info) {
+		if(status==2) {
+			future.complete(info);
+		} else {
+			future.completeExceptionally(new Exception(info!=null && info.hasError()?info.ErrMsg:"初始化未完成"));
+		}
+	}
+	
+	/**
+	 * 热更新数据：在后台用Init_StoreInMemory的模式加载一份新的数据，加载完成后原子替换掉正在使用的数据，替换过程中查询不会中断、不会报错；详细请参考Reload_StoreInWkbsFile
+	 */
+	public void Reload_StoreInMemory(String dataFilePath, String saveWkbsFilePath) throws Exception {
+		__Reload(dataFilePath, saveWkbsFilePath, true);
+	}
+	/**
+	 * 热更新数据：在后台用Init_StoreInWkbsFile的模式加载一份新的数据，加载完成后原子替换掉正在使用的数据；可以在未初始化、或已初始化完成后调用，多次调用时会排队执行
+	 * <pre>
+	 * - 加载期间旧数据照常提供查询服务，新数据加载完成后才切换，切换后开始的查询全部使用新数据；正在进行中的查询会继续使用旧数据直到完成，然后旧数据才会释放（关闭文件、释放内存映射）
+	 * - 加载失败时会抛出异常，继续使用旧数据
+	 * - 加载使用当前的Set*配置和OnInitProgress回调，加载完成后GetInitInfo()返回新数据的init信息
+	 * - 重新加载就是为了更新数据，因此不会直接使用已存在的saveWkbsFilePath文件，总是会从dataFilePath重新生成（开启了SetInitReuseWkbsFile时会复用旧文件中内容没有变的行）；saveWkbsFilePath和正在使用的wkbs文件相同时，会先生成到临时文件，加载完成后再替换掉原文件（替换失败时继续使用临时文件，原因记录在GetInitInfo().WarnMsg中）
+	 * </pre>
+	 * 参数和Init_StoreInWkbsFile相同
+	 */
+	public void Reload_StoreInWkbsFile(String dataFilePath, String saveWkbsFilePath) throws Exception {
+		__Reload(dataFilePath, saveWkbsFilePath, false);
+	}
+	private final Object ReloadLock=new Object();
+	private void __Reload(String dataFilePath, String saveWkbsFilePath, boolean readFromMemory) throws Exception {
+		synchronized (ReloadLock) {
+			dataFilePath=dataFilePath==null?"":dataFilePath;
+			saveWkbsFilePath=saveWkbsFilePath==null?"":saveWkbsFilePath;
+			
+			//正在使用的wkbs文件不能直接覆盖写入，先写到临时文件
+			__Dataset current=Data;
+			String savePath=saveWkbsFilePath;
+			if(savePath.length()>0 && current!=null && current.WkbsFilePath.length()>0
+					&& new File(savePath).getAbsoluteFile().equals(new File(current.WkbsFilePath).getAbsoluteFile())) {
+				savePath=saveWkbsFilePath+".reload.tmp.wkbs";
+			}
+			
+			//用一个新的实例来加载数据，加载期间不影响当前实例的查询
+			AreaCityQuery builder=new AreaCityQuery();
+			builder.SetGridFactor=SetGridFactor;
+			builder.SetGridSplitUseRectClip=SetGridSplitUseRectClip;
+			builder.SetInitUseThreadMax=SetInitUseThreadMax;
+			builder.SetInitStoreInMemoryUseObject=SetInitStoreInMemoryUseObject;
+			builder.SetGeometryCacheMaxSize=SetGeometryCacheMaxSize;
+			builder.SetQueryPointUseWkbLocator=SetQueryPointUseWkbLocator;
+			builder.SetUsePreparedGeometry=SetUsePreparedGeometry;
+			builder.SetIndexPartitionKey=SetIndexPartitionKey;
+			builder.SetEnvelopeIndexType=SetEnvelopeIndexType;
+			builder.SetInitStoreInWkbsFileUseMmap=SetInitStoreInWkbsFileUseMmap;
+			builder.SetInitReuseWkbsFile=SetInitReuseWkbsFile;
+			builder.SetInitUpgradeV1WkbsFileInPlace=SetInitUpgradeV1WkbsFileInPlace;
+			builder.OnInitProgress=OnInitProgress;
+			builder.__Init(false, dataFilePath, savePath, readFromMemory, saveWkbsFilePath);
+			if(builder.GetInitStatus()!=2) {
+				throw new Exception("重新加载数据失败，继续使用旧数据："+builder.InitInfo.ErrMsg);
+			}
+			__Dataset data=builder.Data;
+			builder.Data=null;//引用转移给当前实例
+			
+			if(!savePath.equals(saveWkbsFilePath)) {//临时文件替换掉原文件，旧数据已打开的文件和内存映射不受影响
+				try {
+					Files.move(Paths.get(savePath), Paths.get(saveWkbsFilePath), StandardCopyOption.REPLACE_EXISTING);
+					data.WkbsFilePath=saveWkbsFilePath;
+					builder.InitInfo.FilePath_SaveWkbs=saveWkbsFilePath;
+				} catch(Exception e) {
+					//替换失败时（比如文件正在使用中无法覆盖）继续使用临时文件，原文件还是旧数据，记录一下原因
+					builder.InitInfo.FilePath_SaveWkbs=savePath;
+					builder.InitInfo.WarnMsg="临时文件替换原文件"+saveWkbsFilePath+"失败，继续使用临时文件"+savePath+"："+e.getMessage();
+				}
+			}
+			
+			__Dataset old;
+			synchronized (InitLock) {
+				old=Data;
+				Data=data;
+				InitInfo=builder.InitInfo;
+				InitLock[0]=2;
+				InitLock.notifyAll();
+			}
+			if(old!=null) old.Release(); //正在进行的查询结束后才会真正释放
+		}
 	}
 	
 	
@@ -539,7 +1838,7 @@ public class AreaCityQuery {
 	
 	
 	/** 版本号，主要用于wkbs结构化文件的版本 **/
-	static public final String Version="1.0";
+	static public final String Version="2.0";
 	
 	/** 性能优化的重要参数，用于将大的边界按网格拆分成小的边界，这个参数决定了每个小边界的坐标点数在这个值附近
 	 * <br>取值越小，查询性能越高；初始化拆分出来的Polygon会越多，占用内存也会相应增多，解析json文件、或生成wkbs文件会比较耗时。
@@ -548,12 +1847,83 @@ public class AreaCityQuery {
 	 * **/
 	public int SetGridFactor=100;
 	
-	/** init时允许使用的最大线程数量，默认为不超过5 并且 不超过cpu核心数-1；线程数不要太多， 默认就好**/
-	public int SetInitUseThreadMax=5;
+	/** 网格拆分时使用专门的矩形裁剪切割图形（网格都是和坐标轴对齐的矩形，比通用的Polygon.intersection快很多），默认开启；碰到坐标点正好落在裁剪线上等退化情况时会自动改用Polygon.intersection；设为false时全部使用Polygon.intersection **/
+	public boolean SetGridSplitUseRectClip=true;
+	
+	/** 网格拆分时单个Polygon坐标点数达到这个值，才分成多个任务在ForkJoinPool中并行切（静态属性，所有实例共用），小的直接在当前线程里面递归切，避免任务调度开销；默认4096，一般无需修改，测试并行拆分时可以调小 **/
+	static public int SetGridSplitForkPoints=4096;
+	
+	/** init时允许使用的最大线程数量，默认0为cpu核心数，设置了也不会超过cpu核心数；geojson文件会按换行符切分成多个字节范围、wkbs文件按记录切分，多个线程各自读取和解析，线程数越多init越快 **/
+	public int SetInitUseThreadMax=0;
 	
 	/** init采用的Init_StoreInMemory时，图形数据直接存到内存，不要转成wkb压缩内存，可进一步提升性能，但会增大一倍多的内存占用 **/
 	public boolean SetInitStoreInMemoryUseObject=false;
 	
+	/** 查询时缓存解码出来的Polygon图形对象，避免热点区域的图形反复读取和解析wkb数据，这个值为缓存最多占用的内存字节数（按坐标点数估算），默认0不缓存；Init_StoreInWkbsFile 和 Init_StoreInMemory（未开启SetInitStoreInMemoryUseObject）时生效，需在init前设置；缓存满了后会淘汰最近未被访问的图形 **/
+	public long SetGeometryCacheMaxSize=0;
+	
+	/** 坐标点查询时，直接在未解析的wkb数据上用射线法计算坐标点是否在图形内，无需解析成jts图形对象，计算结果和jts的完全一致；默认开启，Init_StoreInWkbsFile 和 Init_StoreInMemory（未开启SetInitStoreInMemoryUseObject）时生效，此时坐标点查询不会使用SetGeometryCacheMaxSize的缓存（也无需缓存）；设为false将解析成jts图形后再计算 **/
+	public boolean SetQueryPointUseWkbLocator=true;
+	
+	/** 坐标点查询时使用预处理过的图形（PreparedGeometry）进行精确计算：Polygon的线段索引只生成一次后续查询复用，查询更快，但每个图形会额外占用内存（约为图形本身的1.5倍）；只对内存中保留的图形对象生效：Init_StoreInMemory+SetInitStoreInMemoryUseObject（init时预处理，耗时和内存见InitInfo），或开启了SetGeometryCacheMaxSize的缓存（缓存时预处理）；需在init前设置 **/
+	public boolean SetUsePreparedGeometry=false;
+	
+	/** 外接矩形索引按这个属性的值进行分区，每个值一棵索引树，默认按deep分区（省、市、区、乡镇各一个分区）；查询时可通过QueryResult.Set_Partitions只查询需要的分区，比如只查区县时不会再匹配到省、市的大外接矩形；设为空字符串不分区；需在init前设置 **/
+	public String SetIndexPartitionKey="deep";
+	
+	/** 外接矩形索引：jts的STRtree（默认） **/
+	static public final String EnvelopeIndex_STRtree="STRtree";
+	/** 外接矩形索引：jts的HPRtree，按希尔伯特曲线排序打包的R树；不能按节点遍历，QueryPointWithTolerance会比较慢 **/
+	static public final String EnvelopeIndex_HPRtree="HPRtree";
+	/** 外接矩形索引：本类自带的紧凑希尔伯特R树（和flatbush相同的结构），数据全部存在基本类型数组中，内存占用约为STRtree的1/3，查询时不会创建任何对象 **/
+	static public final String EnvelopeIndex_PackedHilbert="PackedHilbert";
+	/** 外接矩形索引使用的索引树类型，取值为EnvelopeIndex_*：STRtree（默认）、HPRtree、PackedHilbert；每个实例可以分别设置，需在init前设置；几种索引的查询结果完全相同，只是生成耗时、内存占用、查询性能不同，可用Test.java中的性能基准测试进行对比 **/
+	public String SetEnvelopeIndexType=EnvelopeIndex_STRtree;
+	
+	/** init采用的Init_StoreInWkbsFile时，用内存映射（FileChannel.map）的方式读取wkbs文件，默认开启；wkbs文件只会映射一次，查询时直接从映射的内存中读取数据，数据由操作系统的页缓存管理，不占用Java堆内存；设为false时查询会从一个共享的文件通道中按位置读取数据 **/
+	public boolean SetInitStoreInWkbsFileUseMmap=true;
+	
+	/** 从geojson重新生成wkbs文件时（autoUseExistsWkbsFile=false、或Reload），如果saveWkbsFilePath已存在一个GridFactor相同的旧wkbs文件，内容没有变的行（按每行内容的哈希值识别）直接复用旧文件中已拆分好的记录，只解析和拆分有变动的行，数据小幅更新后重新生成wkbs文件会快很多；默认开启，设为false时总是全部重新解析拆分 **/
+	public boolean SetInitReuseWkbsFile=true;
+	
+	/** init时读到的是v1版本的文本格式wkbs文件时，是否将转换好的v2文件原地替换掉原文件；默认false不修改原文件，转换到系统临时目录（java.io.tmpdir）中的一个临时文件，从这个临时文件init，进程退出时删除（每次init都需要重新转换，只读目录中的文件也能直接使用）；设为true时原地替换（需要有写入权限），以后init无需再转换；也可以调用ConvertWkbsFile_V1ToV2手动转换 **/
+	public boolean SetInitUpgradeV1WkbsFileInPlace=false;
+	
+	/** 查询时如果还未初始化完成（未初始化、或正在初始化），最多等待这么多毫秒，数据就绪后再进行查询，超时后抛出异常；默认0不等待，直接抛出异常；配合InitAsync_XXX使用，服务启动期间到达的查询会等待init完成，而不是直接报错 **/
+	public long SetQueryWaitInitTimeout=0;
+	
+	/** 所有实例共享的init线程预算（静态属性）：多个实例同时init、Reload时，解析拆分图形、超大边界并行网格拆分的子任务、并行读取wkbs和生成索引的线程，同时在工作的总数不超过这个值，避免线程数成倍超过cpu核心数互相抢占；默认为cpu核心数，设为0不限制 **/
+	static public int SetInitSharedThreadBudget=Runtime.getRuntime().availableProcessors();
+	static private final int[] InitBudgetUsed=new int[] { 0 };
+	/** 占用一个共享的init线程预算，预算用完了就等待其他线程归还，返回等待的耗时 **/
+	static private long __InitBudgetAcquire() throws InterruptedException {
+		long t1=System.nanoTime();
+		synchronized (InitBudgetUsed) {
+			while(SetInitSharedThreadBudget>0 && InitBudgetUsed[0]>=SetInitSharedThreadBudget) {
+				InitBudgetUsed.wait();
+			}
+			InitBudgetUsed[0]++;
+		}
+		return System.nanoTime()-t1;
+	}
+	/** 尝试占用一个共享的init线程预算，预算已用完时不等待，直接返回false **/
+	static private boolean __InitBudgetTryAcquire() {
+		synchronized (InitBudgetUsed) {
+			if(SetInitSharedThreadBudget>0 && InitBudgetUsed[0]>=SetInitSharedThreadBudget) {
+				return false;
+			}
+			InitBudgetUsed[0]++;
+			return true;
+		}
+	}
+	/** 归还一个共享的init线程预算 **/
+	static private void __InitBudgetRelease() {
+		synchronized (InitBudgetUsed) {
+			InitBudgetUsed[0]--;
+			InitBudgetUsed.notifyAll();
+		}
+	}
+	
 	/**
 	 * init状态：0未初始化，1初始化中，2初始化完成，3初始化失败（InitInfo.ErrMsg为错误消息）
 	 */
@@ -569,612 +1939,3216 @@ public class AreaCityQuery {
 			throw new Exception("需要先Init完成后，再来进行查询调用");
 		}
 	}
+	/** 等待初始化结束：未初始化、或正在初始化时一直等待，直到初始化完成、失败、或超时，返回init状态是否是2已初始化完成；timeoutMs<=0时不等待 **/
+	public boolean WaitInit(long timeoutMs) throws InterruptedException {
+		if(InitLock[0]==2) {
+			return true;
+		}
+		long deadline=System.nanoTime()+timeoutMs*1000000L;
+		synchronized (InitLock) {
+			while(InitLock[0]<2) {
+				long left=deadline-System.nanoTime();
+				if(left<=0) break;
+				InitLock.wait(Math.max(1, left/1000000));
+			}
+			return InitLock[0]==2;
+		}
+	}
 	/** 将init状态设置为0（未初始化），允许重新Init **/
 	public void ResetInitStatus() {
 		synchronized (InitLock) {
+			__WaitInitRunning();//正在初始化时，等初始化结束后再重置
 			InitLock[0] = 0;
-			EnvelopeSTRTree = null;
-			WKTDataStores = null;
-			LineSubsPos = null;
+			__Dataset old=Data;
+			Data = null;
+			if(old!=null) old.Release(); //正在进行的查询结束后才会真正释放
 		}
 	}
 	
-	
-	/** 是否是通过Init_StoreInMemory初始化的 **/
-	public boolean IsStoreInMemory() {
-		return GetInitStatus()==2 && ReadFromMemory;
-	}
-	/** 是否是通过Init_StoreInWkbsFile初始化的 **/
-	public boolean IsStoreInWkbsFile() {
-		return GetInitStatus()==2 && !ReadFromMemory;
-	}
-	
 	/**
-	 * init时的回调，可以绑定一个函数，接收InitInfo进度信息，回调时机：
+	 * 增量更新一个边界图形：按id替换掉已有的图形，不存在时新增；只对这一个图形进行网格拆分，无需重新init，一般只需几毫秒到几十毫秒
 	 * <pre>
-	 * - 每处理一行数据会回调一次，返回false可以跳过处理一行数据，此时initInfo.CurrentLine_XX全部有值
-	 * - 处理完成时会回调一次(此时initInfo.CurrentLine_XX全部为空)
+	 * - featureJson为geojson中的一条数据，格式和init的geojson文件中一行的相同，属性中必须有id，已有数据中id（或unique_id）相同的图形会全部被替换掉
+	 * - 有wkbs文件时，新的数据会追加写入到wkbs文件末尾，被替换掉的旧记录在文件中标记为已删除，下次用这个wkbs文件init时读到的也是更新后的数据；多次更新后可调用Compact整理文件
+	 * - 更新完成后原子替换掉正在使用的数据，正在进行中的查询不受影响；和Reload、Compact排队执行
+	 * - 更新的数据不会回调OnInitProgress，GetInitInfo()中的统计信息也不会更新
 	 * </pre>
-	 * 此回调线程安全。
 	 */
-	public Func<QueryInitInfo, Boolean> OnInitProgress;
+	public QueryUpdateInfo UpdateFeature(String featureJson) throws Exception {
+		String line=featureJson.trim();
+		if(line.endsWith(",")) line=line.substring(0, line.length()-1);
+		if(!line.contains("properties\"") || !line.contains("geometry\"")) {
+			throw new Exception("更新的数据不是geojson格式的一条数据");
+		}
+		String type=JSONLineGeometryType(line);
+		if(!(type.equals("Polygon") || type.equals("MultiPolygon"))) {
+			throw new Exception("更新的数据"+type+"不是Polygon类，要求必须是Polygon或者MultiPolygon");
+		}
+		return __UpdateFeature(JSONLineProp(line), JSONLineParse(Factory, line), line);
+	}
 	/**
-	 * init时的进度信息
+	 * 增量更新一个边界图形，prop为属性的json字符串（必须有id），geom为Polygon或者MultiPolygon；详细请参考UpdateFeature(String)
 	 */
-	public QueryInitInfo GetInitInfo() {
-		return InitInfo;
+	public QueryUpdateInfo UpdateFeature(String prop, Geometry geom) throws Exception {
+		return __UpdateFeature(prop, geom, null);
 	}
-	private QueryInitInfo InitInfo;
-	
-	
-	
-	
-	
-	
-	/** jts的factory，可以用来创建Geometry **/
-	static public GeometryFactory Factory=new GeometryFactory(new PrecisionModel(), 4326);
-	
-	
-	private int[] InitLock=new int[] { 0 };//0未初始化，1初始化中，2初始化完成，3初始化失败
-	private boolean ReadFromMemory;
-	private String WkbsFilePath;
-	private STRtree EnvelopeSTRTree; //所有图形的外接矩形索引
-	private List<HashMap<String,Object>> WKTDataStores; //WKT查询时需要读取的属性列表
-	private HashMap<String, ArrayList<Integer>> LineSubsPos; //每行数据grid拆分后的数据在wkbs里面的存储位置
-	private void __Init(boolean autoUseExistsWkbsFile, String dataFilePath, String saveWkbsFilePath, boolean readFromMemory) {
-		if(InitLock[0] >= 2) {
-			return;
+	private QueryUpdateInfo __UpdateFeature(String prop, Geometry geom, String line) throws Exception {
+		long id=__PropIndex.ParseLong(JsonValue(prop, "id"));
+		if(id==-1) {
+			throw new Exception("更新的数据属性中没有id");
 		}
-		synchronized (InitLock) {
-			if(InitLock[0] >= 2) {
-				return;
-			}
-			FileOutputStream fw=null;
-			FileInputStream fr=null;
-			BufferedReader read=null;
-			
-			InitLock[0]=1;
+		if(!(geom instanceof Polygon || geom instanceof MultiPolygon)) {
+			throw new Exception("更新的数据"+geom.getGeometryType()+"不是Polygon类，要求必须是Polygon或者MultiPolygon");
+		}
+		return __Update(id, prop, geom, line);
+	}
+	/**
+	 * 增量删除id（或unique_id）为此值的所有边界图形，找不到时会抛异常；详细请参考UpdateFeature(String)
+	 */
+	public QueryUpdateInfo RemoveFeature(long id) throws Exception {
+		return __Update(id, null, null, null);
+	}
+	/** 增量更新，geom为null时为删除；line为geojson中的一行数据，有wkbs文件时写入这行的内容哈希值，以后用新的geojson重新生成wkbs文件时可以复用 **/
+	private QueryUpdateInfo __Update(long id, String prop, Geometry geom, String line) throws Exception {
+		synchronized (ReloadLock) {
+			QueryUpdateInfo info=new QueryUpdateInfo();
+			info.Id=id;
+			long t_Start=System.nanoTime();
+			__Dataset old=AcquireData();
+			__Dataset data=new __Dataset();
+			__WkbsReader reader=null;
+			__WkbsWriter writer=null;
+			String path=old.WkbsFilePath;
+			long fileLength=-1;
+			boolean[] deleted=null;
+			byte[] types=null;
+			boolean tombstoned=false;
 			try {
-				InitInfo=new QueryInitInfo();
-				InitInfo.StartTimeN = System.nanoTime();
-				InitInfo.StartMemory_System = GetMemory_System();
-				InitInfo.StartMemory_JavaRuntime = GetMemory_JavaRuntime();
-				
-				ReadFromMemory=readFromMemory;
-				WkbsFilePath="";
-				
-				dataFilePath=dataFilePath==null?"":dataFilePath;
-				saveWkbsFilePath=saveWkbsFilePath==null?"":saveWkbsFilePath;
-				if(saveWkbsFilePath.length()>0) {
-					WkbsFilePath=saveWkbsFilePath;
-				}else if(IsWkbsFilePath(dataFilePath)) {
-					WkbsFilePath=dataFilePath;
-				}else if(!ReadFromMemory){
-					throw new Exception("Init_StoreInWkbsFile传入非wkbs文件时，必须提供saveWkbsFilePath");
-				}
-				if(saveWkbsFilePath.length()>0) {
-					if(!IsWkbsFilePath(saveWkbsFilePath)) {
-						throw new Exception("saveWkbsFilePath必须是.wkbs结尾");
-					}
-					if(IsWkbsFilePath(dataFilePath)) {
-						throw new Exception("dataFilePath是.wkbs文件时，不允许再提供saveWkbsFilePath");
-					}
-
-					if(autoUseExistsWkbsFile){//如果wkbs文件已存在，并且有效，就直接读取这个文件的数据
-						if(AvailableWkbsFile(saveWkbsFilePath)) {
-							dataFilePath=saveWkbsFilePath;
-							saveWkbsFilePath="";
-						}
+				//内存中要删除的数据：id相同的属性
+				String[] props=old.PropStrings;
+				boolean[] removeProps=new boolean[props.length];
+				for(int propId : old.PropIndex.Find(new PropWhere(id, -1, -1, null))) {
+					removeProps[propId]=true;
+				}
+				if(geom==null) {
+					boolean find=false;
+					for(boolean b : removeProps) find|=b;
+					if(!find) {
+						throw new Exception("未找到id为"+id+"的数据");
+					}
+				}
+				__GeoStore oldFeatures=old.FeatureStore;
+				int lineNo=0;
+				for(int i=0;i<oldFeatures.Count;i++) {
+					lineNo=Math.max(lineNo, oldFeatures.LineNo[i]);
+				}
+				
+				//只对这一个图形进行网格拆分
+				Geometry geomGrid=null;
+				int polygonNum=0;
+				if(geom!=null && !geom.isEmpty()) {
+					long t_s=System.nanoTime();
+					geomGrid=GeometryGridSplit(Factory, geom, SetGridFactor, ForkJoinPool.commonPool(), SetGridSplitUseRectClip, false);
+					polygonNum=geomGrid instanceof MultiPolygon?geomGrid.getNumGeometries():1;
+					info.DurationN_GridSplit=System.nanoTime()-t_s;
+				}
+				Polygon[] parts=new Polygon[polygonNum];
+				byte[][] wkbs=new byte[polygonNum][];
+				WKBWriter wkbWriter=new WKBWriter();
+				for(int i=0;i<polygonNum;i++) {
+					parts[i]=(Polygon)(geomGrid instanceof MultiPolygon?geomGrid.getGeometryN(i):geomGrid);
+					if(path.length()>0 || (old.ReadFromMemory && !SetInitStoreInMemoryUseObject)) {
+						wkbs[i]=wkbWriter.write(parts[i]);
 					}
 				}
-				InitInfo.DataFromWkbsFile=IsWkbsFilePath(dataFilePath);
-				InitInfo.HasWkbsFile=WkbsFilePath.length()>0;
-				InitInfo.FilePath_Data=dataFilePath;
-				InitInfo.FilePath_SaveWkbs=saveWkbsFilePath;
 				
-				//打开文件
-				fr=new FileInputStream(dataFilePath);
-				read=new BufferedReader(new InputStreamReader(fr, "utf-8"));
-				if(saveWkbsFilePath.length()>0) {
-					fw=new FileOutputStream(saveWkbsFilePath);
+				//追加写入到wkbs文件，旧的记录标记为已删除
+				int fullPos=0;
+				int[] subPos=new int[polygonNum];
+				long[] offsets=old.WkbsRecordOffsets;
+				if(path.length()>0) {
+					long t_w=System.nanoTime();
+					reader=__WkbsReader.Open(path);
+					if(reader.Index==null) {
+						throw new Exception("wkbs文件中没有索引，不支持增量更新，请重新生成wkbs文件");
+					}
+					//文件中的属性编号和内存中的不一定相同，按属性中的id重新查找
+					boolean[] fileRemoveProps=new boolean[reader.Props.length];
+					String idStr=id+"";
+					for(int i=0;i<reader.Props.length;i++) {
+						String p=reader.Props[i];
+						fileRemoveProps[i]=p.contains(idStr) && (__PropIndex.ParseLong(JsonValue(p, "id"))==id || __PropIndex.ParseLong(JsonValue(p, "unique_id"))==id);
+					}
+					int count=reader.Offsets.length;
+					deleted=new boolean[count];
+					types=new byte[count];
+					ByteBuffer index=reader.Index.duplicate();
+					index.position(4);
+					for(int i=0;i<count;i++) {
+						byte type=index.get();
+						lineNo=Math.max(lineNo, index.getInt());
+						index.getInt();
+						int propId=index.getInt();
+						types[i]=(byte)(type & ~(WKBS_Flag_FullCell | WKBS_Flag_Deleted));
+						if(types[i]==WKBS_Type_Sub || types[i]==WKBS_Type_Full) {
+							index.position(index.position()+32);
+						}
+						if((type & WKBS_Flag_Deleted)!=0) {
+							info.WkbsDeletedCount++;
+						} else if(fileRemoveProps[propId]) {
+							deleted[i]=true;
+							info.WkbsDeletedCount++;
+						}
+					}
+					lineNo++;
+					
+					fileLength=new File(path).length();
+					writer=__WkbsWriter.Append(path, reader, deleted);
+					if(geomGrid==null) {
+						if(geom!=null) {
+							fullPos=writer.WriteRecord(WKBS_Type_Empty, lineNo, -1, prop, wkbWriter.write(Factory.createPolygon()), null, false);
+						}
+					} else if(polygonNum==1) {
+						fullPos=subPos[0]=writer.WriteRecord(WKBS_Type_Full, lineNo, -1, prop, wkbs[0], parts[0].getEnvelopeInternal(), IsFullCell(parts[0]));
+					} else {
+						fullPos=writer.WriteRecord(WKBS_Type_Parent, lineNo, -1, prop, wkbWriter.write(geom), null, false);
+						for(int i=0;i<polygonNum;i++) {
+							subPos[i]=writer.WriteRecord(WKBS_Type_Sub, lineNo, fullPos, prop, wkbs[i], parts[i].getEnvelopeInternal(), IsFullCell(parts[i]));
+						}
+					}
+					if(line!=null) {
+						writer.WriteLineHash(LineHash(line), fullPos, polygonNum>1?polygonNum+1:1);
+					}
+					writer.Finish();
+					writer.Close();
+					offsets=writer.GetOffsets();
+					writer=null;
+					info.WkbsRecordCount=offsets.length;
+					info.WkbsFileSize=new File(path).length();
+					info.DurationN_WkbsWrite=System.nanoTime()-t_w;
+				} else {
+					lineNo++;
 				}
 				
-				__InitProcess(dataFilePath, read, saveWkbsFilePath, fw);
+				//内存中的数据复制一份进行修改，正在使用的数据不受影响
+				long t_Index=System.nanoTime();
+				int propId=-1;
+				if(prop!=null) {
+					for(int i=0;i<props.length;i++) {
+						if(props[i].equals(prop)) {
+							propId=i;
+							break;
+						}
+					}
+					if(propId==-1) {
+						propId=props.length;
+						props=Arrays.copyOf(props, propId+1);
+						props[propId]=prop;
+					}
+				}
+				boolean[] removed=old.PropIndex.Removed==null?new boolean[props.length]:Arrays.copyOf(old.PropIndex.Removed, props.length);
+				for(int i=0;i<removeProps.length;i++) {
+					if(removeProps[i]) removed[i]=true;
+				}
+				if(propId!=-1) removed[propId]=false;
 				
-				EnvelopeSTRTree.build();//立即生成索引树
+				__GeoStore polygons=old.PolygonStore.Copy(polygonNum);
+				for(int i=0;i<polygons.Count;i++) {
+					int p=polygons.PropId[i];
+					if(p<removeProps.length && removeProps[p] && (polygons.Flags[i] & GEO_Flag_Deleted)==0) {
+						polygons.Flags[i]|=GEO_Flag_Deleted;
+						info.RemovedPolygonCount++;
+					}
+				}
+				for(int i=0;i<polygonNum;i++) {
+					Object mem=null;
+					if(old.ReadFromMemory) {
+						if(SetInitStoreInMemoryUseObject) {
+							mem=SetUsePreparedGeometry?new __PreparedPolygon(parts[i]):parts[i];
+						} else {
+							mem=wkbs[i];
+						}
+					}
+					polygons.Add(polygonNum==1?WKBS_Type_Full:WKBS_Type_Sub, lineNo, fullPos, subPos[i], propId, parts[i].getEnvelopeInternal(), mem, IsFullCell(parts[i])?GEO_Flag_FullCell:0);
+				}
+				polygons.Trim();
+				info.AddedPolygonCount=polygonNum;
 				
-				InitLock[0]=2;
-			} catch (Exception e) {
-				InitInfo.ErrMsg="初始化发生异常："+ErrorStack(e);
-				InitLock[0]=3;
+				__GeoStore features=new __GeoStore(false, false);
+				for(int i=0;i<oldFeatures.Count;i++) {
+					if(removeProps[oldFeatures.PropId[i]]) {
+						info.RemovedFeatureCount++;
+						continue;
+					}
+					features.Add(oldFeatures.Type[i], oldFeatures.LineNo[i], oldFeatures.FullPos[i], oldFeatures.SubPos[i], oldFeatures.PropId[i], null, null, 0);
+				}
+				if(geom!=null) {
+					byte type=geomGrid==null?WKBS_Type_Empty:polygonNum==1?WKBS_Type_Full:WKBS_Type_Parent;
+					features.Add(type, lineNo, fullPos, fullPos, propId, null, null, 0);
+				}
+				features.Trim();
+				
+				data.ReadFromMemory=old.ReadFromMemory;
+				data.WkbsFilePath=path;
+				data.WkbsRecordOffsets=offsets;
+				data.PropStrings=props;
+				data.PolygonStore=polygons;
+				data.FeatureStore=features;
+				data.PropIndex=new __PropIndex(props, features, removed);
+				data.EnvelopeIndex=new __PartitionIndex(old.EnvelopeIndex, polygons, props, data.PropIndex);
+				if(SetGeometryCacheMaxSize>0 && !(data.ReadFromMemory && SetInitStoreInMemoryUseObject)) {
+					data.GeometryCache=new __GeometryCache(polygons.Count, SetGeometryCacheMaxSize);
+				}
+				if(path.length()>0) {
+					if(old.WkbsMmap!=null) {
+						data.WkbsMmap=__WkbsMmap.Map(path, offsets);
+					} else {
+						data.WkbsFile=FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+					}
+				}
+				info.DurationN_Index=System.nanoTime()-t_Index;
+				
+				//新数据全部准备好了，最后才把被删除的记录本身的type也改写一下，没有索引直接读取记录时也能跳过；替换失败时会还原
+				if(deleted!=null) {
+					tombstoned=true;
+					__WkbsMarkDeleted(path, reader.Offsets, deleted, types, true);
+				}
+				__Publish(old, data);
+				data=null;
+				fileLength=-1;
+			} catch(Exception e) {
+				if(writer!=null) {
+					try { writer.Close(); } catch(Exception e2) {}
+				}
+				if(data!=null) {//先关闭新数据打开的文件和内存映射，再还原文件
+					data.Release();
+					data=null;
+				}
+				if(tombstoned) {
+					try {
+						__WkbsMarkDeleted(path, reader.Offsets, deleted, types, false);
+					} catch(Exception e2) {}
+				}
+				if(fileLength!=-1) {//追加写入失败或者没有替换成功，去掉追加写入的数据，恢复原来的文件尾
+					try(FileChannel ch=FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+						ch.truncate(fileLength);
+					} catch(Exception e2) {}
+				}
+				throw e;
 			} finally {
-				try { if(fw!=null) fw.close(); } catch(Exception e) {}
-				try { if(fr!=null) fr.close(); } catch(Exception e) {}
-				try { if(read!=null) read.close(); } catch(Exception e) {}
+				if(reader!=null) reader.Close();
+				if(data!=null) data.Release();
+				old.Release();
+			}
+			info.DurationN_Total=System.nanoTime()-t_Start;
+			return info;
+		}
+	}
+	/** 改写wkbs文件中marks为true的记录本身的type，deleted为true时加上已删除标记，否则还原成types中原来的type **/
+	static private void __WkbsMarkDeleted(String path, long[] offsets, boolean[] marks, byte[] types, boolean deleted) throws Exception {
+		try(FileChannel ch=FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+			for(int i=0;i<marks.length;i++) {
+				if(marks[i]) {
+					ch.write(ByteBuffer.wrap(new byte[] { (byte)(deleted?types[i] | WKBS_Flag_Deleted:types[i]) }), offsets[i]);
+				}
+			}
+		}
+	}
+	/** 替换掉正在使用的数据，old为替换前正在使用的那份，期间被ResetInitStatus了时不替换 **/
+	private void __Publish(__Dataset old, __Dataset data) throws Exception {
+		synchronized (InitLock) {
+			if(Data!=old) {
+				throw new Exception("数据已被重置，本次更新未生效");
+			}
+			Data=data;
+		}
+		old.Release(); //正在进行的查询结束后才会真正释放
+	}
+	/**
+	 * 整理增量更新后的数据：有wkbs文件时重新生成一个去掉了已删除记录和无用分段的wkbs文件（无需重新解析和拆分图形），替换掉原文件后重新加载；没有wkbs文件时去掉内存中已删除的数据，重新生成索引。
+	 * <br>整理期间查询照常进行，完成后原子替换掉正在使用的数据；和Reload、UpdateFeature排队执行，可以放到后台线程中调用
+	 */
+	public void Compact() throws Exception {
+		synchronized (ReloadLock) {
+			__Dataset old=AcquireData();
+			__Dataset data=null;
+			try {
+				if(old.WkbsFilePath.length()>0) {
+					String path=old.WkbsFilePath, tmpPath=path+".compact.tmp.wkbs", warn="";
+					CompactWkbsFile(path, tmpPath);
+					try {//旧数据已打开的文件和内存映射不受影响
+						Files.move(Paths.get(tmpPath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+					} catch(Exception e) {
+						warn="整理后的临时文件替换原文件"+path+"失败，继续使用临时文件"+tmpPath+"："+e.getMessage();
+						path=tmpPath;//替换失败时（比如文件正在使用中无法覆盖）继续使用临时文件
+					}
+					__Reload(path, "", old.ReadFromMemory);
+					if(warn.length()>0) InitInfo.WarnMsg=warn;
+					return;
+				}
 				
-				long t_gc=System.nanoTime();
-				System.gc();//强制回收内存
-				InitInfo.DurationN_JavaGC=System.nanoTime()-t_gc;
-
-				InitInfo.CurrentLine_No=0;
-				InitInfo.CurrentLine_Text="";
-				InitInfo.CurrentLine_Prop="";
+				__GeoStore src=old.PolygonStore;
+				__GeoStore polygons=new __GeoStore(true, src.Wkbs!=null);
+				for(int i=0;i<src.Count;i++) {
+					if((src.Flags[i] & GEO_Flag_Deleted)!=0) continue;
+					int n=i*4;
+					polygons.Add(src.Type[i], src.LineNo[i], src.FullPos[i], src.SubPos[i], src.PropId[i]
+							, new Envelope(src.Envs[n], src.Envs[n+1], src.Envs[n+2], src.Envs[n+3]), src.Wkbs==null?null:src.Wkbs[i], src.Flags[i]);
+				}
+				polygons.Trim();
+				data=new __Dataset();
+				data.ReadFromMemory=old.ReadFromMemory;
+				data.PropStrings=old.PropStrings;
+				data.FeatureStore=old.FeatureStore;
+				data.PropIndex=old.PropIndex;
+				data.PolygonStore=polygons;
+				data.EnvelopeIndex=new __PartitionIndex(old.EnvelopeIndex.Key, old.EnvelopeIndex.Type, polygons, old.PropStrings, old.PropIndex, __InitThreadCount());
+				if(SetGeometryCacheMaxSize>0 && !(data.ReadFromMemory && SetInitStoreInMemoryUseObject)) {
+					data.GeometryCache=new __GeometryCache(polygons.Count, SetGeometryCacheMaxSize);
+				}
+				__Publish(old, data);
+				data=null;
+			} finally {
+				if(data!=null) data.Release();
+				old.Release();
+			}
+		}
+	}
+	
+	
+	/** 是否是通过Init_StoreInMemory初始化的 **/
+	public boolean IsStoreInMemory() {
+		__Dataset data=Data;
+		return GetInitStatus()==2 && data!=null && data.ReadFromMemory;
+	}
+	/** 是否是通过Init_StoreInWkbsFile初始化的 **/
+	public boolean IsStoreInWkbsFile() {
+		__Dataset data=Data;
+		return GetInitStatus()==2 && data!=null && !data.ReadFromMemory;
+	}
+	
+	/**
+	 * init时的回调，可以绑定一个函数，接收InitInfo进度信息，回调时机：
+	 * <pre>
+	 * - 每处理一行数据会回调一次，返回false可以跳过处理一行数据，此时initInfo.CurrentLine_XX全部有值
+	 * - 处理完成时会回调一次(此时initInfo.CurrentLine_XX全部为空)
+	 * </pre>
+	 * 此回调线程安全：多线程init时只在提交数据的那一个线程中按行的顺序回调，回调时不持有任何锁；此时这一行已在其他线程中解析和拆分好了，返回false跳过的行只是不会存入数据。
+	 */
+	public Func<QueryInitInfo, Boolean> OnInitProgress;
+	/**
+	 * init时的进度信息
+	 */
+	public QueryInitInfo GetInitInfo() {
+		return InitInfo;
+	}
+	/**
+	 * init的实时进度快照，流水线各阶段每处理完一批数据就会更新一次；读取时不加锁，不会阻塞init，可以在其他线程中随时轮询（比如InitAsync_XXX后显示进度）
+	 */
+	public QueryInitProgress GetInitProgress() {
+		QueryInitProgress progress=new QueryInitProgress();
+		progress.Status=InitLock[0];
+		QueryInitInfo info=InitInfo;
+		if(info!=null) {
+			progress.ReadCount=info.ProgressRead.get();
+			progress.ParseCount=info.ProgressParse.get();
+			progress.CommitCount=info.ProgressCommit.get();
+			progress.PolygonCount=info.ProgressPolygon.get();
+			long end=info.EndTimeN;
+			progress.DurationN=(end!=0?end:System.nanoTime())-info.StartTimeN;
+			progress.ErrMsg=info.ErrMsg;
+		}
+		return progress;
+	}
+	
+	
+	/**
+	 * 属性字典中的属性数量，属性编号（查询结果ResultIds中的值）取值为0到此值-1；同一个wkbs文件初始化后的属性编号是固定的
+	 */
+	public int GetPropCount() throws Exception {
+		return GetData().PropStrings.length;
+	}
+	/**
+	 * 取属性编号对应的属性json字符串，属性编号为Set_ResultIds=true时查询结果ResultIds中的值
+	 */
+	public String GetPropString(int propId) throws Exception {
+		return GetData().PropStrings[propId];
+	}
+	/**
+	 * 取属性编号对应的属性json中的一个字段值，比如：id、deep、name；用到时才从json中解析，值为字符串时返回字符串内容，为数字等其他类型时返回原始文本，不存在时返回null
+	 */
+	public String GetPropValue(int propId, String key) throws Exception {
+		return JsonValue(GetData().PropStrings[propId], key);
+	}
+	/**
+	 * 取属性编号对应的属性json中的一个整数字段值，比如：id、pid、deep，字段值为数字字符串时也会转成整数；不存在或不是整数时返回defaultValue
+	 */
+	public long GetPropLong(int propId, String key, long defaultValue) throws Exception {
+		String val=GetPropValue(propId, key);
+		if(val==null) return defaultValue;
+		try {
+			return Long.parseLong(val.trim());
+		} catch(NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	/**
+	 * 从一个json对象字符串中读取第一层的一个字段值，值为字符串时返回字符串内容，为数字、对象等其他类型时返回原始文本，不存在时返回null；只做简单的解析，不校验json格式
+	 */
+	static public String JsonValue(String json, String key) {
+		int i=json.indexOf('{')+1, len=json.length();
+		while(i>0 && i<len) {
+			//读取key
+			i=__JsonSkipSpace(json, i);
+			if(i>=len || json.charAt(i)!='"') return null;
+			int keyEnd=__JsonSkipValue(json, i);
+			boolean isKey=keyEnd-i-2==key.length() && json.startsWith(key, i+1);
+			i=__JsonSkipSpace(json, keyEnd);
+			if(i>=len || json.charAt(i)!=':') return null;
+			//读取值
+			int valStart=__JsonSkipSpace(json, i+1);
+			int valEnd=__JsonSkipValue(json, valStart);
+			if(isKey) {
+				String val=json.substring(valStart, valEnd).trim();
+				if(val.length()>1 && val.charAt(0)=='"') {
+					val=val.substring(1, val.length()-1);
+					if(val.indexOf('\\')!=-1) {
+						StringBuilder str=new StringBuilder();
+						for(int n=0;n<val.length();n++) {
+							char c=val.charAt(n);
+							if(c=='\\' && n+1<val.length()) {
+								c=val.charAt(++n);
+								if(c=='n') c='\n';
+								else if(c=='r') c='\r';
+								else if(c=='t') c='\t';
+								else if(c=='u' && n+4<val.length()) {
+									c=(char)Integer.parseInt(val.substring(n+1, n+5), 16);
+									n+=4;
+								}
+							}
+							str.append(c);
+						}
+						val=str.toString();
+					}
+				}
+				return val;
+			}
+			i=__JsonSkipSpace(json, valEnd);
+			if(i>=len || json.charAt(i)!=',') return null;
+			i++;
+		}
+		return null;
+	}
+	static private int __JsonSkipSpace(String json, int i) {
+		while(i<json.length() && json.charAt(i)<=' ') i++;
+		return i;
+	}
+	/** 跳过一个json值（字符串、对象、数组、数字等），返回值结束后的位置 **/
+	static private int __JsonSkipValue(String json, int i) {
+		int len=json.length(), deep=0;
+		boolean inStr=false;
+		for(;i<len;i++) {
+			char c=json.charAt(i);
+			if(inStr) {
+				if(c=='\\') i++;
+				else if(c=='"') {
+					inStr=false;
+					if(deep==0) return i+1;
+				}
+			} else if(c=='"') {
+				inStr=true;
+			} else if(c=='{' || c=='[') {
+				deep++;
+			} else if(c=='}' || c==']') {
+				if(deep==0) return i;
+				if(--deep==0) return i+1;
+			} else if(c==',' && deep==0) {
+				return i;
+			}
+		}
+		return i;
+	}
+	
+	
+	
+	
+	
+	
+	/** jts的factory，可以用来创建Geometry **/
+	static public GeometryFactory Factory=new GeometryFactory(new PrecisionModel(), 4326);
+	
+	
+	private int[] InitLock=new int[] { 0 };//0未初始化，1初始化中，2初始化完成，3初始化失败
+	private volatile __Dataset Data; //当前正在使用的数据快照，重新加载数据时整体替换
+	private volatile QueryInitInfo InitInfo; //init的信息，异步init时其他线程会读取
+	private void __Init(boolean autoUseExistsWkbsFile, String dataFilePath, String saveWkbsFilePath, boolean readFromMemory, String reuseWkbsFilePath) {
+		if(__InitBegin(true)) {
+			__InitRun(autoUseExistsWkbsFile, dataFilePath, saveWkbsFilePath, readFromMemory, reuseWkbsFilePath);
+		}
+	}
+	/** 抢占初始化：状态从0改成1初始化中，并创建新的InitInfo，返回true；已经初始化过了（2完成、3失败）返回false；wait=true时其他线程正在初始化就等待它结束，否则直接返回false **/
+	private boolean __InitBegin(boolean wait) {
+		if(InitLock[0] >= 2) {
+			return false;
+		}
+		synchronized (InitLock) {
+			if(wait) {
+				__WaitInitRunning();
+			}
+			if(InitLock[0] != 0) {
+				return false;
+			}
+			InitLock[0]=1;
+			InitInfo=new QueryInitInfo();
+			InitInfo.StartTimeN = System.nanoTime();
+			return true;
+		}
+	}
+	/** 在InitLock内等待正在进行的初始化结束（状态不再是1），和以前等待同步锁一样不响应中断 **/
+	private void __WaitInitRunning() {
+		boolean interrupted=false;
+		while(InitLock[0]==1) {
+			try {
+				InitLock.wait();
+			} catch(InterruptedException e) {
+				interrupted=true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	/** 初始化结束，发布数据和状态（2完成、3失败），唤醒所有等待初始化完成的线程 **/
+	private void __InitEnd(int status, __Dataset data) {
+		__Dataset old=null;
+		synchronized (InitLock) {
+			if(status==2) {
+				old=Data;
+				Data=data;
+			}
+			InitLock[0]=status;
+			InitLock.notifyAll();
+		}
+		if(old!=null) old.Release(); //正在进行的查询结束后才会真正释放
+	}
+	/** 执行初始化，调用前必须已经通过__InitBegin抢占到了初始化；耗时的加载过程不持有InitLock，期间可以查询状态和进度；返回结束时的状态：2完成、3失败 **/
+	private int __InitRun(boolean autoUseExistsWkbsFile, String dataFilePath, String saveWkbsFilePath, boolean readFromMemory, String reuseWkbsFilePath) {
+		__WkbsWriter fw=null;
+		__WkbsReader wr=null;
+		__WkbsReuse reuse=null;
+		String writePath="", upgradeTmpPath="";
+		__Dataset data=new __Dataset();
+		int status=3;
+			
+		try {
+			InitInfo.StartMemory_System = GetMemory_System();
+			InitInfo.StartMemory_JavaRuntime = GetMemory_JavaRuntime();
+				
+			data.ReadFromMemory=readFromMemory;
+				
+			dataFilePath=dataFilePath==null?"":dataFilePath;
+			saveWkbsFilePath=saveWkbsFilePath==null?"":saveWkbsFilePath;
+			if(saveWkbsFilePath.length()>0) {
+				data.WkbsFilePath=saveWkbsFilePath;
+			}else if(IsWkbsFilePath(dataFilePath)) {
+				data.WkbsFilePath=dataFilePath;
+			}else if(!data.ReadFromMemory){
+				throw new Exception("Init_StoreInWkbsFile传入非wkbs文件时，必须提供saveWkbsFilePath");
+			}
+			if(saveWkbsFilePath.length()>0) {
+				if(!IsWkbsFilePath(saveWkbsFilePath)) {
+					throw new Exception("saveWkbsFilePath必须是.wkbs结尾");
+				}
+				if(IsWkbsFilePath(dataFilePath)) {
+					throw new Exception("dataFilePath是.wkbs文件时，不允许再提供saveWkbsFilePath");
+				}
 				
-				InitInfo.EndTimeN = System.nanoTime();
-				InitInfo.EndMemory_System = GetMemory_System();
-				InitInfo.EndMemory_JavaRuntime = GetMemory_JavaRuntime();
+				if(autoUseExistsWkbsFile){//如果wkbs文件已存在，并且有效，就直接读取这个文件的数据
+					if(AvailableWkbsFile(saveWkbsFilePath)) {
+						dataFilePath=saveWkbsFilePath;
+						saveWkbsFilePath="";
+					}
+				}
 			}
+			InitInfo.DataFromWkbsFile=IsWkbsFilePath(dataFilePath);
+			InitInfo.HasWkbsFile=data.WkbsFilePath.length()>0;
+			InitInfo.FilePath_Data=dataFilePath;
+			InitInfo.FilePath_SaveWkbs=saveWkbsFilePath;
 			
-			//初始化完成了，回调一下进度
-			if(OnInitProgress!=null) {
-				try {
-					OnInitProgress.Exec(InitInfo);
-				} catch (Exception e) { }
+			//打开文件
+			if(InitInfo.DataFromWkbsFile) {
+				if(WkbsFileVersion(dataFilePath)==1) {//老的v1文本格式，先转换成v2二进制格式
+					long t_cv=System.nanoTime();
+					if(SetInitUpgradeV1WkbsFileInPlace) {//明确要求了才原地替换掉原文件
+						String tmpPath=dataFilePath+".v2.tmp";
+						try {
+							ConvertWkbsFile_V1ToV2(dataFilePath, tmpPath);
+							Files.move(Paths.get(tmpPath), Paths.get(dataFilePath), StandardCopyOption.REPLACE_EXISTING);
+						} finally {
+							new File(tmpPath).delete();
+						}
+					} else {//默认转换到系统临时目录中，原文件保持不变，只读目录中的文件也能使用
+						File tmp=File.createTempFile("AreaCityQuery-v2-", ".wkbs");
+						tmp.deleteOnExit();
+						upgradeTmpPath=tmp.getAbsolutePath();
+						ConvertWkbsFile_V1ToV2(dataFilePath, upgradeTmpPath);
+						if(data.WkbsFilePath.equals(dataFilePath)) {
+							data.WkbsFilePath=upgradeTmpPath;
+						}
+						dataFilePath=upgradeTmpPath;
+						InitInfo.FilePath_WkbsUpgrade=upgradeTmpPath;
+					}
+					InitInfo.WkbsFileUpgradeFromV1=true;
+					InitInfo.DurationN_WkbsUpgrade=System.nanoTime()-t_cv;
+				}
+				wr=__WkbsReader.Open(dataFilePath);
+			}
+			if(saveWkbsFilePath.length()>0) {
+				writePath=saveWkbsFilePath;
+				//重新生成wkbs文件，旧文件中内容没有变的行直接复用；旧文件就是要生成的文件时，先生成到临时文件
+				reuseWkbsFilePath=reuseWkbsFilePath==null?"":reuseWkbsFilePath;
+				if(SetInitReuseWkbsFile && reuseWkbsFilePath.length()>0 && AvailableWkbsFile(reuseWkbsFilePath) && WkbsFileVersion(reuseWkbsFilePath)==2) {
+					try {
+						reuse=__WkbsReuse.Open(reuseWkbsFilePath);
+					} catch(Exception e) {
+						reuse=null;//旧文件有问题就不复用了，全部重新解析
+					}
+					if(reuse!=null) {
+						InitInfo.FilePath_ReuseWkbs=reuseWkbsFilePath;
+						if(new File(reuseWkbsFilePath).getAbsoluteFile().equals(new File(saveWkbsFilePath).getAbsoluteFile())) {
+							writePath=saveWkbsFilePath+".rebuild.tmp.wkbs";
+						}
+					}
+				}
+				fw=new __WkbsWriter(writePath, WkbsHeaderText(dataFilePath, SetGridFactor));
+			}
+				
+			if(wr!=null && wr.Index!=null && !(data.ReadFromMemory && SetInitStoreInMemoryUseObject)) {
+				__InitFromWkbsIndex(data, wr);//wkbs文件内有索引，直接加载索引，无需解析图形
+			} else {
+				__InitProcess(data, dataFilePath, wr, fw, reuse);
+			}
+				
+				
+			if(SetGeometryCacheMaxSize>0 && !(data.ReadFromMemory && SetInitStoreInMemoryUseObject)) {
+				data.GeometryCache=new __GeometryCache(data.PolygonStore.Count, SetGeometryCacheMaxSize);
+				InitInfo.GeometryCache=data.GeometryCache;
+				InitInfo.GeometryCacheMaxSize=SetGeometryCacheMaxSize;
+			}
+			
+			if(data.WkbsFilePath.length()>0) {//wkbs文件已写完，映射到内存，或者打开一个共享的文件通道（Init_StoreInMemory时读取WKT用）
+				if(fw!=null) {
+					fw.Close();
+					fw=null;
+				}
+				if(reuse!=null) {
+					reuse.Close();
+					reuse=null;
+				}
+				if(!writePath.equals(saveWkbsFilePath)) {//临时文件生成好了，替换掉旧文件
+					Files.move(Paths.get(writePath), Paths.get(saveWkbsFilePath), StandardCopyOption.REPLACE_EXISTING);
+				}
+				if(!data.ReadFromMemory && SetInitStoreInWkbsFileUseMmap) {
+					long t_mmap=System.nanoTime();
+					data.WkbsMmap=__WkbsMmap.Map(data.WkbsFilePath, data.WkbsRecordOffsets);
+					InitInfo.DurationN_WkbsMmap=System.nanoTime()-t_mmap;
+					InitInfo.WkbsMmapSize=data.WkbsMmap.Size;
+				} else {
+					data.WkbsFile=FileChannel.open(Paths.get(data.WkbsFilePath), StandardOpenOption.READ);
+				}
+			}
+			
+			status=2;
+		} catch (Throwable e) {
+			InitInfo.ErrMsg="初始化发生异常："+ErrorStack(e);
+		} finally {
+			if(status!=2) {
+				data.Release();
+				data=null;
+			}
+			try { if(fw!=null) fw.Close(); } catch(Exception e) {}
+			try { if(wr!=null) wr.Close(); } catch(Exception e) {}
+			try { if(reuse!=null) reuse.Close(); } catch(Exception e) {}
+			if(!writePath.equals(saveWkbsFilePath)) {//失败时删掉生成了一半的临时文件，旧文件保持不变
+				new File(writePath).delete();
 			}
+			if(status!=2 && upgradeTmpPath.length()>0) {//v1转换出来的临时文件没有用上
+				new File(upgradeTmpPath).delete();
+			}
+			
+			long t_gc=System.nanoTime();
+			System.gc();//强制回收内存
+			InitInfo.DurationN_JavaGC=System.nanoTime()-t_gc;
+			
+			InitInfo.CurrentLine_No=0;
+			InitInfo.CurrentLine_Text="";
+			InitInfo.CurrentLine_Prop="";
+			
+			InitInfo.EndTimeN = System.nanoTime();
+			InitInfo.EndMemory_System = GetMemory_System();
+			InitInfo.EndMemory_JavaRuntime = GetMemory_JavaRuntime();
 		}
-	}
-	private void __InitProcess(String dataFilePath, BufferedReader dataFile, String saveWkbsFilePath, FileOutputStream saveWkbsFile) throws Exception {
-		Exception[] threadError=new Exception[] { null };
+		__InitEnd(status, data);
 		
-		STRtree rtree=new STRtree();
-		List<HashMap<String,Object>> wktDataStores=new ArrayList<>();
-		List<HashMap<String,Object>> emptyGeoms=new ArrayList<>();
-		HashMap<String, ArrayList<Integer>> lineSubsPos=new HashMap<>();
+		//初始化完成了，回调一下进度（已不持有任何锁）
+		if(OnInitProgress!=null) {
+			try {
+				OnInitProgress.Exec(InitInfo);
+			} catch (Exception e) { }
+		}
+		return status;
+	}
+	private void __InitProcess(__Dataset data, String dataFilePath, __WkbsReader wkbsFile, __WkbsWriter saveWkbsFile, __WkbsReuse reuse) throws Exception {
+		__GeoStore polygons=new __GeoStore(true, data.ReadFromMemory);
+		__GeoStore features=new __GeoStore(false, false);
+		__GeoStore emptyGeoms=new __GeoStore(false, false);
+		HashMap<Integer, Long> emptyHashes=new HashMap<>();//空图形的行哈希，生成wkbs文件时在最后统一写入
 		
-		boolean isWkbsFile=IsWkbsFilePath(dataFilePath);
-		String IsStartErrMsg="未识别到geojson|wkbs数据，请检查初始化传入的文件是否正确。"
-					+"注意：如果是geojson文件，要求里面数据必须是一行一条数据"
-					+"，第一条数据的上一行必须是`\"features\": [`，最后一条数据的下一行必须是`]`打头"
-					+"，否则不支持解析，可尝试用文本编辑器批量替换添加换行符。";
-		boolean[] IsStart=new boolean[] { false };
-		boolean[] IsEnd=new boolean[] { false };
-		int[] LineNo=new int[] { 0 };
-		HashMap<String, String[]> Strings=new HashMap<>();//prop字符串转成引用类型
-		
-		//写入wkbs文件，并记录已写入长度
-		int[] saveWkbsFileLength=new int[] { 0 };
-		Func<String, Object> SaveWkbsWrite=new Func<String, Object>() {
-			@Override
-			public Object Exec(String val) throws Exception {
-				byte[] bs=val.getBytes("utf-8");
-				saveWkbsFileLength[0]+=bs.length;
-				saveWkbsFile.write(bs);
-				return null;
+		boolean isWkbsFile=wkbsFile!=null;
+		boolean saveHash=saveWkbsFile!=null && !isWkbsFile;
+		HashMap<String, Integer> propIds=new HashMap<>();//prop字符串转成属性编号
+		ArrayList<String> propList=new ArrayList<>();
+		if(isWkbsFile) {//wkbs的属性字典里面已经是唯一的了，编号和文件中的一致
+			for(int i=0;i<wkbsFile.Props.length;i++) {
+				propIds.put(wkbsFile.Props[i], i);
+				propList.add(wkbsFile.Props[i]);
 			}
-		};
+		}
+		int threadCount=__InitThreadCount();
+		InitInfo.UseThreadCount=threadCount;
 		
-		Func<Object, Object> ThreadExec=new Func<Object, Object>() {
-			@Override
-			public String Exec(Object val) throws Exception {
-				while(true) {
-					int lineNo;
-					String line;
-					synchronized (dataFile) {//先读取一行内容，文件内容之类的识别不允许并行
-						if(threadError[0]!=null) throw threadError[0];
-						if(IsEnd[0]) break;
+		FileChannel channel=null;
+		ExecutorService pool=null;
+		try {
+			//将数据切分成多个范围：geojson按换行符切分字节范围，wkbs按记录编号切分
+			__InitRange[] ranges;
+			if(isWkbsFile) {
+				ranges=__InitRange.SplitRecords(wkbsFile.Offsets.length, threadCount);
+			} else {
+				channel=FileChannel.open(Paths.get(dataFilePath), StandardOpenOption.READ);
+				ranges=__InitSplitLines(channel, threadCount);
+			}
+			FileChannel dataFile=channel;
 						
-						long t_fr=System.nanoTime();
-						line=dataFile.readLine();
-						InitInfo.DurationN_FileRead+=System.nanoTime()-t_fr;
-						if(line==null) {
-							//没有数据了
-							if(!IsStart[0]){
-								throw new Exception(IsStartErrMsg);
+			/* 流水线：读取 → 解析拆分 → 提交，每个阶段的线程通过有界队列交接一批批的数据
+			 * - 读取：多个线程按范围读取文本行（或wkbs记录），提取属性，每批最多InitBatchSize条放入解析队列；队列满了就等待，最多只能领先提交阶段readAhead个范围，限制内存占用
+			 * - 解析拆分：每个cpu一个线程，从解析队列中取出一批数据，解析成图形、按网格拆分、序列化成wkb，然后交给提交阶段
+			 * - 提交：一个线程按范围和批次的顺序提交，回调OnInitProgress，属性转成编号、写入wkbs文件、存入GeoStore；结果和单线程顺序处理完全一致，和线程数无关
+			 * 外接矩形索引在所有数据提交完成后一次性生成（__InitStoreFinish） */
+			int readThreads=Math.max(1, Math.min(ranges.length, (threadCount+3)/4));
+			int parseThreads=threadCount;
+			final ForkJoinPool splitPool=threadCount>1?ForkJoinPool.commonPool():null;//超大边界的网格拆分在公共线程池中并行切，读到末尾只剩几个大边界时其他核心不会空等；并行的子任务同样占用共享线程预算
+			int readAhead=Math.max(2, threadCount*2);
+			ArrayBlockingQueue<__InitBatch> parseQueue=new ArrayBlockingQueue<>(parseThreads*2);
+			LinkedBlockingQueue<__InitBatch> commitQueue=new LinkedBlockingQueue<>();
+			AtomicInteger nextRange=new AtomicInteger();
+			AtomicInteger readDone=new AtomicInteger();
+			int[] commitRange=new int[] { 0 };//提交到了哪个范围，读取阶段等待用
+			__InitBatch endBatch=new __InitBatch();//解析队列结束标志
+			
+			pool=Executors.newFixedThreadPool(readThreads+parseThreads+1);
+			ExecutorCompletionService<Object> stages=new ExecutorCompletionService<>(pool);
+			//读取
+			for(int t=0;t<readThreads;t++) {
+				stages.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						long t_Busy=0, t_Wait=0, t_WaitPut=0, t_FileRead=0, t_FileParse=0;
+						int lineCount=0, batchCount=0;
+						int rangeIdx;
+						while((rangeIdx=nextRange.getAndIncrement())<ranges.length) {
+							long t_w=System.nanoTime();
+							synchronized (commitRange) {//不能领先提交阶段太多
+								while(rangeIdx>=commitRange[0]+readAhead) {
+									commitRange.wait();
+								}
 							}
-							if(!IsEnd[0]){
-								throw new Exception("初始化传入的文件未发现结束位置，可能文件已损坏");
+							long t_b=System.nanoTime();
+							t_Wait+=t_b-t_w;
+							
+							__InitRange range=ranges[rangeIdx];
+							__LineReader lines=null;
+							ByteBuffer records=null;
+							if(isWkbsFile) {
+								records=wkbsFile.ReadRecords(range.RecordStart, range.RecordEnd);
+							} else {
+								lines=new __LineReader(dataFile, range.Start, range.End);
 							}
-							break;
-						}
-						lineNo=++LineNo[0];
-						line=line.trim();
-						if(line.length()==0)continue;
-
-						if(IsStart[0] && line.charAt(0)==']'){
-							//处理完成所有数据
-							IsEnd[0]=true;
-							break;
-						}
-						if(!IsStart[0]){
-							//等待开始标志
-							int fIdx=line.indexOf("\"features\"");
-							if(fIdx==0 || fIdx>0 && fIdx>=line.length()-14){
-								if(!line.endsWith("[")){
-									throw new Exception("初始化传入的文件第"+lineNo+"行风格不对，不支持处理此文件");
+							t_FileRead+=System.nanoTime()-t_b;
+							
+							__InitBatch batch=new __InitBatch();
+							batch.RangeIdx=rangeIdx;
+							int count=isWkbsFile?range.RecordEnd-range.RecordStart:range.LineCount;
+							for(int n=0;n<count;n++) {
+								__InitItem item=new __InitItem();
+								String line;
+								long r_t1=System.nanoTime();
+								if(isWkbsFile) {//wkbs文件直接读取下一条二进制记录
+									__WkbsRecord rec=new __WkbsRecord();
+									__WkbsReader.ReadRecord(records, range.RecordStart+n, rec);
+									if((rec.Type & WKBS_Flag_Deleted)!=0) {//已被增量更新删除的记录
+										continue;
+									}
+									item.Rec=rec;
+									item.LineNo=rec.LineNo;
+									item.PropStr=wkbsFile.Props[rec.PropId];
+									line=WKBS_TypeNames[rec.Type]+"|Pos:"+rec.LineNo+":"+rec.FullIdx+":"+rec.Idx+"|Prop:"+item.PropStr;
+								} else {
+									line=lines.Next();
+									t_FileRead+=System.nanoTime()-r_t1;
+									r_t1=System.nanoTime();
+									
+									item.LineNo=range.LineNo+n;
+									line=line.trim();
+									if(line.length()==0)continue;
+									
+									item.PropStr=JSONLineProp(line);
+									item.TypeStr=JSONLineGeometryType(line);
+									item.Line=line;
+								}
+								t_FileParse+=System.nanoTime()-r_t1;
+								lineCount++;
+								
+								if(OnInitProgress!=null) {//进度回调在提交线程中按顺序进行，读取线程之间不用抢锁
+									item.ProgressText=line;
 								}
-								IsStart[0]=true;
+								batch.Items.add(item);
+								batch.Size+=isWkbsFile?item.Rec.Wkb.length:line.length();
 								
-								if(saveWkbsFile!=null) {//写入 wkbs 文件头，这里无需同步操作
-									SaveWkbsWrite.Exec("/*******************"
-										+"\n本wkbs文件是由 "+AreaCityQuery.class.getTypeName()+" 生成，为专用的结构化数据文件，用于边界图形数据加速解析。"
-										+"\n@Version: "+Version
-										+"\n@GridFactor: "+SetGridFactor
-										+"\n@数据文件: "+dataFilePath
-										+"\n@生成时间: "+new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())
-										+"\n"
-										+"\nGitHub: https://github.com/xiangyuecn/AreaCity-Query-Geometry （github可换成gitee）"
-										+"\n省市区县乡镇区划边界数据: https://github.com/xiangyuecn/AreaCity-JsSpider-StatsGov （github可换成gitee）"
-										+"\n*******************/"
-										+"\n"
-										+"\n\"features\": [");
+								if(batch.Items.size()>=InitBatchSize || batch.Size>=InitBatchMaxChars) {
+									InitInfo.ProgressRead.addAndGet(batch.Items.size());
+									t_WaitPut+=__InitBatchPut(parseQueue, batch);
+									batchCount++;
+									__InitBatch next=new __InitBatch();
+									next.RangeIdx=rangeIdx;
+									next.BatchIdx=batch.BatchIdx+1;
+									batch=next;
 								}
 							}
-							continue;
+							batch.Last=true;//每个范围的最后一批，可能是空的
+							InitInfo.ProgressRead.addAndGet(batch.Items.size());
+							t_WaitPut+=__InitBatchPut(parseQueue, batch);
+							batchCount++;
+							t_Busy+=System.nanoTime()-t_b;
 						}
-					}// synchronized end
-					
-					//开始处理这一行数据
-
-					long r_t1=System.nanoTime();
-					//手工提取properties
-					String[] propStrPtr;
-					String propStr,wkbPosStr=lineNo+":0:0";
-					boolean wkbTypeIsParent=false,wkbTypeIsSub=false,wkbTypeIsEmpty=false;
-					int wkbIdx=0;
-					if(isWkbsFile){
-						int i0=line.indexOf(WKB_SP_Pos);
-						String wkbType=line.substring(0, i0);
-						if(wkbType.equals("Sub")) {
-							wkbTypeIsSub=true;
-						} else if(wkbType.equals("Full")) {
-							// NOOP
-						} else if(wkbType.equals("Parent")) {
-							wkbTypeIsParent=true;
-						} else if(wkbType.equals("Empty")) {
-							wkbTypeIsEmpty=true;
-						}
-
-						i0+=WKB_SP_Pos.length();
-						int i1=line.indexOf(WKB_SP_Prop, i0);
-						wkbPosStr=line.substring(i0, i1);
-						
-						i1+=WKB_SP_Prop.length();
-						int i2=line.indexOf(WKB_SP_WKB, i1);
-						propStr=line.substring(i1, i2);
-						wkbIdx=i2+WKB_SP_WKB.length();
-					} else {
-						int i0=line.indexOf("properties\"");
-						int i1=line.indexOf("{", i0);
-						int i2=line.indexOf("}", i0);
-						propStr=line.substring(i1, i2+1);
-					}
-					//手工提取geometry类型
-					String typeStr="";
-					if(!isWkbsFile){
-						int iGeom=line.indexOf("geometry\"");
-						
-						int i0=line.indexOf("type\"", iGeom);
-						int i1=line.indexOf("\"", i0+5);
-						int i2=line.indexOf("\"", i1+1);
-						typeStr=line.substring(i1+1, i2);
-					}
-					synchronized (InitInfo) {
-						InitInfo.DurationN_FileParse+=System.nanoTime()-r_t1;
-						
-						InitInfo.CurrentLine_No=lineNo;
-						InitInfo.CurrentLine_Text=line;
-						InitInfo.CurrentLine_Prop=propStr;
-
-						//回调一下，顺带看看需不需要解析这条数据
-						if(OnInitProgress!=null) {
-							if(!OnInitProgress.Exec(InitInfo)) {
-								continue;
+						//最后一个读取线程结束时，通知所有解析线程结束
+						if(readDone.incrementAndGet()==readThreads) {
+							for(int i=0;i<parseThreads;i++) {
+								t_Wait+=__InitBatchPut(parseQueue, endBatch);
 							}
 						}
-						
-						//在这个同步块里面顺带处理一下字符串转引用类型，减少字符串内存占用
-						propStrPtr=Strings.get(propStr);
-						if(propStrPtr==null) {
-							propStrPtr=new String[] { propStr };
-							Strings.put(propStr, propStrPtr);
-						}
-					}
-					
-					//wkbs里面的非Sub图形，完整图形
-					if(isWkbsFile && !wkbTypeIsSub) {
 						synchronized (InitInfo) {
-							InitInfo.GeometryCount++;
+							InitInfo.StageReadCount+=lineCount;
+							InitInfo.StageBatchCount+=batchCount;
+							InitInfo.DurationN_StageRead+=t_Busy-t_WaitPut;
+							InitInfo.DurationN_WaitRead+=t_Wait+t_WaitPut;
+							InitInfo.DurationN_FileRead+=t_FileRead;
+							InitInfo.DurationN_FileParse+=t_FileParse;
 						}
-						if(!wkbTypeIsEmpty) {//empty的丢到下面统一处理
-							HashMap<String,Object> store=new HashMap<>();
-							store.put("prop", propStrPtr);
-							store.put("wkbPos", wkbPosStr);
-							synchronized (wktDataStores) {
-								wktDataStores.add(store);//存好WKT查询数据，一个数据只存一条就行了
+						return null;
+					}
+				});
+			}
+			//解析拆分
+			for(int t=0;t<parseThreads;t++) {
+				stages.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						long t_Busy=0, t_Wait=0, t_GeometryParse=0, t_Index=0, t_Prepared=0, t_GridSplit=0, t_GridSplitMax=0, t_Reuse=0, t_WaitBudget=0;
+						int itemCount=0, preparedCount=0, gridSplitMaxPoints=0, reuseCount=0;
+						String gridSplitMaxProp="";
+						long preparedMemory=0;
+						WKBReader wkbReader=new WKBReader(Factory);
+						WKBWriter wkbWriter=new WKBWriter();
+						while(true) {
+							long t_w=System.nanoTime();
+							__InitBatch batch=parseQueue.take();
+							long t_b=System.nanoTime();
+							t_Wait+=t_b-t_w;
+							if(batch==endBatch) break;
+							
+							//多个实例同时init时，所有实例的解析拆分线程共用一个线程预算
+							t_WaitBudget+=__InitBudgetAcquire();
+							try {
+								for(__InitItem item : batch.Items) {
+									itemCount++;
+									//wkbs里面的上级完整图形无需再处理
+									if(isWkbsFile && item.Rec.Type==WKBS_Type_Parent) {
+										item.Rec.Wkb=null;
+										continue;
+									}
+								
+									//和旧的wkbs文件中内容相同的行，直接复用已拆分好的记录
+									__WkbsRecord[] reuseRecs=null;
+									if(saveHash) {
+										item.Hash=LineHash(item.Line);
+										if(reuse!=null) {
+											long t_r=System.nanoTime();
+											reuseRecs=reuse.Read(item.Hash, item.PropStr);
+											t_Reuse+=System.nanoTime()-t_r;
+										}
+									}
+								
+									//手工创建图形对象
+									long r_t2=System.nanoTime();
+									Geometry geomSrc=null;
+									if(reuseRecs!=null) {
+										item.Line=null;
+										reuseCount++;
+										if(reuseRecs[0].Type==WKBS_Type_Empty) {
+											item.Empty=true;
+											continue;
+										}
+									} else if(isWkbsFile){
+										geomSrc=wkbReader.read(item.Rec.Wkb);
+										item.Rec.Wkb=null;
+									} else {
+										if(!(item.TypeStr.equals("Polygon") || item.TypeStr.equals("MultiPolygon"))) {
+											throw new Exception("初始化传入的文件第"+item.LineNo+"行"+item.TypeStr+"数据不是Polygon类，要求必须是Polygon或者MultiPolygon，并且json文件内一条数据一行");
+										}
+										geomSrc=JSONLineParse(Factory, item.Line);
+										item.Line=null;
+									}
+									t_GeometryParse+=System.nanoTime()-r_t2;
+									if(geomSrc!=null && geomSrc.isEmpty()){//空的存一下属性，边界就丢弃
+										item.Empty=true;
+										continue;
+									}
+								
+									//图形如果坐标点过多，先按网格拆成小的
+									long r_t3=System.nanoTime();
+									Geometry geomGrid=geomSrc;
+									if(!isWkbsFile && reuseRecs==null) { //wkbs文件已经拆好了，非wkbs才需要按网格拆成小的
+										geomGrid=GeometryGridSplit(Factory, geomSrc, SetGridFactor, splitPool, SetGridSplitUseRectClip, true);
+										long t_s=System.nanoTime()-r_t3;
+										t_GridSplit+=t_s;
+										if(t_s>t_GridSplitMax) {
+											t_GridSplitMax=t_s;
+											gridSplitMaxPoints=geomSrc.getNumPoints();
+											gridSplitMaxProp=item.PropStr;
+										}
+									}
+									int polygonNum=1;
+									if(reuseRecs!=null) {//复用的记录：Full，或者Parent+多个Sub
+										polygonNum=Math.max(1, reuseRecs.length-1);
+										if(polygonNum>1) {
+											item.ParentWkb=reuseRecs[0].Wkb;
+										}
+									} else {
+										if(geomGrid instanceof MultiPolygon) {
+											polygonNum = geomGrid.getNumGeometries();
+										}
+										if(polygonNum>1 && saveWkbsFile!=null) {//有多个Polygon时，提交时先存一个完整的父级
+											item.ParentWkb=wkbWriter.write(geomSrc);
+										}
+									}
+									item.Envs=new Envelope[polygonNum];
+									item.FullCells=new boolean[polygonNum];
+									if(saveWkbsFile!=null) item.Wkbs=new byte[polygonNum][];
+									if(data.ReadFromMemory) item.MemObjs=new Object[polygonNum];
+									for(int i0=0;i0<polygonNum;i0++) {
+										Polygon polygon=null;
+										byte[] wkb=null;
+										if(reuseRecs!=null) {//外接矩形从旧文件的索引中读取，wkb直接用
+											__WkbsRecord rec=reuseRecs[polygonNum==1?0:i0+1];
+											item.Envs[i0]=reuse.Env(rec.Idx);
+											item.FullCells[i0]=reuse.FullCell(rec.Idx);
+											wkb=rec.Wkb;
+											item.Wkbs[i0]=wkb;
+										} else {
+											if(geomGrid instanceof MultiPolygon) {//MultiPolygon 拆成 Polygon 减小范围
+												polygon=(Polygon)geomGrid.getGeometryN(i0);
+											}else{
+												polygon=(Polygon)geomGrid;
+											}
+											item.Envs[i0]=polygon.getEnvelopeInternal();
+											item.FullCells[i0]=IsFullCell(polygon);
+											
+											if(saveWkbsFile!=null) {//需要保存到文件
+												wkb=wkbWriter.write(polygon);
+												item.Wkbs[i0]=wkb;
+											}
+										}
+										if(data.ReadFromMemory){//写入内存
+											if(SetInitStoreInMemoryUseObject) {
+												if(polygon==null) {
+													polygon=(Polygon)wkbReader.read(wkb);
+												}
+												Object wkbObj=polygon;
+												if(SetUsePreparedGeometry) {
+													long t_pr=System.nanoTime();
+													__PreparedPolygon prepared=new __PreparedPolygon(polygon);
+													wkbObj=prepared;
+													t_Prepared+=System.nanoTime()-t_pr;
+													preparedCount++;
+													preparedMemory+=prepared.EstimateSize()-__GeometryCache.EstimateSize(polygon);
+												}
+												item.MemObjs[i0]=wkbObj;
+											}else {
+												if(wkb==null) {
+													wkb=wkbWriter.write(polygon);
+												}
+												item.WkbMemoryLen+=wkb.length;
+												item.MemObjs[i0]=wkb;
+											}
+										}
+									}
+									t_Index+=System.nanoTime()-r_t3;
+								}
+							} finally {
+								__InitBudgetRelease();
 							}
+							InitInfo.ProgressParse.addAndGet(batch.Items.size());
+							commitQueue.put(batch);
+							t_Busy+=System.nanoTime()-t_b;
 						}
-						if(wkbTypeIsParent) {//已经拆分了，上级完整图形无需再处理
-							continue;
+						synchronized (InitInfo) {
+							InitInfo.StageParseCount+=itemCount;
+							InitInfo.DurationN_StageParse+=t_Busy-t_WaitBudget;
+							InitInfo.DurationN_WaitThreadBudget+=t_WaitBudget;
+							InitInfo.DurationN_WaitParse+=t_Wait;
+							InitInfo.DurationN_GeometryParse+=t_GeometryParse;
+							InitInfo.DurationN_Index+=t_Index;
+							InitInfo.DurationN_PreparedGeometry+=t_Prepared;
+							InitInfo.DurationN_GridSplit+=t_GridSplit;
+							if(t_GridSplitMax>InitInfo.DurationN_GridSplitMax) {
+								InitInfo.DurationN_GridSplitMax=t_GridSplitMax;
+								InitInfo.GridSplitMaxPoints=gridSplitMaxPoints;
+								InitInfo.GridSplitMaxProp=gridSplitMaxProp;
+							}
+							InitInfo.PreparedGeometryCount+=preparedCount;
+							InitInfo.PreparedGeometryMemory+=preparedMemory;
+							InitInfo.WkbsReuseCount+=reuseCount;
+							InitInfo.DurationN_WkbsReuse+=t_Reuse;
 						}
+						return null;
 					}
-
-					//手工创建图形对象
-					long r_t2=System.nanoTime();
-					Geometry geomSrc;
-					if(isWkbsFile){
-						byte[] wkb=Hex2Bytes(line, wkbIdx);
-						geomSrc=new WKBReader(Factory).read(wkb);
-					} else {
-						if(!(typeStr.equals("Polygon") || typeStr.equals("MultiPolygon"))) {
-							throw new Exception("初始化传入的文件第"+lineNo+"行"+typeStr+"数据不是Polygon类，要求必须是Polygon或者MultiPolygon，并且json文件内一条数据一行");
-						}
-						geomSrc=JSONLineParse(Factory, line);
-					}
-					synchronized (InitInfo) {
-						InitInfo.DurationN_GeometryParse+=System.nanoTime()-r_t2;
-						if(!isWkbsFile) {
-							InitInfo.GeometryCount++;
-						}
-						
-						if(geomSrc.isEmpty()){//空的存一下属性，边界就丢弃
-							HashMap<String,Object> store=new HashMap<>();
-							store.put("prop", propStrPtr);
-							store.put("wkbPos", wkbPosStr);
-							store.put("empty", true);
-							emptyGeoms.add(store);
-							continue;
-						}
-					}
-					
-					//创建索引，将每个图形放到rtree，图形如果坐标点过多，先按网格拆成小的
-					long r_t3=System.nanoTime();
-					Geometry geomGrid=geomSrc;
-					if(!isWkbsFile) { //wkbs文件已经拆好了，非wkbs才需要按网格拆成小的
-						geomGrid=GeometryGridSplit(Factory, geomSrc, SetGridFactor);
-					}
-					int wkbMemoryLen=0;
-					int polygonNum=1;
-					if(geomGrid instanceof MultiPolygon) {
-						polygonNum = geomGrid.getNumGeometries();
-					}
-					
-					int parentPos=0;
-					if(polygonNum>1 && saveWkbsFile!=null) {//有多个Polygon时，先存一个完整的父级
-						byte[] wkb=new WKBWriter().write(geomSrc);
-						synchronized (saveWkbsFile) {
-							parentPos=saveWkbsFileLength[0]+1;//+1 换行符
-							String wkbPos=lineNo+":"+parentPos+":"+parentPos; //编号:parent:sub 数据存储位置
-							
-							SaveWkbsWrite.Exec("\nParent"+WKB_SP_Pos+wkbPos+WKB_SP_Prop+propStr+WKB_SP_WKB+Bytes2Hex(wkb));
-						}
-					}
-					
-					for(int i0=0;i0<polygonNum;i0++) {
-						Polygon polygon;
-						if(geomGrid instanceof MultiPolygon) {//MultiPolygon 拆成 Polygon 减小范围
-							polygon=(Polygon)geomGrid.getGeometryN(i0);
-						}else{
-							polygon=(Polygon)geomGrid;
+				});
+			}
+			//提交，按顺序处理，后面的批次先到了就先放着
+			stages.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					long t_Busy=0, t_Wait=0;
+					int itemCount=0, polygonCount=0, fullCellCount=0;
+					long wkbMemory=0;
+					HashMap<Long, __InitBatch> waits=new HashMap<>();
+					int rangeIdx=0, batchIdx=0;
+					while(rangeIdx<ranges.length) {
+						__InitBatch batch=waits.remove(((long)rangeIdx<<32) | batchIdx);
+						if(batch==null) {
+							long t_w=System.nanoTime();
+							batch=commitQueue.take();
+							t_Wait+=System.nanoTime()-t_w;
+							if(batch.RangeIdx!=rangeIdx || batch.BatchIdx!=batchIdx) {
+								waits.put(((long)batch.RangeIdx<<32) | batch.BatchIdx, batch);
+								continue;
+							}
 						}
-						
-						byte[] wkb=null;
-						String wkbPos=lineNo+":0:0";//编号:parent:sub 数据存储位置
-						if(saveWkbsFile!=null) {//需要保存到文件
-							synchronized (saveWkbsFile) {
-								wkbPos=(saveWkbsFileLength[0]+1)+"";//+1 换行符
-								String type="Sub";
-								if(polygonNum==1) {//自己本身就是完整的，无需parent
-									type="Full";
-									wkbPos=wkbPos+":"+wkbPos;
-								} else {
-									wkbPos=parentPos+":"+wkbPos;
+						long t_b=System.nanoTime();
+						for(__InitItem item : batch.Items) {
+							itemCount++;
+							InitInfo.CurrentLine_No=item.LineNo;//只有提交线程会写入，按行的顺序
+							if(OnInitProgress!=null) {
+								InitInfo.CurrentLine_Text=item.ProgressText;
+								InitInfo.CurrentLine_Prop=item.PropStr;
+								item.ProgressText=null;
+								
+								//回调一下，顺带看看需不需要存入这条数据；只在这一个线程中回调，不持有任何锁
+								if(!OnInitProgress.Exec(InitInfo)) {
+									continue;
 								}
-								wkbPos=lineNo+":"+wkbPos;
-								wkb=new WKBWriter().write(polygon);
-								SaveWkbsWrite.Exec("\n"+type+WKB_SP_Pos+wkbPos+WKB_SP_Prop+propStr+WKB_SP_WKB+Bytes2Hex(wkb));
 							}
-						}
-
-						HashMap<String,Object> store=new HashMap<>();
-						store.put("prop", propStrPtr);
-						if(ReadFromMemory){//写入内存
-							if(SetInitStoreInMemoryUseObject) {
-								store.put("wkb", polygon);
-							}else {
-								if(wkb==null) {
-									wkb=new WKBWriter().write(polygon);
+							__WkbsRecord rec=item.Rec;
+							int lineNo=item.LineNo;
+							int propId;
+							if(isWkbsFile) {
+								propId=rec.PropId;
+							} else {
+								Integer id=propIds.get(item.PropStr);
+								if(id==null) {
+									id=propList.size();
+									propIds.put(item.PropStr, id);
+									propList.add(item.PropStr);
 								}
-								wkbMemoryLen+=wkb.length;
-								store.put("wkb", wkb);
+								propId=id;
 							}
-						}
-						
-						if(isWkbsFile) {//从wkbs文件读的数据，直接给数据位置值
-							wkbPos=wkbPosStr;
-						}
-						store.put("wkbPos", wkbPos);
-						String[] wkbPosArr=getWkbPos(store);
 						
-						//构造外接矩形，放到rtree里面，非线程安全需同步操作
-						synchronized (rtree) {
-							rtree.insert(polygon.getEnvelopeInternal(), store);
+							//wkbs里面的非Sub图形，完整图形
+							if(isWkbsFile && rec.Type!=WKBS_Type_Sub) {
+								InitInfo.GeometryCount++;
+								if(rec.Type!=WKBS_Type_Empty) {//empty的丢到下面统一处理
+									features.Add(rec.Type, lineNo, rec.FullIdx, rec.Idx, propId, null, null, 0);//存好WKT查询数据，一个数据只存一条就行了
+								}
+								if(rec.Type==WKBS_Type_Parent) {//已经拆分了，上级完整图形无需再处理
+									continue;
+								}
+							} else if(!isWkbsFile) {
+								InitInfo.GeometryCount++;
+							}
+							if(item.Empty) {//空的存一下属性，边界就丢弃
+								if(isWkbsFile) {
+									emptyGeoms.Add(WKBS_Type_Empty, lineNo, rec.FullIdx, rec.Idx, propId, null, null, 0);
+								} else {
+									int idx=emptyGeoms.Add(WKBS_Type_Empty, lineNo, 0, 0, propId, null, null, 0);
+									if(saveHash) emptyHashes.put(idx, item.Hash);
+								}
+								continue;
+							}
 							
-							//在这个同步块里面顺带把sub添加到这行数据的引用列表中
-							ArrayList<Integer> subs=lineSubsPos.get(wkbPosArr[0]);
-							if(subs==null) {
-								subs=new ArrayList<>();
-								lineSubsPos.put(wkbPosArr[0], subs);
+							int polygonNum=item.Envs.length;
+							int parentIdx=-1, firstIdx=-1;
+							if(item.ParentWkb!=null) {//有多个Polygon时，先存一个完整的父级
+								parentIdx=saveWkbsFile.WriteRecord(WKBS_Type_Parent, lineNo, -1, item.PropStr, item.ParentWkb, null, false);
+								firstIdx=parentIdx;
+							}
+							for(int i0=0;i0<polygonNum;i0++) {
+								Envelope env=item.Envs[i0];
+								boolean fullCell=item.FullCells[i0];
+								byte type=polygonNum==1?WKBS_Type_Full:WKBS_Type_Sub;
+								int fullPos=0,subPos=0;//数据存储位置，为wkbs文件中的记录编号
+								if(saveWkbsFile!=null) {//需要保存到文件
+									if(polygonNum==1) {//自己本身就是完整的，无需parent
+										subPos=saveWkbsFile.WriteRecord(WKBS_Type_Full, lineNo, -1, item.PropStr, item.Wkbs[i0], env, fullCell);
+										fullPos=subPos;
+										firstIdx=subPos;
+									} else {
+										subPos=saveWkbsFile.WriteRecord(WKBS_Type_Sub, lineNo, parentIdx, item.PropStr, item.Wkbs[i0], env, fullCell);
+										fullPos=parentIdx;
+									}
+								}
+								if(isWkbsFile) {//从wkbs文件读的数据，直接给数据位置值
+									type=rec.Type;
+									fullPos=rec.FullIdx;
+									subPos=rec.Idx;
+								}
+								
+								polygons.Add(type, lineNo, fullPos, subPos, propId, env, item.MemObjs==null?null:item.MemObjs[i0], fullCell?GEO_Flag_FullCell:0);
+								if(fullCell) fullCellCount++;
+								if(i0==0 && !isWkbsFile) {
+									//这个只在查询完整wkt数据时才有用，一个数据只存一条就行了，wkbs的上面已经存好了
+									features.Add(polygonNum==1?WKBS_Type_Full:WKBS_Type_Parent, lineNo, fullPos, subPos, propId, null, null, 0);
+								}
+							}
+							if(saveHash) {//这一行写入的记录是连续的：Parent+Sub，或者Full
+								saveWkbsFile.WriteLineHash(item.Hash, firstIdx, polygonNum+(parentIdx!=-1?1:0));
 							}
-							subs.add(Integer.parseInt(wkbPosArr[2]));
+							polygonCount+=polygonNum;
+							wkbMemory+=item.WkbMemoryLen;
 						}
-						if(i0==0 && !isWkbsFile) {
-							//这个只在查询完整wkt数据时才有用，一个数据只存一条就行了，wkbs的上面已经存好了
-							synchronized (wktDataStores) {
-								wktDataStores.add(store);
+						InitInfo.ProgressCommit.addAndGet(batch.Items.size());
+						InitInfo.ProgressPolygon.set(polygonCount);
+						t_Busy+=System.nanoTime()-t_b;
+						
+						if(batch.Last) {//这个范围提交完了，读取阶段可以继续往后读
+							rangeIdx++;
+							batchIdx=0;
+							synchronized (commitRange) {
+								commitRange[0]=rangeIdx;
+								commitRange.notifyAll();
 							}
+						} else {
+							batchIdx++;
 						}
 					}
 					synchronized (InitInfo) {
-						InitInfo.DurationN_Index+=System.nanoTime()-r_t3;
-
-						if(ReadFromMemory){
+						InitInfo.StageCommitCount+=itemCount;
+						InitInfo.DurationN_StageCommit+=t_Busy;
+						InitInfo.DurationN_WaitCommit+=t_Wait;
+						if(data.ReadFromMemory){
 							if(InitInfo.WkbMemory==-1)InitInfo.WkbMemory=0;
-							InitInfo.WkbMemory+=wkbMemoryLen;
+							InitInfo.WkbMemory+=wkbMemory;
+						}
+						InitInfo.PolygonCount+=polygonCount;
+						InitInfo.FullCellCount+=fullCellCount;
+					}
+					return null;
+				}
+			});
+			InitInfo.StageReadThreads=readThreads;
+			InitInfo.StageParseThreads=parseThreads;
+			
+			//等待所有阶段完成，任一阶段出错就中断所有线程
+			int stageCount=readThreads+parseThreads+1;
+			for(int i=0;i<stageCount;i++) {
+				try {
+					stages.take().get();
+				} catch(ExecutionException e) {
+					Throwable err=e.getCause();
+					throw err instanceof Exception?(Exception)err:new Exception(err);
+				}
+			}
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+			if(channel!=null) channel.close();
+		}
+		
+		if(InitInfo.GeometryCount==0){
+			throw new Exception("初始化传入的文件内没有数据");
+		}
+		
+		//统一处理empty那些图形
+		for(int i=0,iL=emptyGeoms.Count;i<iL;i++) {
+			int lineNo=emptyGeoms.LineNo[i];
+			int propId=emptyGeoms.PropId[i];
+			int fullPos=emptyGeoms.FullPos[i];
+			if(saveWkbsFile!=null) {
+				byte[] wkb=new WKBWriter().write(Factory.createPolygon());
+				fullPos=saveWkbsFile.WriteRecord(WKBS_Type_Empty, lineNo, -1, propList.get(propId), wkb, null, false);
+				Long hash=emptyHashes.get(i);
+				if(hash!=null) saveWkbsFile.WriteLineHash(hash, fullPos, 1);
+			}
+			features.Add(WKBS_Type_Empty, lineNo, fullPos, fullPos, propId, null, null, 0);
+		}
+		
+		if(saveWkbsFile!=null) {//写入 wkbs 文件结尾，属性字典、偏移表
+			saveWkbsFile.Finish();
+			data.WkbsRecordOffsets=saveWkbsFile.GetOffsets();
+		} else if(isWkbsFile) {
+			data.WkbsRecordOffsets=wkbsFile.Offsets;
+		}
+		__InitStoreFinish(data, polygons, features, propList.toArray(new String[0]));
+	}
+	/** init流水线中每批数据最多的条数、最多的字符数（wkbs为字节数） **/
+	static private final int InitBatchSize=256, InitBatchMaxChars=4*1024*1024;
+	/** 放入一批数据到队列，队列满了就等待，返回等待的耗时 **/
+	static private long __InitBatchPut(ArrayBlockingQueue<__InitBatch> queue, __InitBatch batch) throws Exception {
+		long t1=System.nanoTime();
+		queue.put(batch);
+		return System.nanoTime()-t1;
+	}
+	/** init流水线中交接的一批数据，为一个范围内连续的多条数据，提交时按RangeIdx、BatchIdx的顺序提交 **/
+	static private class __InitBatch {
+		public int RangeIdx, BatchIdx;
+		/** 是否是这个范围的最后一批 **/
+		public boolean Last;
+		public ArrayList<__InitItem> Items=new ArrayList<>();
+		/** 数据的字符数（wkbs为字节数） **/
+		public long Size;
+	}
+	/** init时使用的线程数量，SetInitUseThreadMax未设置时为cpu核心数 **/
+	private int __InitThreadCount() {
+		int cpu=Runtime.getRuntime().availableProcessors();
+		return Math.max(1, SetInitUseThreadMax>0?Math.min(SetInitUseThreadMax, cpu):cpu);
+	}
+	/** 用threadCount个线程的ExecutorService并行执行taskCount个任务，task参数为任务编号（从0开始按顺序分配给空闲的线程），每个任务执行时占用一个共享的init线程预算；等待所有任务完成，任一任务出错后中断其他任务，并抛出这个错误 **/
+	static private void __InitParallel(int threadCount, int taskCount, Func<Integer, Object> task) throws Exception {
+		ExecutorService pool=Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, taskCount)));
+		try {
+			ArrayList<Future<Object>> futures=new ArrayList<>();
+			for(int i=0;i<taskCount;i++) {
+				int idx=i;
+				futures.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						__InitBudgetAcquire();//和其他实例的init共用线程预算
+						try {
+							return task.Exec(idx);
+						} finally {
+							__InitBudgetRelease();
 						}
-						
-						InitInfo.PolygonCount+=polygonNum;
 					}
+				}));
+			}
+			for(Future<Object> future : futures) {
+				try {
+					future.get();
+				} catch(ExecutionException e) {
+					Throwable err=e.getCause();
+					throw err instanceof Exception?(Exception)err:new Exception(err);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	/**
+	 * 找到geojson数据的开始位置（`"features": [`的下一行），将后面的数据按换行符切分成多个字节范围，然后并行统计每个范围的行数，计算出每个范围第一行的行号，并找到结束位置（`]`打头的行）
+	 */
+	private __InitRange[] __InitSplitLines(FileChannel channel, int threadCount) throws Exception {
+		long t_fr=System.nanoTime();
+		long fileSize=channel.size();
+		
+		//顺序读取文件开头，等待开始标志
+		__LineReader reader=new __LineReader(channel, 0, fileSize);
+		int startLineNo=0;
+		while(true) {
+			String line=reader.Next();
+			if(line==null) {
+				throw new Exception("未识别到geojson|wkbs数据，请检查初始化传入的文件是否正确。"
+					+"注意：如果是geojson文件，要求里面数据必须是一行一条数据"
+					+"，第一条数据的上一行必须是`\"features\": [`，最后一条数据的下一行必须是`]`打头"
+					+"，否则不支持解析，可尝试用文本编辑器批量替换添加换行符。");
+			}
+			startLineNo++;
+			line=line.trim();
+			if(line.length()==0)continue;
+			int fIdx=line.indexOf("\"features\"");
+			if(fIdx==0 || fIdx>0 && fIdx>=line.length()-14){
+				if(!line.endsWith("[")){
+					throw new Exception("初始化传入的文件第"+startLineNo+"行风格不对，不支持处理此文件");
+				}
+				break;
+			}
+		}
+		
+		//切分成多个字节范围，边界对齐到换行符后面；范围比线程数多一些，处理快的线程可以多处理几个
+		long dataStart=reader.Position();
+		long dataSize=fileSize-dataStart;
+		int count=(int)Math.max(threadCount*4L, Math.min(dataSize/(4*1024*1024), 100000));
+		ArrayList<__InitRange> list=new ArrayList<>();
+		long start=dataStart;
+		byte[] buf=new byte[4096];
+		for(int i=1;i<=count && start<fileSize;i++) {
+			long end=i==count?fileSize:Math.max(start, dataStart+dataSize*i/count);
+			while(end<fileSize) {//找到下一个换行符
+				ByteBuffer bb=ByteBuffer.wrap(buf, 0, (int)Math.min(buf.length, fileSize-end));
+				int len=channel.read(bb, end);
+				if(len<=0) throw new Exception("读取文件失败");
+				int n=0;
+				while(n<len && buf[n]!='\n') n++;
+				end+=n;
+				if(n<len) {
+					end++;
+					break;
 				}
+			}
+			__InitRange range=new __InitRange();
+			range.Start=start;
+			range.End=end;
+			list.add(range);
+			start=end;
+		}
+		__InitRange[] ranges=list.toArray(new __InitRange[0]);
+		
+		//并行统计行数
+		__InitParallel(threadCount, ranges.length, new Func<Integer, Object>() {
+			@Override
+			public Object Exec(Integer idx) throws Exception {
+				ranges[idx].ScanLines(channel, fileSize);
 				return null;
 			}
-		};
+		});
+		
+		//计算行号，结束位置后面的范围全部丢弃
+		int lineNo=startLineNo+1;
+		for(int i=0;i<ranges.length;i++) {
+			__InitRange range=ranges[i];
+			range.LineNo=lineNo;
+			lineNo+=range.LineCount;
+			if(range.EndLine!=-1) {
+				range.LineCount=range.EndLine;
+				InitInfo.DurationN_FileRead+=System.nanoTime()-t_fr;
+				return Arrays.copyOf(ranges, i+1);
+			}
+		}
+		throw new Exception("初始化传入的文件未发现结束位置，可能文件已损坏");
+	}
+	/**
+	 * init时切分出来的一个数据范围：geojson为一段字节范围（按换行符对齐），wkbs为一段记录编号范围
+	 */
+	static private class __InitRange {
+		/** geojson文件中的字节范围[Start, End) **/
+		public long Start, End;
+		/** 第一行的行号，需要处理的行数 **/
+		public int LineNo, LineCount;
+		/** 结束行（`]`打头的行）在这个范围内是第几行（从0开始），没有为-1 **/
+		public int EndLine=-1;
+		/** wkbs文件中的记录编号范围[RecordStart, RecordEnd) **/
+		public int RecordStart, RecordEnd;
+		
+		/** 按记录编号切分wkbs文件 **/
+		static public __InitRange[] SplitRecords(int recordCount, int threadCount) {
+			int count=Math.max(1, Math.min(threadCount*4, recordCount/256));
+			__InitRange[] ranges=new __InitRange[count];
+			for(int i=0;i<count;i++) {
+				ranges[i]=new __InitRange();
+				ranges[i].RecordStart=(int)((long)recordCount*i/count);
+				ranges[i].RecordEnd=(int)((long)recordCount*(i+1)/count);
+			}
+			return ranges;
+		}
+		/** 统计这个范围内的行数（和BufferedReader.readLine一致，文件末尾没有换行符的也算一行），并找到结束行；只处理字节，无需解码成文本 **/
+		public void ScanLines(FileChannel channel, long fileSize) throws Exception {
+			byte[] buf=new byte[256*1024];
+			int lines=0;
+			boolean lineStart=true, hasLast=false;
+			for(long pos=Start;pos<End;) {
+				ByteBuffer bb=ByteBuffer.wrap(buf, 0, (int)Math.min(buf.length, End-pos));
+				int len=channel.read(bb, pos);
+				if(len<=0) throw new Exception("读取文件失败");
+				pos+=len;
+				for(int i=0;i<len;i++) {
+					byte b=buf[i];
+					if(b=='\n') {
+						lines++;
+						lineStart=true;
+						hasLast=false;
+						continue;
+					}
+					hasLast=true;
+					if(lineStart) {
+						if(b>=0 && b<=' ') continue;//和String.trim一致，跳过行首的空白字符
+						if(b==']' && EndLine==-1) {
+							EndLine=lines;
+						}
+						lineStart=false;
+					}
+				}
+			}
+			if(hasLast && End==fileSize) {
+				lines++;
+			}
+			LineCount=lines;
+		}
+	}
+	/** init时一条数据（geojson中的一行，或wkbs中的一条记录）的处理结果，按顺序提交后存入索引 **/
+	static private class __InitItem {
+		public int LineNo;
+		public String PropStr;
+		/** geojson中这一行的文本、geometry类型，解析后清除 **/
+		public String Line, TypeStr;
+		/** wkbs文件中的记录，geojson为null **/
+		public __WkbsRecord Rec;
+		/** 绑定了OnInitProgress时，提交时回调给CurrentLine_Text的文本 **/
+		public String ProgressText;
+		/** 空的图形 **/
+		public boolean Empty;
+		/** geojson中这一行的内容哈希值（LineHash），生成wkbs文件时才有 **/
+		public long Hash;
+		/** 有多个Polygon、需要保存到wkbs文件时，完整图形的wkb数据 **/
+		public byte[] ParentWkb;
+		/** 每个Polygon的外接矩形、是否是内部完整格子 **/
+		public Envelope[] Envs;
+		public boolean[] FullCells;
+		/** 每个Polygon需要保存到wkbs文件的wkb数据 **/
+		public byte[][] Wkbs;
+		/** 每个Polygon需要存到内存的数据 **/
+		public Object[] MemObjs;
+		public int WkbMemoryLen;
+	}
+	/**
+	 * 从FileChannel中读取一段字节范围内的文本行（utf-8），用的绝对位置读取，多个线程可以共享同一个FileChannel；行尾的\r会保留，需自行trim
+	 */
+	static private class __LineReader {
+		private final FileChannel Channel;
+		private final long End;
+		private long Pos;
+		private byte[] Buf=new byte[64*1024];
+		private int BufStart, BufEnd;
+		
+		public __LineReader(FileChannel channel, long start, long end) {
+			Channel=channel;
+			Pos=start;
+			End=end;
+		}
+		/** 下一行在文件中的位置 **/
+		public long Position() {
+			return Pos-(BufEnd-BufStart);
+		}
+		/** 读取下一行，没有数据了返回null **/
+		public String Next() throws Exception {
+			int scan=BufStart;
+			while(true) {
+				for(;scan<BufEnd;scan++) {
+					if(Buf[scan]=='\n') {
+						String line=new String(Buf, BufStart, scan-BufStart, StandardCharsets.UTF_8);
+						BufStart=scan+1;
+						return line;
+					}
+				}
+				if(Pos>=End) {//最后一行没有换行符
+					if(BufStart<BufEnd) {
+						String line=new String(Buf, BufStart, BufEnd-BufStart, StandardCharsets.UTF_8);
+						BufStart=BufEnd;
+						return line;
+					}
+					return null;
+				}
+				//读取更多数据，一行很长时扩大缓冲
+				if(BufStart>0) {
+					System.arraycopy(Buf, BufStart, Buf, 0, BufEnd-BufStart);
+					scan-=BufStart;
+					BufEnd-=BufStart;
+					BufStart=0;
+				}
+				if(BufEnd==Buf.length) {
+					Buf=Arrays.copyOf(Buf, Buf.length*2);
+				}
+				ByteBuffer bb=ByteBuffer.wrap(Buf, BufEnd, (int)Math.min(Buf.length-BufEnd, End-Pos));
+				int len=Channel.read(bb, Pos);
+				if(len<=0) throw new Exception("读取文件失败");
+				Pos+=len;
+				BufEnd+=len;
+			}
+		}
+	}
+	/** 初始化完成时，保存所有数据，并统计数据占用的内存 **/
+	private void __InitStoreFinish(__Dataset data, __GeoStore polygons, __GeoStore features, String[] props) throws Exception {
+		polygons.Trim();
+		features.Trim();
+		//jts的索引树里面每个Polygon多一个Integer对象
+		InitInfo.StoreMemory=polygons.MemorySize()+features.MemorySize()+(EnvelopeIndex_PackedHilbert.equals(SetEnvelopeIndexType)?0:16L*polygons.Count);
+		InitInfo.StoreMemorySaved=Math.max(0, polygons.MemorySize_HashMap()+features.MemorySize_HashMap()-InitInfo.StoreMemory);
+		
+		long t_PropIndex=System.nanoTime();
+		__PropIndex propIndex=new __PropIndex(props, features, null);
+		data.PropIndex=propIndex;
+		InitInfo.DurationN_PropIndex=System.nanoTime()-t_PropIndex;
+		
+		//所有数据都存好了，按属性值分区一次性生成索引树
+		long t_Index=System.nanoTime();
+		__PartitionIndex index=new __PartitionIndex(SetIndexPartitionKey, SetEnvelopeIndexType, polygons, props, propIndex, __InitThreadCount());
+		InitInfo.DurationN_StageIndex=System.nanoTime()-t_Index;
+		InitInfo.DurationN_Index+=InitInfo.DurationN_StageIndex;
+		InitInfo.IndexPartitions=index.toString();
+		InitInfo.EnvelopeIndexType=index.Type;
+		InitInfo.EnvelopeIndexMemory=index.EstimateSize();
 		
+		data.PropStrings=props;
+		data.PolygonStore=polygons;
+		data.FeatureStore=features;
+		data.EnvelopeIndex=index;
+	}
+	static private final String WKB_SP_Prop="|Prop:",WKB_SP_Pos="|Pos:",WKB_SP_WKB="|WKB:";
+	
+	/**
+	 * 从wkbs文件的索引分段中直接加载所有Polygon的外接矩形和属性，不读取和解析图形数据，初始化耗时只和索引大小有关；Init_StoreInMemory时会顺序读取wkb数据存入内存，但也无需解析图形
+	 */
+	private void __InitFromWkbsIndex(__Dataset data, __WkbsReader wkbsFile) throws Exception {
+		__GeoStore polygons=new __GeoStore(true, data.ReadFromMemory);
+		__GeoStore features=new __GeoStore(false, false);
+		__GeoStore emptyGeoms=new __GeoStore(false, false);
+		InitInfo.DataFromWkbsIndex=true;
 		
-		// 开启多线程处理读取的数据，留一个核打酱油
-		int[] threadCount=new int[] { Math.max(1, Math.min(SetInitUseThreadMax, Runtime.getRuntime().availableProcessors()-1)) };
-		InitInfo.UseThreadCount=threadCount[0];
-		for(int i=0;i<threadCount[0];i++) {
-			new Thread(new Runnable() {
+		ByteBuffer index=wkbsFile.Index;
+		int count=index.getInt();
+		byte[][] wkbs=null;
+		if(data.ReadFromMemory) {//内存中要存wkb数据，按记录编号切分成多个范围并行读取
+			long t_fr=System.nanoTime();
+			byte[][] wkbs_=wkbs=new byte[count][];
+			__InitRange[] ranges=__InitRange.SplitRecords(count, __InitThreadCount());
+			InitInfo.UseThreadCount=Math.min(ranges.length, __InitThreadCount());
+			__InitParallel(__InitThreadCount(), ranges.length, new Func<Integer, Object>() {
 				@Override
-				public void run() {
-					try {
-						ThreadExec.Exec(null);
-					} catch(Exception e) {
-						if(threadError[0]==null) {
-							threadError[0]=e;
+				public Object Exec(Integer val) throws Exception {
+					__InitRange range=ranges[val];
+					ByteBuffer buf=wkbsFile.ReadRecords(range.RecordStart, range.RecordEnd);
+					__WkbsRecord rec=new __WkbsRecord();
+					for(int idx=range.RecordStart;idx<range.RecordEnd;idx++) {
+						__WkbsReader.ReadRecord(buf, idx, rec);
+						if(rec.Type==WKBS_Type_Sub || rec.Type==WKBS_Type_Full) {
+							wkbs_[idx]=rec.Wkb;
+						}
+					}
+					return null;
+				}
+			});
+			InitInfo.DurationN_FileRead+=System.nanoTime()-t_fr;
+		}
+		for(int idx=0;idx<count;idx++) {
+			long r_t1=System.nanoTime();
+			byte type=index.get();
+			boolean fullCell=(type & WKBS_Flag_FullCell)!=0;
+			boolean deleted=(type & WKBS_Flag_Deleted)!=0;
+			type&=~(WKBS_Flag_FullCell | WKBS_Flag_Deleted);
+			int lineNo=index.getInt();
+			int fullIdx=index.getInt();
+			int propId=index.getInt();
+			Envelope env=null;
+			if(type==WKBS_Type_Sub || type==WKBS_Type_Full) {
+				env=new Envelope(index.getDouble(), index.getDouble(), index.getDouble(), index.getDouble());
+			}
+			if(deleted) {//已被增量更新删除的记录
+				continue;
+			}
+			String propStr=wkbsFile.Props[propId];
+			
+			byte[] wkb=null;
+			if(data.ReadFromMemory && env!=null) {//内存中要存的wkb数据，上面已经读取好了
+				wkb=wkbs[idx];
+				if(wkb==null) {
+					throw new Exception("wkbs文件索引和记录不一致，可能文件已损坏");
+				}
+			}
+			InitInfo.DurationN_FileParse+=System.nanoTime()-r_t1;
+			
+			InitInfo.CurrentLine_No=idx+1;
+			InitInfo.ProgressCommit.lazySet(idx+1);
+			InitInfo.CurrentLine_Text=WKBS_TypeNames[type]+"|Pos:"+lineNo+":"+fullIdx+":"+idx+"|Prop:"+propStr;
+			InitInfo.CurrentLine_Prop=propStr;
+			
+			//回调一下，顺带看看需不需要解析这条数据
+			if(OnInitProgress!=null) {
+				if(!OnInitProgress.Exec(InitInfo)) {
+					continue;
+				}
+			}
+			
+			long r_t3=System.nanoTime();
+			if(type!=WKBS_Type_Sub) {//非Sub图形，完整图形
+				InitInfo.GeometryCount++;
+				if(type==WKBS_Type_Empty) {//空的存一下属性，丢到下面统一处理
+					emptyGeoms.Add(type, lineNo, fullIdx, idx, propId, null, null, 0);
+					continue;
+				}
+				features.Add(type, lineNo, fullIdx, idx, propId, null, null, 0);//存好WKT查询数据，一个数据只存一条就行了
+				if(type==WKBS_Type_Parent) {//已经拆分了，上级完整图形无需再处理
+					continue;
+				}
+			}
+			
+			if(data.ReadFromMemory){//写入内存
+				if(InitInfo.WkbMemory==-1)InitInfo.WkbMemory=0;
+				InitInfo.WkbMemory+=wkb.length;
+			}
+			polygons.Add(type, lineNo, fullIdx, idx, propId, env, wkb, fullCell?GEO_Flag_FullCell:0);
+			if(fullCell) InitInfo.FullCellCount++;
+			
+			InitInfo.PolygonCount++;
+			InitInfo.ProgressPolygon.lazySet(InitInfo.PolygonCount);
+			InitInfo.DurationN_Index+=System.nanoTime()-r_t3;
+		}
+		
+		if(InitInfo.GeometryCount==0){
+			throw new Exception("初始化传入的文件内没有数据");
+		}
+		for(int i=0,iL=emptyGeoms.Count;i<iL;i++) {
+			features.Add(WKBS_Type_Empty, emptyGeoms.LineNo[i], emptyGeoms.FullPos[i], emptyGeoms.SubPos[i], emptyGeoms.PropId[i], null, null, 0);
+		}
+		
+		data.WkbsRecordOffsets=wkbsFile.Offsets;
+		__InitStoreFinish(data, polygons, features, wkbsFile.Props);
+	}
+	
+	
+	
+	/**
+	 * 属性索引：init完成时从属性字典中解析出常用字段（id、unique_id、pid、deep、name、ext_path），按属性编号存成列，并对id、pid、deep建立哈希索引，对ext_path建立相邻两字（2-gram）索引用于通配符查找；按这些字段筛选数据时无需遍历和处理所有属性字符串
+	 */
+	static private class __PropIndex {
+		/** 各字段的值，数组下标为属性编号；不存在或不是整数时为-1（字符串为null） **/
+		public long[] Id, UniqueId, Pid;
+		public int[] Deep;
+		public String[] Name, ExtPath;
+		
+		/** id、unique_id -> 属性编号列表 **/
+		public HashMap<Long, int[]> IdIndex=new HashMap<>();
+		/** pid -> 属性编号列表 **/
+		public HashMap<Long, int[]> PidIndex=new HashMap<>();
+		/** deep -> 属性编号列表 **/
+		public HashMap<Long, int[]> DeepIndex=new HashMap<>();
+		/** ext_path中相邻的两个字 -> 属性编号列表 **/
+		public HashMap<Long, int[]> ExtPathIndex=new HashMap<>();
+		
+		/** 属性编号对应的FeatureStore数据下标：FeatureIdxs中[FeatureStarts[propId], FeatureStarts[propId+1])这段 **/
+		public int[] FeatureStarts, FeatureIdxs;
+		
+		/** 上级的属性编号（id为pid、deep小1的那条），没有上级为-1 **/
+		public int[] Parent;
+		/** 是否能通过Parent逐级找到deep=0的顶级，上下级关系完整时坐标点按上下级查询可以直接推导出所有上级 **/
+		public boolean[] ChainOK;
+		
+		/** 所在的级别编号，按deep值从小到大编号，没有deep的为单独的一级（排在最前面）；DeepLevelCount为级别数量 **/
+		public int[] DeepLevel;
+		public int DeepLevelCount;
+		/** 已被增量更新删除了的属性编号，不参与索引和查找；没有删除时为null **/
+		public final boolean[] Removed;
+		
+		public __PropIndex(String[] props, __GeoStore features, boolean[] removed) {
+			int count=props.length;
+			Removed=removed;
+			Id=new long[count]; UniqueId=new long[count]; Pid=new long[count];
+			Deep=new int[count];
+			Name=new String[count]; ExtPath=new String[count];
+			for(int i=0;i<count;i++) {
+				String prop=props[i];
+				Id[i]=ParseLong(JsonValue(prop, "id"));
+				UniqueId[i]=ParseLong(JsonValue(prop, "unique_id"));
+				Pid[i]=ParseLong(JsonValue(prop, "pid"));
+				Deep[i]=(int)ParseLong(JsonValue(prop, "deep"));
+				Name[i]=JsonValue(prop, "name");
+				ExtPath[i]=JsonValue(prop, "ext_path");
+				if(removed!=null && removed[i]) {//已删除的不加入索引，也不会成为其他数据的上级
+					continue;
+				}
+				
+				if(Id[i]!=-1) add(IdIndex, Id[i], i);
+				if(UniqueId[i]!=-1) add(IdIndex, UniqueId[i], i);
+				if(Pid[i]!=-1) add(PidIndex, Pid[i], i);
+				if(Deep[i]!=-1) add(DeepIndex, (long)Deep[i], i);
+				String path=ExtPath[i];
+				if(path!=null) {
+					for(int n=1;n<path.length();n++) {
+						add(ExtPathIndex, ((long)path.charAt(n-1)<<16) | path.charAt(n), i);
+					}
+				}
+			}
+			trim(IdIndex); trim(PidIndex); trim(DeepIndex); trim(ExtPathIndex);
+			
+			FeatureStarts=new int[count+1];
+			for(int i=0;i<features.Count;i++) {
+				FeatureStarts[features.PropId[i]+1]++;
+			}
+			for(int i=0;i<count;i++) {
+				FeatureStarts[i+1]+=FeatureStarts[i];
+			}
+			FeatureIdxs=new int[features.Count];
+			int[] pos=Arrays.copyOf(FeatureStarts, count);
+			for(int i=0;i<features.Count;i++) {
+				FeatureIdxs[pos[features.PropId[i]]++]=i;
+			}
+			
+			//上下级关系，按deep从小到大逐级检查是否完整
+			Parent=new int[count];
+			ChainOK=new boolean[count];
+			int maxDeep=-1;
+			for(int i=0;i<count;i++) {
+				Parent[i]=-1;
+				if(Pid[i]!=-1 && Deep[i]>0) {
+					int[] arr=IdIndex.get(Pid[i]);
+					for(int n=0;arr!=null && n<arr.length;n++) {
+						if(Id[arr[n]]==Pid[i] && Deep[arr[n]]==Deep[i]-1) {
+							Parent[i]=arr[n];
+							break;
 						}
-					} finally {
-						synchronized (threadCount) { threadCount[0]--; }
 					}
 				}
-			}).start();
+				maxDeep=Math.max(maxDeep, Deep[i]);
+			}
+			for(int deep=0;deep<=maxDeep;deep++) {
+				for(int i=0;i<count;i++) {
+					if(Deep[i]==deep) {
+						ChainOK[i]=deep==0 || (Parent[i]!=-1 && ChainOK[Parent[i]]);
+					}
+				}
+			}
+			
+			//级别编号
+			int[] deeps=Arrays.copyOf(Deep, count);
+			Arrays.sort(deeps);
+			int levels=0;
+			for(int i=0;i<count;i++) {
+				if(i==0 || deeps[i]!=deeps[i-1]) deeps[levels++]=deeps[i];
+			}
+			DeepLevel=new int[count];
+			DeepLevelCount=levels;
+			for(int i=0;i<count;i++) {
+				DeepLevel[i]=Arrays.binarySearch(deeps, 0, levels, Deep[i]);
+			}
+		}
+		/** 往索引中添加一个属性编号，数组第一个值为数量；同一个属性编号按顺序添加的，重复的直接忽略 **/
+		static private void add(HashMap<Long, int[]> index, Long key, int propId) {
+			int[] arr=index.get(key);
+			if(arr==null) {
+				arr=new int[4];
+				index.put(key, arr);
+			} else if(arr[arr[0]]==propId) {
+				return;
+			} else if(arr[0]+1==arr.length) {
+				arr=Arrays.copyOf(arr, arr.length*2);
+				index.put(key, arr);
+			}
+			arr[++arr[0]]=propId;
+		}
+		static private void trim(HashMap<Long, int[]> index) {
+			for(Map.Entry<Long, int[]> kv : index.entrySet()) {
+				int[] arr=kv.getValue();
+				kv.setValue(Arrays.copyOfRange(arr, 1, arr[0]+1));
+			}
+		}
+		static private long ParseLong(String val) {
+			if(val==null) return -1;
+			try {
+				return Long.parseLong(val.trim());
+			} catch(NumberFormatException e) {
+				return -1;
+			}
+		}
+		
+		/** 按条件查找属性编号，先从最精确的索引中取出候选数据，再用列数据逐个核对；返回从小到大排好序的属性编号列表 **/
+		public int[] Find(PropWhere where) {
+			int[] cands=null;//为null时需要核对所有数据
+			String extCore=where.ExtPath==null?"":where.ExtPath.replace("*", "");
+			if(where.Id!=-1) {
+				cands=IdIndex.get(where.Id);
+			} else if(where.Pid!=-1) {
+				cands=PidIndex.get(where.Pid);
+			} else if(extCore.length()>1) {//取包含的数据最少的那两个字
+				for(int n=1;n<extCore.length();n++) {
+					int[] arr=ExtPathIndex.get(((long)extCore.charAt(n-1)<<16) | extCore.charAt(n));
+					if(arr==null || cands==null || arr.length<cands.length) {
+						cands=arr;
+					}
+					if(cands==null) break;
+				}
+			} else if(where.Deep!=-1) {
+				cands=DeepIndex.get((long)where.Deep);
+			} else {
+				cands=new int[Id.length];
+				for(int i=0;i<cands.length;i++) cands[i]=i;
+			}
+			if(cands==null) {
+				return new int[0];
+			}
+			
+			int[] propIds=new int[cands.length];
+			int count=0;
+			for(int propId : cands) {
+				if(Removed!=null && Removed[propId]) continue;
+				if(where.Id!=-1 && Id[propId]!=where.Id && UniqueId[propId]!=where.Id) continue;
+				if(where.Pid!=-1 && Pid[propId]!=where.Pid) continue;
+				if(where.Deep!=-1 && Deep[propId]!=where.Deep) continue;
+				if(where.ExtPath!=null && where.ExtPath.length()>0 && !where.ExtPathMatch(ExtPath[propId])) continue;
+				propIds[count++]=propId;
+			}
+			return Arrays.copyOf(propIds, count);
+		}
+	}
+	
+	/** 外接矩形索引查询时的回调，直接传入int数据编号；jts的索引树回调visitItem时拆箱后转给Visit **/
+	static private abstract class __IndexVisitor implements ItemVisitor {
+		public abstract void Visit(int idx);
+		
+		@Override
+		public void visitItem(Object item) {
+			Visit((Integer)item);
+		}
+	}
+	/**
+	 * 外接矩形索引树，索引里面存的是PolygonStore里面的数据编号；先Insert所有数据，然后Build一次，之后只读，多个线程可以同时查询。
+	 * 有三种实现，通过SetEnvelopeIndexType选择：jts的STRtree、jts的HPRtree、__PackedHilbertIndex
+	 */
+	static private abstract class __SpatialIndex {
+		/** 创建一个指定类型的索引树 **/
+		static public __SpatialIndex Create(String type) throws Exception {
+			if(EnvelopeIndex_STRtree.equals(type)) {
+				return new __STRtreeIndex();
+			}
+			if(EnvelopeIndex_HPRtree.equals(type)) {
+				return new __HPRtreeIndex();
+			}
+			if(EnvelopeIndex_PackedHilbert.equals(type)) {
+				return new __PackedHilbertIndex();
+			}
+			throw new Exception("SetEnvelopeIndexType不支持"+type+"，可选值："+EnvelopeIndex_STRtree+"、"+EnvelopeIndex_HPRtree+"、"+EnvelopeIndex_PackedHilbert);
+		}
+		/** 添加一条数据的外接矩形，Build前调用 **/
+		public abstract void Insert(double minX, double maxX, double minY, double maxY, int idx);
+		/** 生成索引树，之后不能再Insert **/
+		public abstract void Build();
+		/** 索引中的数据条数 **/
+		public abstract int Size();
+		/** 查询和env相交的数据，数据编号逐个回调给visitor **/
+		public abstract void Query(Envelope env, __IndexVisitor visitor);
+		/** 最近距离查找：把根节点加入队列 **/
+		public abstract void NearestRoot(int part, __NearestQueue queue);
+		/** 最近距离查找：展开队列中的一个节点（node、pos为加入队列时的值），子节点和数据按到坐标点的距离下限加入队列，超过maxDist的丢弃；envs为PolygonStore.Envs **/
+		public abstract void NearestExpand(Object node, int pos, double lng, double lat, double maxDist, int part, double[] envs, __NearestQueue queue);
+		/** 索引树占用的内存字节数，估算值 **/
+		public abstract long EstimateSize();
+	}
+	/** jts的STRtree：每条数据一个ItemBoundable+Envelope+Integer对象，查询时每条命中的数据都要拆箱 **/
+	static private class __STRtreeIndex extends __SpatialIndex {
+		private final STRtree Tree=new STRtree();
+		
+		@Override
+		public void Insert(double minX, double maxX, double minY, double maxY, int idx) {
+			Tree.insert(new Envelope(minX, maxX, minY, maxY), idx);
+		}
+		@Override
+		public void Build() {
+			Tree.build();
+		}
+		@Override
+		public int Size() {
+			return Tree.size();
+		}
+		@Override
+		public void Query(Envelope env, __IndexVisitor visitor) {
+			Tree.query(env, visitor);
+		}
+		@Override
+		public void NearestRoot(int part, __NearestQueue queue) {
+			queue.Add(0, this, Tree.getRoot(), -1, part);
+		}
+		@Override
+		public void NearestExpand(Object node, int pos, double lng, double lat, double maxDist, int part, double[] envs, __NearestQueue queue) {
+			for(Object child : ((AbstractNode)node).getChildBoundables()) {
+				Envelope env=(Envelope)((Boundable)child).getBounds();
+				double dist=DistanceMinToEnvelope(lng, lat, env.getMinX(), env.getMaxX(), env.getMinY(), env.getMaxY());
+				if(dist>maxDist) continue;
+				if(child instanceof ItemBoundable) {
+					queue.Add(dist, null, null, (Integer)((ItemBoundable)child).getItem(), part);
+				} else {
+					queue.Add(dist, this, child, -1, part);
+				}
+			}
+		}
+		@Override
+		public long EstimateSize() {
+			//每条数据：ItemBoundable 24 + Envelope 48 + Integer 16 + 子节点列表引用 8；每个节点（默认最多10个子节点）：AbstractNode+ArrayList+Envelope 约150
+			int size=Size();
+			return size*96L+(size/8+1)*150L;
+		}
+	}
+	/** jts的HPRtree：按希尔伯特曲线排序打包的R树，节点外接矩形存在double数组中，但每条数据还是一个Item+Envelope+Integer对象；不能按节点遍历，最近距离查找时会把所有数据直接加入队列 **/
+	static private class __HPRtreeIndex extends __SpatialIndex {
+		private final HPRtree Tree=new HPRtree();
+		private final Envelope Bounds=new Envelope();
+		
+		@Override
+		public void Insert(double minX, double maxX, double minY, double maxY, int idx) {
+			Envelope env=new Envelope(minX, maxX, minY, maxY);
+			Bounds.expandToInclude(env);
+			Tree.insert(env, idx);
+		}
+		@Override
+		public void Build() {
+			Tree.build();
+		}
+		@Override
+		public int Size() {
+			return Tree.size();
+		}
+		@Override
+		public void Query(Envelope env, __IndexVisitor visitor) {
+			Tree.query(env, visitor);
 		}
-		while(threadCount[0]>0) {
-			try { Thread.sleep(10); }catch (Exception e) { }
+		@Override
+		public void NearestRoot(int part, __NearestQueue queue) {
+			if(Size()>0) {
+				queue.Add(0, this, null, -1, part);
+			}
+		}
+		@Override
+		public void NearestExpand(Object node, int pos, double lng, double lat, double maxDist, int part, double[] envs, __NearestQueue queue) {
+			Tree.query(Bounds, new ItemVisitor() {
+				@Override
+				public void visitItem(Object item) {
+					int idx=(Integer)item, n=idx*4;
+					double dist=DistanceMinToEnvelope(lng, lat, envs[n], envs[n+1], envs[n+2], envs[n+3]);
+					if(dist<=maxDist) {
+						queue.Add(dist, null, null, idx, part);
+					}
+				}
+			});
+		}
+		@Override
+		public long EstimateSize() {
+			//每条数据：Item 24 + Envelope 48 + Integer 16 + 列表引用 8；节点（默认最多16个子节点）的外接矩形 4个double
+			int size=Size();
+			return size*96L+(size/15+1)*32L;
+		}
+	}
+	/**
+	 * 静态的紧凑希尔伯特R树（和flatbush相同的结构）：所有外接矩形按中心点在希尔伯特曲线上的位置排序，每NodeSize个打包成一个上级节点，逐级往上直到只剩一个根节点。
+	 * <br>所有节点的外接矩形存到一个double数组，子节点的开始位置、数据编号存到一个int数组，没有任何对象，内存占用约为STRtree的1/3；查询时直接递归遍历数组，不会创建任何对象，命中的数据编号直接回调visitor.Visit，无需拆箱
+	 * <pre>
+	 * 节点位置：数据（叶子）在[0, LevelEnds[0])，第1级节点在[LevelEnds[0], LevelEnds[1])，以此类推，最后一个位置为根节点
+	 * Boxes[pos*4...]：minX maxX minY maxY，和PolygonStore.Envs的顺序一致
+	 * Indices[pos]：数据为数据编号，上级节点为第一个子节点的位置（子节点是连续的，最多NodeSize个）
+	 * </pre>
+	 */
+	static private class __PackedHilbertIndex extends __SpatialIndex {
+		static private final int NodeSize=16;
+		private double[] Boxes=new double[64];
+		private int[] Indices=new int[16];
+		private int Count;
+		/** 每一级节点的结束位置，[0]为数据的条数，最后一个为节点总数 **/
+		private int[] LevelEnds;
+		
+		@Override
+		public void Insert(double minX, double maxX, double minY, double maxY, int idx) {
+			if(Count==Indices.length) {
+				Indices=Arrays.copyOf(Indices, Count*2);
+				Boxes=Arrays.copyOf(Boxes, Count*2*4);
+			}
+			int n=Count*4;
+			Boxes[n]=minX; Boxes[n+1]=maxX; Boxes[n+2]=minY; Boxes[n+3]=maxY;
+			Indices[Count++]=idx;
+		}
+		@Override
+		public void Build() {
+			int count=Count;
+			//每一级的节点数
+			int[] ends=new int[32];
+			int levels=0, total=count, num=count;
+			ends[levels++]=count;
+			while(num>1 || levels==1 && count>0) {
+				num=(num+NodeSize-1)/NodeSize;
+				total+=num;
+				ends[levels++]=total;
+			}
+			LevelEnds=Arrays.copyOf(ends, levels);
+			
+			//所有数据按外接矩形中心点在希尔伯特曲线上的位置排序
+			double minX=Double.MAX_VALUE, maxX=-Double.MAX_VALUE, minY=Double.MAX_VALUE, maxY=-Double.MAX_VALUE;
+			for(int i=0;i<count;i++) {
+				int n=i*4;
+				minX=Math.min(minX, Boxes[n]); maxX=Math.max(maxX, Boxes[n+1]);
+				minY=Math.min(minY, Boxes[n+2]); maxY=Math.max(maxY, Boxes[n+3]);
+			}
+			double scaleX=maxX>minX?32767/(maxX-minX):0, scaleY=maxY>minY?32767/(maxY-minY):0;
+			long[] order=new long[count];
+			for(int i=0;i<count;i++) {
+				int n=i*4;
+				int x=(int)(((Boxes[n]+Boxes[n+1])/2-minX)*scaleX), y=(int)(((Boxes[n+2]+Boxes[n+3])/2-minY)*scaleY);
+				order[i]=((long)HilbertIndex(x, y)<<32) | i;
+			}
+			Arrays.sort(order);
+			
+			double[] boxes=new double[total*4];
+			int[] indices=new int[total];
+			for(int i=0;i<count;i++) {
+				int src=(int)order[i];
+				System.arraycopy(Boxes, src*4, boxes, i*4, 4);
+				indices[i]=Indices[src];
+			}
+			//逐级往上打包，每个节点的外接矩形为子节点的并集
+			for(int level=1;level<levels;level++) {
+				int pos=LevelEnds[level-1];
+				for(int child=level==1?0:LevelEnds[level-2];child<LevelEnds[level-1];child+=NodeSize,pos++) {
+					int end=Math.min(child+NodeSize, LevelEnds[level-1]), n=pos*4;
+					boxes[n]=Double.MAX_VALUE; boxes[n+1]=-Double.MAX_VALUE; boxes[n+2]=Double.MAX_VALUE; boxes[n+3]=-Double.MAX_VALUE;
+					for(int c=child;c<end;c++) {
+						int m=c*4;
+						boxes[n]=Math.min(boxes[n], boxes[m]); boxes[n+1]=Math.max(boxes[n+1], boxes[m+1]);
+						boxes[n+2]=Math.min(boxes[n+2], boxes[m+2]); boxes[n+3]=Math.max(boxes[n+3], boxes[m+3]);
+					}
+					indices[pos]=child;
+				}
+			}
+			Boxes=boxes;
+			Indices=indices;
+		}
+		@Override
+		public int Size() {
+			return Count;
+		}
+		@Override
+		public void Query(Envelope env, __IndexVisitor visitor) {
+			if(Count==0 || env.isNull()) return;
+			int top=LevelEnds.length-1;
+			__Query(LevelEnds[top]-1, top, env.getMinX(), env.getMaxX(), env.getMinY(), env.getMaxY(), visitor);
+		}
+		private void __Query(int start, int level, double minX, double maxX, double minY, double maxY, __IndexVisitor visitor) {
+			int end=level==LevelEnds.length-1?start+1:Math.min(start+NodeSize, LevelEnds[level]);
+			for(int pos=start;pos<end;pos++) {
+				int n=pos*4;
+				if(Boxes[n]>maxX || Boxes[n+1]<minX || Boxes[n+2]>maxY || Boxes[n+3]<minY) continue;
+				if(level==0) {
+					visitor.Visit(Indices[pos]);
+				} else {
+					__Query(Indices[pos], level-1, minX, maxX, minY, maxY, visitor);
+				}
+			}
+		}
+		@Override
+		public void NearestRoot(int part, __NearestQueue queue) {
+			if(Count>0) {
+				queue.Add(0, this, null, LevelEnds[LevelEnds.length-1]-1, part);
+			}
+		}
+		@Override
+		public void NearestExpand(Object node, int pos, double lng, double lat, double maxDist, int part, double[] envs, __NearestQueue queue) {
+			int level=1;
+			while(pos>=LevelEnds[level]) level++;
+			int start=Indices[pos], end=Math.min(start+NodeSize, LevelEnds[level-1]);
+			for(int c=start;c<end;c++) {
+				int n=c*4;
+				double dist=DistanceMinToEnvelope(lng, lat, Boxes[n], Boxes[n+1], Boxes[n+2], Boxes[n+3]);
+				if(dist>maxDist) continue;
+				if(level==1) {
+					queue.Add(dist, null, null, Indices[c], part);
+				} else {
+					queue.Add(dist, this, null, c, part);
+				}
+			}
+		}
+		@Override
+		public long EstimateSize() {
+			return Boxes.length*8L+Indices.length*4L+64;
+		}
+	}
+	
+	/**
+	 * 按属性值分区的外接矩形索引，每个分区一棵索引树（SetEnvelopeIndexType），索引里面存的是PolygonStore里面的数据编号；查询时可以只查询指定的分区
+	 */
+	static private class __PartitionIndex {
+		/** 分区的属性名，为空时不分区，只有一个分区 **/
+		public final String Key;
+		/** 索引树的类型，为EnvelopeIndex_*值 **/
+		public final String Type;
+		/** 每个分区的属性值，属性中没有这个值的数据分区值为空字符串 **/
+		public final String[] Values;
+		public final __SpatialIndex[] Trees;
+		/** 增量更新后新增的Polygon（数据编号>=BaseCount）单独的索引树，每个分区一棵，没有新增的为null；没有进行过增量更新时整个为null **/
+		public final __SpatialIndex[] DeltaTrees;
+		/** Trees中包含的Polygon数据编号范围[0, BaseCount) **/
+		public final int BaseCount;
+		/** 每个分区内的Polygon数量 **/
+		public final int[] Counts;
+		/** 每个属性编号所在的分区 **/
+		public final int[] PropParts;
+		/** 分区内的数据都是同一级时为这一级的级别编号（__PropIndex.DeepLevel），否则为-1 **/
+		public final int[] PartLevels;
+		/** 按deep分区时，每一级的分区（用于Set_Partitions），按deep从小到大排序；不是按deep分区的为null **/
+		public String[][] DeepLevels;
+		
+		/** 从polygons中一次性生成每个分区的索引，多个分区时用threadCount个线程并行生成 **/
+		public __PartitionIndex(String key, String type, __GeoStore polygons, String[] props, __PropIndex propIndex, int threadCount) throws Exception {
+			this(key, type, null, polygons, props, propIndex, threadCount);
+		}
+		/** 增量更新后生成新的索引：base中原有的索引树直接共用，只给新增的Polygon生成小的索引树；已删除的Polygon留在原有的索引树中，查询时根据数据标记跳过 **/
+		public __PartitionIndex(__PartitionIndex base, __GeoStore polygons, String[] props, __PropIndex propIndex) throws Exception {
+			this(base.Key, base.Type, base, polygons, props, propIndex, 1);
+		}
+		private __PartitionIndex(String key, String type, __PartitionIndex base, __GeoStore polygons, String[] props, __PropIndex propIndex, int threadCount) throws Exception {
+			Key=key==null?"":key;
+			Type=type;
+			int[] propParts=new int[props.length];
+			if(Key.length()==0) {
+				Values=new String[] { "" };
+			} else {
+				//每个属性编号对应的分区，已有的分区顺序保持不变
+				HashMap<String, Integer> parts=new HashMap<>();
+				ArrayList<String> values=new ArrayList<>();
+				for(int i=0;base!=null && i<base.Values.length;i++) {
+					parts.put(base.Values[i], i);
+					values.add(base.Values[i]);
+				}
+				for(int i=0;i<props.length;i++) {
+					String val=JsonValue(props[i], Key);
+					if(val==null) val="";
+					Integer part=parts.get(val);
+					if(part==null) {
+						part=values.size();
+						parts.put(val, part);
+						values.add(val);
+					}
+					propParts[i]=part;
+				}
+				Values=values.toArray(new String[0]);
+			}
+			Trees=new __SpatialIndex[Values.length];
+			Counts=new int[Values.length];
+			BaseCount=base==null?polygons.Count:base.BaseCount;
+			DeltaTrees=base==null?null:new __SpatialIndex[Values.length];
+			__SpatialIndex[] builds=base==null?Trees:DeltaTrees;
+			for(int i=0;i<Trees.length;i++) {
+				if(base!=null && i<base.Trees.length) {
+					Trees[i]=base.Trees[i];
+				} else {
+					Trees[i]=__SpatialIndex.Create(Type);
+				}
+				if(base!=null) DeltaTrees[i]=__SpatialIndex.Create(Type);
+			}
+			double[] envs=polygons.Envs;
+			for(int i=0;i<polygons.Count;i++) {
+				if((polygons.Flags[i] & GEO_Flag_Deleted)!=0) continue;
+				int part=propParts[polygons.PropId[i]], n=i*4;
+				if(i>=BaseCount || base==null) {
+					builds[part].Insert(envs[n], envs[n+1], envs[n+2], envs[n+3], i);
+				}
+				Counts[part]++;
+			}
+			//立即生成索引树，每个分区的索引树互不相关，并行生成
+			__InitParallel(threadCount, Trees.length, new Func<Integer, Object>() {
+				@Override
+				public Object Exec(Integer idx) throws Exception {
+					if(base==null || idx>=base.Trees.length) {//共用的索引树已经生成好了
+						Trees[idx].Build();
+					}
+					if(DeltaTrees!=null) {
+						if(DeltaTrees[idx].Size()==0) {
+							DeltaTrees[idx]=null;
+						} else {
+							DeltaTrees[idx].Build();
+						}
+					}
+					return null;
+				}
+			});
+			PropParts=propParts;
+			PartLevels=new int[Values.length];
+			Arrays.fill(PartLevels, -2);
+			for(int i=0;i<props.length;i++) {
+				int part=propParts[i], level=propIndex.DeepLevel[i];
+				PartLevels[part]=PartLevels[part]==-2 || PartLevels[part]==level?level:-1;
+			}
+			for(int i=0;i<PartLevels.length;i++) {
+				if(PartLevels[i]==-2) PartLevels[i]=-1;
+			}
+			
+			if(Key.equals("deep")) {
+				ArrayList<Integer> deeps=new ArrayList<>();
+				for(String val : Values) {
+					try {
+						deeps.add(Integer.parseInt(val));
+					} catch(NumberFormatException e) {
+						deeps=null;
+						break;
+					}
+				}
+				if(deeps!=null) {
+					deeps.sort(null);
+					DeepLevels=new String[deeps.size()][];
+					for(int i=0;i<DeepLevels.length;i++) {
+						DeepLevels[i]=new String[] { deeps.get(i)+"" };
+					}
+				}
+			}
+		}
+		/** 查询和env相交的数据，partitions为null时查询所有分区，否则只查询这些分区 **/
+		public void Query(Envelope env, __IndexVisitor visitor, String[] partitions) throws Exception {
+			if(partitions!=null && Key.length()==0) {
+				throw new Exception("Set_Partitions无效，init前未设置SetIndexPartitionKey，索引未分区");
+			}
+			for(int i=0;i<Trees.length;i++) {
+				if(partitions!=null) {
+					boolean find=false;
+					for(String val : partitions) {
+						if(Values[i].equals(val)) {
+							find=true;
+							break;
+						}
+					}
+					if(!find) continue;
+				}
+				Trees[i].Query(env, visitor);
+				if(DeltaTrees!=null && DeltaTrees[i]!=null) {
+					DeltaTrees[i].Query(env, visitor);
+				}
+			}
+		}
+		/** 所有索引树占用的内存字节数，估算值 **/
+		public long EstimateSize() {
+			long size=0;
+			for(int i=0;i<Trees.length;i++) {
+				size+=Trees[i].EstimateSize();
+				if(DeltaTrees!=null && DeltaTrees[i]!=null) {
+					size+=DeltaTrees[i].EstimateSize();
+				}
+			}
+			return size;
+		}
+		@Override
+		public String toString() {
+			if(Key.length()==0) return "";
+			StringBuilder str=new StringBuilder(Key+" "+Values.length+"个分区");
+			for(int i=0;i<Values.length;i++) {
+				str.append(i==0?"：":"，").append(Values[i].length()==0?"(无)":Values[i]).append("=").append(Counts[i]).append("个");
+			}
+			return str.toString();
+		}
+	}
+	
+	/** 数据标记：Polygon是一个和外接矩形完全相同的矩形（网格拆分出来的内部完整格子），坐标点只要在外接矩形内就一定在图形内 **/
+	static private final int GEO_Flag_FullCell=1;
+	/** 数据标记：Polygon已被增量更新删除，还留在原有的索引树中，查询时跳过 **/
+	static private final int GEO_Flag_Deleted=2;
+	/**
+	 * 图形数据的紧凑存储，每条数据的各个字段分别存到基本类型数组里面（数组下标为数据编号），代替每条数据一个HashMap，大幅减少内存占用，查询时也无需再解析位置字符串
+	 */
+	static private class __GeoStore {
+		/** 数据条数 **/
+		public int Count;
+		/** 数据类型，为WKBS_Type_*值 **/
+		public byte[] Type;
+		/** 数据在geojson文件中的行号，同一个图形拆分出来的Polygon行号相同 **/
+		public int[] LineNo;
+		/** 完整图形在wkbs文件中的记录编号 **/
+		public int[] FullPos;
+		/** 这条数据在wkbs文件中的记录编号 **/
+		public int[] SubPos;
+		/** 属性编号，为PropStrings的数组下标 **/
+		public int[] PropId;
+		/** 数据标记，GEO_Flag_* **/
+		public byte[] Flags;
+		/** 外接矩形，每条数据4个值：minX maxX minY maxY；不存外接矩形时为null **/
+		public double[] Envs;
+		/** Init_StoreInMemory时存的wkb数据（byte[]），或者直接存的图形对象（Polygon）；不存时为null **/
+		public Object[] Wkbs;
+		
+		public __GeoStore(boolean hasEnv, boolean hasWkb) {
+			int size=16;
+			Type=new byte[size];
+			LineNo=new int[size];
+			FullPos=new int[size];
+			SubPos=new int[size];
+			PropId=new int[size];
+			Flags=new byte[size];
+			if(hasEnv) Envs=new double[size*4];
+			if(hasWkb) Wkbs=new Object[size];
+		}
+		/** 添加一条数据，返回数据编号 **/
+		synchronized public int Add(byte type, int lineNo, int fullPos, int subPos, int propId, Envelope env, Object wkb, int flags) {
+			if(Count==Type.length) {
+				resize(Count*2);
+			}
+			int idx=Count++;
+			Type[idx]=type;
+			LineNo[idx]=lineNo;
+			FullPos[idx]=fullPos;
+			SubPos[idx]=subPos;
+			PropId[idx]=propId;
+			Flags[idx]=(byte)flags;
+			if(Envs!=null) {
+				int i=idx*4;
+				Envs[i]=env.getMinX();
+				Envs[i+1]=env.getMaxX();
+				Envs[i+2]=env.getMinY();
+				Envs[i+3]=env.getMaxY();
+			}
+			if(Wkbs!=null) {
+				Wkbs[idx]=wkb;
+			}
+			return idx;
+		}
+		private void resize(int size) {
+			Type=Arrays.copyOf(Type, size);
+			LineNo=Arrays.copyOf(LineNo, size);
+			FullPos=Arrays.copyOf(FullPos, size);
+			SubPos=Arrays.copyOf(SubPos, size);
+			PropId=Arrays.copyOf(PropId, size);
+			Flags=Arrays.copyOf(Flags, size);
+			if(Envs!=null) Envs=Arrays.copyOf(Envs, size*4);
+			if(Wkbs!=null) Wkbs=Arrays.copyOf(Wkbs, size);
+		}
+		/** 添加完成后，去掉数组多余的空间 **/
+		public void Trim() {
+			if(Count!=Type.length) {
+				resize(Count);
+			}
+		}
+		/** 复制一份，数据编号不变，增量更新时在复制出来的上面修改，不影响正在使用的数据 **/
+		public __GeoStore Copy(int extra) {
+			__GeoStore store=new __GeoStore(Envs!=null, Wkbs!=null);
+			store.Count=Count;
+			store.Type=Type; store.LineNo=LineNo; store.FullPos=FullPos; store.SubPos=SubPos;
+			store.PropId=PropId; store.Flags=Flags; store.Envs=Envs; store.Wkbs=Wkbs;
+			store.resize(Math.max(16, Count+extra));
+			return store;
+		}
+		/** 每行数据grid拆分后的数据在wkbs里面的记录编号 **/
+		public HashMap<Integer, ArrayList<Integer>> LineSubsPos() {
+			HashMap<Integer, ArrayList<Integer>> map=new HashMap<>();
+			for(int i=0;i<Count;i++) {
+				if((Flags[i] & GEO_Flag_Deleted)!=0) continue;
+				ArrayList<Integer> subs=map.get(LineNo[i]);
+				if(subs==null) {
+					subs=new ArrayList<>();
+					map.put(LineNo[i], subs);
+				}
+				subs.add(SubPos[i]);
+			}
+			return map;
+		}
+		/** 数组占用的内存字节数 **/
+		public long MemorySize() {
+			long size=2*ArraySize(1, Type.length)+4*ArraySize(4, LineNo.length);
+			if(Envs!=null) size+=ArraySize(8, Envs.length);
+			if(Wkbs!=null) size+=ArraySize(4, Wkbs.length);
+			return size;
+		}
+		/** 估算每条数据使用一个HashMap存储（prop、wkb、wkbPos "行号:parent:sub"字符串）时占用的内存字节数 **/
+		public long MemorySize_HashMap() {
+			long size=0;
+			for(int i=0;i<Count;i++) {
+				int len=(LineNo[i]+":"+FullPos[i]+":"+SubPos[i]).length();
+				//HashMap对象+16个桶的数组+3个Node+wkbPos字符串
+				size+=48+ArraySize(4, 16)+3*32+24+ArraySize(1, len);
+			}
+			return size;
+		}
+		static private long ArraySize(int itemSize, int length) {
+			return (16L+(long)itemSize*length+7)/8*8;
+		}
+	}
+	/**
+	 * 检测结构化数据文件是否有效，v1版本的文本格式文件也算有效（初始化时会自动转换成v2版本）
+	 */
+	private boolean AvailableWkbsFile(String path) {
+		File file=new File(path);
+		if(!file.exists())return false;
+		try(RandomAccessFile in=new RandomAccessFile(path, "r")) {
+			byte[] buffer=new byte[8*1024];
+			int len=in.read(buffer);
+			String txt=new String(buffer, 0, Math.max(0, len), "utf-8");
+			if(!txt.contains("@GridFactor: "+SetGridFactor+"\n")) {
+				return false;
+			}
+			if(txt.contains("@Version: "+Version+"\n")) {
+				byte[] end=new byte[WKBS_EndMagic.length];
+				in.seek(file.length()-end.length);
+				in.readFully(end);
+				return Arrays.equals(end, WKBS_EndMagic);// 成功写入了文件尾
+			}
+			if(txt.contains("@Version: 1.0\n")) {
+				in.seek(file.length()-1);
+				return in.read()==']';// 成功写入了结尾符号
+			}
+			return false;
+		}catch (Exception e) {
+			return false;
+		}
+	}
+	/**
+	 * 读取wkbs文件的格式版本：1为v1文本格式，2为v2二进制格式，0为无法识别
+	 */
+	static private int WkbsFileVersion(String path) throws Exception {
+		try(FileInputStream in=new FileInputStream(path)) {
+			byte[] buffer=new byte[8*1024];
+			int len=in.read(buffer);
+			String txt=new String(buffer, 0, Math.max(0, len), "utf-8");
+			if(txt.contains("@Version: "+Version+"\n")) {
+				return 2;
+			}
+			if(txt.contains("@Version: 1.0\n")) {
+				return 1;
+			}
+			return 0;
+		}
+	}
+	/**
+	 * 一份完整的已初始化数据（索引、图形数据、属性字典、wkbs文件），init或重新加载时整体生成一份新的，生成好后再原子替换掉正在使用的那份。
+	 * 查询时先Acquire增加引用计数，查询完成后Release；被替换掉的数据等所有正在进行的查询都Release后才关闭文件、释放内存映射，因此替换过程中查询不会中断，也不会读到新旧混合的数据
+	 */
+	static private class __Dataset {
+		public boolean ReadFromMemory;
+		public String WkbsFilePath="";
+		public __PartitionIndex EnvelopeIndex; //所有图形的外接矩形索引（按属性值分区的STRtree），索引里面存的是PolygonStore里面的数据编号
+		public __GeoStore PolygonStore; //grid拆分后的所有Polygon数据
+		public __GeoStore FeatureStore; //WKT查询时需要读取的完整图形数据列表，一个图形一条
+		public String[] PropStrings; //所有图形的属性字典，数组下标为属性编号
+		public __PropIndex PropIndex; //属性字典中常用字段的列存储和索引，按属性筛选数据时使用
+		public long[] WkbsRecordOffsets; //wkbs里面每条记录在文件中的位置，数组下标为记录编号
+		public __WkbsMmap WkbsMmap; //Init_StoreInWkbsFile时wkbs文件的内存映射
+		public FileChannel WkbsFile; //Init_StoreInWkbsFile时不用内存映射，共享的文件通道，按绝对位置读取，线程安全
+		public __GeometryCache GeometryCache; //已解码的Polygon图形缓存
+		
+		/** 引用计数，初始的1为Data字段本身持有的引用 **/
+		private final AtomicInteger Refs=new AtomicInteger(1);
+		/** 增加一次引用，已经释放了的返回false **/
+		public boolean Acquire() {
+			while(true) {
+				int n=Refs.get();
+				if(n<=0) return false;
+				if(Refs.compareAndSet(n, n+1)) return true;
+			}
+		}
+		/** 减少一次引用，没有引用后关闭文件，内存映射交给gc回收 **/
+		public void Release() {
+			if(Refs.decrementAndGet()!=0) return;
+			try { if(WkbsFile!=null) WkbsFile.close(); } catch(Exception e) {}
+			WkbsFile=null;
+			WkbsMmap=null;
+			GeometryCache=null;
+		}
+		
+		/** 从wkbs文件中读取一条记录的wkb数据，绑定到locator；idx为wkbs文件中的记录编号 **/
+		public void BindWkb(__WkbPointLocator locator, int idx) throws Exception {
+			__WkbsMmap mmap=WkbsMmap;
+			if(mmap!=null) {
+				mmap.Bind(locator, WkbsRecordOffsets[idx]);
+				return;
+			}
+			locator.Bind(__WkbsReader.ReadWkb(WkbsFile, WkbsRecordOffsets[idx]), 0);
+		}
+		/** 从wkbs文件中读取一条wkb数据，idx为wkbs文件中的记录编号；有内存映射时直接返回映射内存中的数据，不进行复制 **/
+		public InStream ReadWkb(int idx) throws Exception {
+			__WkbsMmap mmap=WkbsMmap;
+			if(mmap!=null) {
+				return new __ByteBufferInStream(mmap.Wkb(WkbsRecordOffsets[idx]));
+			}
+			return new ByteArrayInStream(__WkbsReader.ReadWkb(WkbsFile, WkbsRecordOffsets[idx]));
+		}
+	}
+	/** 取当前正在使用的数据快照，只用于读取内存中不会变的数据（属性字典等），不会读取文件 **/
+	private __Dataset GetData() throws Exception {
+		if(InitLock[0]!=2 && SetQueryWaitInitTimeout>0) {//等待数据就绪
+			if(!WaitInit(SetQueryWaitInitTimeout) && InitLock[0]!=3) {
+				throw new Exception("等待Init完成超时（"+SetQueryWaitInitTimeout+"ms），请稍后再来进行查询调用");
+			}
+		}
+		CheckInitIsOK();
+		__Dataset data=Data;
+		if(data==null) {
+			throw new Exception("需要先Init完成后，再来进行查询调用");
+		}
+		return data;
+	}
+	/** 取当前正在使用的数据快照并增加引用，用完后必须调用Release；获取时刚好被替换掉了就重新获取新的 **/
+	private __Dataset AcquireData() throws Exception {
+		while(true) {
+			__Dataset data=GetData();
+			if(data.Acquire()) {
+				return data;
+			}
+		}
+	}
+	
+	
+	
+	/** wkbs文件的文本头，用文本编辑器打开文件也能看到这些信息 **/
+	static private String WkbsHeaderText(String dataFilePath, int gridFactor) {
+		return "/*******************"
+			+"\n本wkbs文件是由 "+AreaCityQuery.class.getTypeName()+" 生成，为专用的结构化数据文件，用于边界图形数据加速解析。"
+			+"\n@Version: "+Version
+			+"\n@GridFactor: "+gridFactor
+			+"\n@数据文件: "+dataFilePath
+			+"\n@生成时间: "+new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())
+			+"\n@文件格式: 文本头+二进制数据（记录区、属性字典、记录偏移表、分段目录、文件尾），不可用文本编辑器修改"
+			+"\n"
+			+"\nGitHub: https://github.com/xiangyuecn/AreaCity-Query-Geometry （github可换成gitee）"
+			+"\n省市区县乡镇区划边界数据: https://github.com/xiangyuecn/AreaCity-JsSpider-StatsGov （github可换成gitee）"
+			+"\n*******************/"
+			+"\n";
+	}
+	
+	/**
+	 * wkbs文件的只读内存映射，初始化完成后映射一次，查询时直接从映射的内存中读取记录，数据由操作系统的页缓存管理，不占用Java堆内存。
+	 * <br>单个映射最大2GB，超过2GB的文件会按记录边界拆分成多段映射，保证每条记录都完整的位于一段映射内。本对象线程安全。
+	 */
+	static private class __WkbsMmap {
+		static public __WkbsMmap Map(String path, long[] offsets) throws Exception {
+			__WkbsMmap mmap=new __WkbsMmap();
+			ArrayList<Long> starts=new ArrayList<>();
+			ArrayList<ByteBuffer> bufs=new ArrayList<>();
+			try(FileChannel ch=FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+				long start=0, end=0;
+				if(offsets.length>0) {//只映射记录区
+					int last=offsets.length-1;
+					ByteBuffer len=ByteBuffer.allocate(4);
+					ch.read(len, offsets[last]+WKBS_RecordHeadLen-4);
+					len.flip();
+					start=offsets[0];
+					end=offsets[last]+WKBS_RecordHeadLen+len.getInt();
+				}
+				while(start<end) {
+					long chunkEnd=Math.min(end, start+MaxChunkSize);
+					if(chunkEnd<end) {//不能把一条记录切成两半，退回到这个位置之前最后一条记录的开头
+						int i=Arrays.binarySearch(offsets, chunkEnd);
+						if(i<0) i=-i-2;
+						if(offsets[i]<=start) {
+							throw new Exception("wkbs文件中存在超过2GB的记录");
+						}
+						chunkEnd=offsets[i];
+					}
+					starts.add(start);
+					bufs.add(ch.map(FileChannel.MapMode.READ_ONLY, start, chunkEnd-start));
+					mmap.Size+=chunkEnd-start;
+					start=chunkEnd;
+				}
+			}
+			mmap.Starts=new long[starts.size()];
+			for(int i=0;i<mmap.Starts.length;i++) mmap.Starts[i]=starts.get(i);
+			mmap.Bufs=bufs.toArray(new ByteBuffer[0]);
+			return mmap;
+		}
+		static private final long MaxChunkSize=Integer.MAX_VALUE;
+		private long[] Starts;
+		private ByteBuffer[] Bufs;
+		/** 已映射的字节数 **/
+		public long Size;
+		
+		/** 记录所在的映射分块编号 **/
+		public int Chunk(long offset) {
+			int i=0;
+			if(Starts.length>1) {
+				i=Arrays.binarySearch(Starts, offset);
+				if(i<0) i=-i-2;
+			}
+			return i;
+		}
+		/** 将记录中的wkb数据绑定到locator，直接使用映射的内存，无需复制 **/
+		public void Bind(__WkbPointLocator locator, long offset) {
+			int i=Chunk(offset);
+			locator.Bind(Bufs[i], (int)(offset-Starts[i])+WKBS_RecordHeadLen);
+		}
+		/** 获取记录中的wkb数据，返回的ByteBuffer直接指向映射的内存 **/
+		public ByteBuffer Wkb(long offset) {
+			int i=Chunk(offset);
+			ByteBuffer buf=Bufs[i];
+			int pos=(int)(offset-Starts[i]);
+			int len=buf.getInt(pos+WKBS_RecordHeadLen-4);
+			ByteBuffer val=buf.duplicate();
+			val.limit(pos+WKBS_RecordHeadLen+len);
+			val.position(pos+WKBS_RecordHeadLen);
+			return val;
+		}
+	}
+	/** 从ByteBuffer中读取wkb数据，用于内存映射中的数据直接解析成图形，无需复制成byte[] **/
+	static private class __ByteBufferInStream implements InStream {
+		public __ByteBufferInStream(ByteBuffer buf) {
+			this.buf=buf;
+		}
+		private ByteBuffer buf;
+		@Override
+		public int read(byte[] bs) {
+			int len=Math.min(bs.length, buf.remaining());
+			buf.get(bs, 0, len);
+			return len;
+		}
+	}
+	
+	/** wkbs记录类型 **/
+	static private final byte WKBS_Type_Sub=1, WKBS_Type_Full=2, WKBS_Type_Parent=3, WKBS_Type_Empty=4;
+	static private final String[] WKBS_TypeNames=new String[] { "", "Sub", "Full", "Parent", "Empty" };
+	/** wkbs索引中type的标记位：Polygon是一个和外接矩形完全相同的矩形 **/
+	static private final byte WKBS_Flag_FullCell=0x40;
+	/** wkbs记录和索引中type的标记位：这条记录已被增量更新删除（墓碑），读取时跳过，整理文件时去掉 **/
+	static private final byte WKBS_Flag_Deleted=0x20;
+	/** wkbs分段目录中的分段id **/
+	static private final int WKBS_Section_Props=1, WKBS_Section_Offsets=2, WKBS_Section_Index=3, WKBS_Section_LineHashes=4;
+	/** wkbs文件尾的结尾标识，没有这个标识的文件代表未成功写入完成 **/
+	static private final byte[] WKBS_EndMagic="\n@AreaCity.wkbs2".getBytes(StandardCharsets.US_ASCII);
+	/** wkbs每条记录wkb数据前面的固定长度：type(1) lineNo(4) fullIdx(4) propId(4) wkbLen(4) **/
+	static private final int WKBS_RecordHeadLen=17;
+	
+	/**
+	 * 将v1版本的文本格式wkbs文件（一行一条数据：Sub|Pos:...|Prop:...|WKB:16进制文本）转换成v2版本的二进制格式，GridFactor等信息保持不变，无需重新进行网格拆分。
+	 * <br>初始化时如果发现是v1版本的wkbs文件，会自动调用本方法转换到临时文件中（参考SetInitUpgradeV1WkbsFileInPlace），原文件不会被修改。
+	 *
+	 * @param v1FilePath v1版本的wkbs文件路径
+	 * @param saveV2FilePath 转换后的v2版本wkbs文件保存路径，不能和v1FilePath相同
+	 */
+	static public void ConvertWkbsFile_V1ToV2(String v1FilePath, String saveV2FilePath) throws Exception {
+		if(new File(v1FilePath).getAbsolutePath().equals(new File(saveV2FilePath).getAbsolutePath())) {
+			throw new Exception("saveV2FilePath不能和v1FilePath相同");
+		}
+		__WkbsWriter writer=null;
+		try(BufferedReader read=new BufferedReader(new InputStreamReader(new FileInputStream(v1FilePath), "utf-8"))) {
+			HashMap<String, Integer> posIdx=new HashMap<>();//v1的文件位置 -> v2的记录编号
+			String gridFactor="", dataFile="";
+			boolean isStart=false, isEnd=false;
+			String line;
+			while((line=read.readLine())!=null) {
+				if(!isStart) {
+					if(line.startsWith("@GridFactor: ")) gridFactor=line.substring(13).trim();
+					if(line.startsWith("@数据文件: ")) dataFile=line.substring(7).trim();
+					if(line.startsWith("\"features\"")) {
+						if(gridFactor.length()==0) {
+							throw new Exception("v1 wkbs文件头中未找到@GridFactor");
+						}
+						writer=new __WkbsWriter(saveV2FilePath, WkbsHeaderText(dataFile, Integer.parseInt(gridFactor)));
+						isStart=true;
+					}
+					continue;
+				}
+				if(line.length()==0) continue;
+				if(line.charAt(0)==']') {
+					isEnd=true;
+					break;
+				}
+				int i0=line.indexOf(WKB_SP_Pos);
+				String typeStr=line.substring(0, i0);
+				byte type=0;
+				for(byte i=1;i<WKBS_TypeNames.length;i++) {
+					if(WKBS_TypeNames[i].equals(typeStr)) type=i;
+				}
+				if(type==0) {
+					throw new Exception("v1 wkbs文件中存在无法识别的数据类型："+typeStr);
+				}
+				i0+=WKB_SP_Pos.length();
+				int i1=line.indexOf(WKB_SP_Prop, i0);
+				String[] pos=line.substring(i0, i1).split(":");//编号:parent:sub
+				i1+=WKB_SP_Prop.length();
+				int i2=line.indexOf(WKB_SP_WKB, i1);
+				String prop=line.substring(i1, i2);
+				byte[] wkb=Hex2Bytes(line, i2+WKB_SP_WKB.length());
+				
+				int fullIdx=-1;
+				if(!pos[1].equals(pos[2])) {//sub，parent一定在sub之前写入的
+					Integer idx=posIdx.get(pos[1]);
+					if(idx==null) {
+						throw new Exception("v1 wkbs文件中Sub数据未找到对应的Parent："+pos[1]);
+					}
+					fullIdx=idx;
+				}
+				Envelope env=null;
+				boolean fullCell=false;
+				if(type==WKBS_Type_Sub || type==WKBS_Type_Full) {
+					Geometry geom=new WKBReader(Factory).read(wkb);
+					env=geom.getEnvelopeInternal();
+					fullCell=geom instanceof Polygon && IsFullCell((Polygon)geom);
+				}
+				int idx=writer.WriteRecord(type, Integer.parseInt(pos[0]), fullIdx, prop, wkb, env, fullCell);
+				posIdx.put(pos[2], idx);
+			}
+			if(!isEnd) {
+				throw new Exception("v1 wkbs文件未发现结束位置，可能文件已损坏");
+			}
+			writer.Finish();
+		} finally {
+			if(writer!=null) writer.Close();
+		}
+	}
+	
+	/**
+	 * 整理增量更新（UpdateFeature、RemoveFeature）过的wkbs文件：去掉已删除的记录、追加写入时留下的旧分段数据，重新生成一个紧凑的wkbs文件；记录中的wkb数据原样复制，无需重新进行网格拆分。
+	 *
+	 * @param wkbsFilePath 要整理的wkbs文件路径
+	 * @param saveFilePath 整理后的wkbs文件保存路径，不能和wkbsFilePath相同
+	 */
+	static public void CompactWkbsFile(String wkbsFilePath, String saveFilePath) throws Exception {
+		if(new File(wkbsFilePath).getAbsolutePath().equals(new File(saveFilePath).getAbsolutePath())) {
+			throw new Exception("saveFilePath不能和wkbsFilePath相同");
+		}
+		__WkbsReader reader=__WkbsReader.Open(wkbsFilePath);
+		__WkbsWriter writer=null;
+		try {
+			int count=reader.Offsets.length;
+			long headLen=count>0?reader.Offsets[0]:reader.RecordsEnd;
+			byte[] head=new byte[(int)headLen];
+			try(RandomAccessFile in=new RandomAccessFile(wkbsFilePath, "r")) {
+				in.readFully(head);
+			}
+			writer=new __WkbsWriter(saveFilePath, new String(head, "utf-8"));
+			
+			ByteBuffer index=reader.Index==null?null:reader.Index.duplicate();
+			if(index!=null) index.position(4);
+			int[] newIdx=new int[count];//原记录编号 -> 新记录编号
+			__WkbsRecord rec=new __WkbsRecord();
+			for(int from=0;from<count;from+=4096) {
+				int to=Math.min(count, from+4096);
+				ByteBuffer buf=reader.ReadRecords(from, to);
+				for(int i=from;i<to;i++) {
+					__WkbsReader.ReadRecord(buf, i, rec);
+					byte flags=rec.Type;
+					Envelope env=null;
+					if(index!=null) {
+						flags=index.get();
+						index.position(index.position()+12);
+						byte type=(byte)(flags & ~(WKBS_Flag_FullCell | WKBS_Flag_Deleted));
+						if(type==WKBS_Type_Sub || type==WKBS_Type_Full) {
+							env=new Envelope(index.getDouble(), index.getDouble(), index.getDouble(), index.getDouble());
+						}
+					}
+					newIdx[i]=-1;
+					if(((flags | rec.Type) & WKBS_Flag_Deleted)!=0) {
+						continue;
+					}
+					byte type=(byte)(rec.Type & ~(WKBS_Flag_FullCell | WKBS_Flag_Deleted));
+					boolean fullCell=(flags & WKBS_Flag_FullCell)!=0;
+					if(index==null && (type==WKBS_Type_Sub || type==WKBS_Type_Full)) {//没有索引的文件，从图形中计算
+						Geometry geom=new WKBReader(Factory).read(rec.Wkb);
+						env=geom.getEnvelopeInternal();
+						fullCell=geom instanceof Polygon && IsFullCell((Polygon)geom);
+					}
+					int fullIdx=-1;
+					if(rec.FullIdx!=i) {//sub，parent一定在sub之前写入的
+						fullIdx=newIdx[rec.FullIdx];
+						if(fullIdx==-1) {
+							throw new Exception("wkbs文件中Sub数据对应的Parent已被删除："+i);
+						}
+					}
+					newIdx[i]=writer.WriteRecord(type, rec.LineNo, fullIdx, reader.Props[rec.PropId], rec.Wkb, env, fullCell);
+				}
+			}
+			if(reader.LineHashes!=null) {//行哈希的记录编号换成新的，一行的记录是连续的，整理后仍然连续
+				ByteBuffer hashes=reader.LineHashes.duplicate();
+				for(int i=0,n=hashes.getInt();i<n;i++) {
+					long hash=hashes.getLong();
+					int first=hashes.getInt(), num=hashes.getInt();
+					if(newIdx[first]!=-1) {
+						writer.WriteLineHash(hash, newIdx[first], num);
+					}
+				}
+			}
+			writer.Finish();
+		} finally {
+			reader.Close();
+			if(writer!=null) writer.Close();
+		}
+	}
+	
+	/**
+	 * v2版本wkbs结构化数据文件的写入，文件结构：
+	 * <pre>
+	 * [文本头]   utf-8文本，包含@Version、@GridFactor等信息，参考WkbsHeaderText
+	 * [记录区]   每条记录：type(byte) lineNo(int) fullIdx(int) propId(int) wkbLen(int) wkb(wkbLen个字节)
+	 *            ，lineNo为geojson中的行号，fullIdx为完整图形（Parent、Full）的记录编号，propId为属性字典中的编号
+	 * [属性字典] count(int) + count个：len(int) prop(len个字节的utf-8文本)
+	 * [偏移表]   count(int) + count个：offset(long)，为每条记录在文件中的位置，数组下标就是记录编号
+	 * [索引]     count(int) + count个：type(byte) lineNo(int) fullIdx(int) propId(int)
+	 *            ，Sub、Full记录后面还有外接矩形minX maxX minY maxY(double)；初始化时直接读取索引，无需解析图形
+	 *            ，type带有0x40标记位时代表这个Polygon是一个和外接矩形完全相同的矩形（网格内部的完整格子），带有0x20标记位时代表这条记录已被增量更新删除
+	 * [行哈希]   count(int) + count个：hash(long) first(int) num(int)，geojson中每行数据内容的哈希值（LineHash），这行数据写入的记录编号范围为[first, first+num)
+	 *            ，数据文件有变动需要重新生成wkbs文件时，内容没变的行直接复用旧文件中已拆分好的记录；早期生成的文件中没有这个分段
+	 * [分段目录] count(int) + count个：sectionId(int) offset(long) length(long)
+	 * [文件尾]   分段目录位置(long) + 结尾标识
+	 * </pre>
+	 * 数值全部为大端序；WriteRecord线程安全。
+	 */
+	static private class __WkbsWriter {
+		public __WkbsWriter(String path, String headerText) throws Exception {
+			out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 64*1024));
+			byte[] bs=headerText.getBytes("utf-8");
+			out.write(bs);
+			length=bs.length;
+		}
+		private __WkbsWriter() { }
+		/**
+		 * 在已有的wkbs文件末尾追加写入新的记录，用于增量更新：原有的记录、属性字典、索引、行哈希全部保留，deleted中为true的记录在索引中标记为已删除（记录本身的type需另外改写）；
+		 * Finish时在文件末尾重新写入属性字典、偏移表、索引、分段目录和文件尾，原来的这些分段留在文件中成为无用的数据，整理文件时去掉
+		 */
+		static public __WkbsWriter Append(String path, __WkbsReader reader, boolean[] deleted) throws Exception {
+			__WkbsWriter w=new __WkbsWriter();
+			w.count=reader.Offsets.length;
+			w.offsets=Arrays.copyOf(reader.Offsets, Math.max(1024, w.count+w.count/8));
+			for(String prop : reader.Props) {
+				w.propIds.put(prop, w.props.size());
+				w.props.add(prop);
+			}
+			ByteBuffer index=reader.Index.duplicate();
+			index.position(4);
+			for(int i=0;i<w.count;i++) {
+				byte type=index.get();
+				byte baseType=(byte)(type & ~(WKBS_Flag_FullCell | WKBS_Flag_Deleted));
+				int len=12+(baseType==WKBS_Type_Sub || baseType==WKBS_Type_Full?32:0);
+				w.index.writeByte(deleted[i]?(type | WKBS_Flag_Deleted):type);
+				w.index.write(index.array(), index.arrayOffset()+index.position(), len);
+				index.position(index.position()+len);
+			}
+			if(reader.LineHashes!=null) {//已删除的行不再保留哈希值
+				ByteBuffer hashes=reader.LineHashes.duplicate();
+				for(int i=0,n=hashes.getInt();i<n;i++) {
+					long hash=hashes.getLong();
+					int first=hashes.getInt(), num=hashes.getInt();
+					if(!deleted[first]) {
+						w.WriteLineHash(hash, first, num);
+					}
+				}
+			}
+			w.length=new File(path).length();
+			w.out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, true), 64*1024));
+			return w;
+		}
+		private DataOutputStream out;
+		private long length;
+		private long[] offsets=new long[1024];
+		private int count;
+		private HashMap<String, Integer> propIds=new HashMap<>();
+		private ArrayList<String> props=new ArrayList<>();
+		private ArrayList<long[]> sections=new ArrayList<>();
+		private ByteArrayOutputStream indexBytes=new ByteArrayOutputStream();
+		private DataOutputStream index=new DataOutputStream(indexBytes);
+		private ByteArrayOutputStream hashBytes=new ByteArrayOutputStream();
+		private DataOutputStream hashes=new DataOutputStream(hashBytes);
+		private int hashCount;
+		
+		/** 写入一条记录，返回记录编号；fullIdx传-1代表完整图形就是这条记录本身；env为Sub、Full的外接矩形，其他类型传null；fullCell为这个Polygon是否是和外接矩形完全相同的矩形 **/
+		synchronized public int WriteRecord(byte type, int lineNo, int fullIdx, String prop, byte[] wkb, Envelope env, boolean fullCell) throws Exception {
+			int idx=count++;
+			if(idx==offsets.length) {
+				offsets=Arrays.copyOf(offsets, idx*2);
+			}
+			offsets[idx]=length;
+			Integer propId=propIds.get(prop);
+			if(propId==null) {
+				propId=props.size();
+				props.add(prop);
+				propIds.put(prop, propId);
+			}
+			out.writeByte(type);
+			out.writeInt(lineNo);
+			out.writeInt(fullIdx==-1?idx:fullIdx);
+			out.writeInt(propId);
+			out.writeInt(wkb.length);
+			out.write(wkb);
+			length+=WKBS_RecordHeadLen+wkb.length;
+			
+			index.writeByte(fullCell?(type | WKBS_Flag_FullCell):type);
+			index.writeInt(lineNo);
+			index.writeInt(fullIdx==-1?idx:fullIdx);
+			index.writeInt(propId);
+			if(type==WKBS_Type_Sub || type==WKBS_Type_Full) {
+				index.writeDouble(env.getMinX());
+				index.writeDouble(env.getMaxX());
+				index.writeDouble(env.getMinY());
+				index.writeDouble(env.getMaxY());
+			}
+			return idx;
+		}
+		/** 写入geojson中一行数据的内容哈希值，这行数据写入的记录编号范围为[first, first+num)，需要连续写入 **/
+		synchronized public void WriteLineHash(long hash, int first, int num) throws Exception {
+			hashes.writeLong(hash);
+			hashes.writeInt(first);
+			hashes.writeInt(num);
+			hashCount++;
+		}
+		/** 已写入的所有记录在文件中的位置 **/
+		public long[] GetOffsets() {
+			return Arrays.copyOf(offsets, count);
+		}
+		
+		private void beginSection(int id) {
+			sections.add(new long[] { id, length, 0 });
+		}
+		private void endSection() {
+			long[] s=sections.get(sections.size()-1);
+			s[2]=length-s[1];
+		}
+		/** 所有记录写完后调用，写入属性字典、偏移表、分段目录、文件尾 **/
+		synchronized public void Finish() throws Exception {
+			beginSection(WKBS_Section_Props);
+			out.writeInt(props.size()); length+=4;
+			for(String prop : props) {
+				byte[] bs=prop.getBytes("utf-8");
+				out.writeInt(bs.length);
+				out.write(bs);
+				length+=4+bs.length;
+			}
+			endSection();
+			
+			beginSection(WKBS_Section_Offsets);
+			out.writeInt(count); length+=4;
+			for(int i=0;i<count;i++) {
+				out.writeLong(offsets[i]);
+			}
+			length+=8L*count;
+			endSection();
+			
+			beginSection(WKBS_Section_Index);
+			out.writeInt(count); length+=4;
+			indexBytes.writeTo(out);
+			length+=indexBytes.size();
+			endSection();
+			
+			if(hashCount>0) {
+				beginSection(WKBS_Section_LineHashes);
+				out.writeInt(hashCount); length+=4;
+				hashBytes.writeTo(out);
+				length+=hashBytes.size();
+				endSection();
+			}
+			
+			long dirPos=length;
+			out.writeInt(sections.size());
+			for(long[] s : sections) {
+				out.writeInt((int)s[0]);
+				out.writeLong(s[1]);
+				out.writeLong(s[2]);
+			}
+			out.writeLong(dirPos);
+			out.write(WKBS_EndMagic);
+			out.flush();
+		}
+		public void Close() throws Exception {
+			out.close();
+		}
+	}
+	/** 一条wkbs记录 **/
+	static private class __WkbsRecord {
+		public byte Type;
+		public int Idx, LineNo, FullIdx, PropId;
+		public byte[] Wkb;
+	}
+	/**
+	 * v2版本wkbs结构化数据文件的读取，文件结构参考__WkbsWriter；打开时会读取属性字典和偏移表，然后可以用ReadRecords按记录编号范围读取记录数据，多个线程可以同时读取不同的范围
+	 */
+	static private class __WkbsReader {
+		static public __WkbsReader Open(String path) throws Exception {
+			__WkbsReader reader=new __WkbsReader();
+			try(RandomAccessFile file=new RandomAccessFile(path, "r")) {
+				long fileLen=file.length();
+				byte[] end=new byte[WKBS_EndMagic.length];
+				if(fileLen<end.length+8) {
+					throw new Exception("wkbs文件已损坏");
+				}
+				file.seek(fileLen-end.length);
+				file.readFully(end);
+				if(!Arrays.equals(end, WKBS_EndMagic)) {
+					throw new Exception("wkbs文件未发现文件尾，可能文件已损坏或未成功生成");
+				}
+				file.seek(fileLen-end.length-8);
+				long dirPos=file.readLong();
+				
+				file.seek(dirPos);
+				int sectionCount=file.readInt();
+				HashMap<Integer, long[]> sections=new HashMap<>();
+				for(int i=0;i<sectionCount;i++) {
+					int id=file.readInt();
+					sections.put(id, new long[] { file.readLong(), file.readLong() });
+				}
+				long[] sProps=sections.get(WKBS_Section_Props);
+				long[] sOffsets=sections.get(WKBS_Section_Offsets);
+				if(sProps==null || sOffsets==null) {
+					throw new Exception("wkbs文件中缺少属性字典或偏移表");
+				}
+				
+				ByteBuffer buf=ReadSection(file, sProps);
+				String[] props=new String[buf.getInt()];
+				for(int i=0;i<props.length;i++) {
+					int len=buf.getInt();
+					props[i]=new String(buf.array(), buf.position(), len, "utf-8");
+					buf.position(buf.position()+len);
+				}
+				reader.Props=props;
+				
+				buf=ReadSection(file, sOffsets);
+				long[] offsets=new long[buf.getInt()];
+				buf.asLongBuffer().get(offsets);
+				reader.Offsets=offsets;
+				
+				long[] sIndex=sections.get(WKBS_Section_Index);
+				if(sIndex!=null) {
+					reader.Index=ReadSection(file, sIndex);
+				}
+				long[] sHashes=sections.get(WKBS_Section_LineHashes);
+				if(sHashes!=null) {
+					reader.LineHashes=ReadSection(file, sHashes);
+				}
+				reader.RecordsEnd=sProps[0];//记录区后面紧接着属性字典
+			}
+			reader.channel=FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+			return reader;
 		}
-		if(threadError[0]!=null) {
-			throw threadError[0];
+		static private ByteBuffer ReadSection(RandomAccessFile file, long[] section) throws Exception {
+			byte[] bs=new byte[(int)section[1]];
+			file.seek(section[0]);
+			file.readFully(bs);
+			return ByteBuffer.wrap(bs);
 		}
+		/** 属性字典，记录中的propId为数组下标 **/
+		public String[] Props;
+		/** 所有记录在文件中的位置，数组下标为记录编号 **/
+		public long[] Offsets;
+		/** 索引分段的数据，早期生成的文件中可能没有，为null **/
+		public ByteBuffer Index;
+		/** 行哈希分段的数据，早期生成的文件中没有，为null **/
+		public ByteBuffer LineHashes;
+		/** 记录区的结束位置 **/
+		public long RecordsEnd;
+		private FileChannel channel;
 		
-		if(!IsStart[0]){
-			throw new Exception(IsStartErrMsg);
+		/** 读取[from, to)这些记录的数据，记录在文件中是连续存放的，用ReadRecord逐条解析；用的绝对位置读取，线程安全 **/
+		public ByteBuffer ReadRecords(int from, int to) throws Exception {
+			if(from>=to) {
+				return ByteBuffer.allocate(0);
+			}
+			long start=Offsets[from];
+			long end=to<Offsets.length?Offsets[to]:RecordsEnd;
+			ByteBuffer buf=ByteBuffer.allocate((int)(end-start));
+			while(buf.hasRemaining()) {
+				if(channel.read(buf, start+buf.position())<=0) {
+					throw new Exception("wkbs文件读取失败，可能文件已损坏");
+				}
+			}
+			buf.flip();
+			//增量更新过的文件，追加的记录和原有记录之间夹着旧的分段数据，去掉这些空隙让记录连续存放
+			byte[] bs=buf.array();
+			int pos=0;
+			for(int i=from;i<to;i++) {
+				int src=(int)(Offsets[i]-start);
+				int len=WKBS_RecordHeadLen+buf.getInt(src+WKBS_RecordHeadLen-4);
+				if(src!=pos) {
+					System.arraycopy(bs, src, bs, pos, len);
+				}
+				pos+=len;
+			}
+			buf.limit(pos);
+			return buf;
 		}
-		if(InitInfo.GeometryCount==0){
-			throw new Exception("初始化传入的文件内没有数据");
+		/** 从ReadRecords读取的数据中解析下一条记录，idx为这条记录的编号 **/
+		static public void ReadRecord(ByteBuffer buf, int idx, __WkbsRecord rec) {
+			rec.Idx=idx;
+			rec.Type=buf.get();
+			rec.LineNo=buf.getInt();
+			rec.FullIdx=buf.getInt();
+			rec.PropId=buf.getInt();
+			rec.Wkb=new byte[buf.getInt()];
+			buf.get(rec.Wkb);
 		}
-		
-		//统一处理empty那些图形
-		for(int i=0,iL=emptyGeoms.size();i<iL;i++) {
-			HashMap<String,Object> store=emptyGeoms.get(i);
-			wktDataStores.add(store);
-			
-			if(saveWkbsFile!=null) {
-				String propStr=getProp(store);
-				String lineNo=getWkbPos(store)[0];
-				String wkbPos=(saveWkbsFileLength[0]+1)+"";//+1 换行符
-				wkbPos=lineNo+":"+wkbPos+":"+wkbPos; //parent:sub 数据存储位置
-				store.put("wkbPos", wkbPos);
-				
-				byte[] wkb=new WKBWriter().write(Factory.createPolygon());
-				SaveWkbsWrite.Exec("\nEmpty"+WKB_SP_Pos+wkbPos+WKB_SP_Prop+propStr+WKB_SP_WKB+Bytes2Hex(wkb));
-			}
+		public void Close() throws Exception {
+			if(channel!=null) channel.close();
 		}
 		
-		if(saveWkbsFile!=null) {//写入 wkbs 文件结尾
-			SaveWkbsWrite.Exec("\n]");
+		/** 从文件指定位置读取一条记录的wkb数据，按绝对位置读取，多个线程可以共用一个FileChannel **/
+		static public byte[] ReadWkb(FileChannel file, long offset) throws Exception {
+			ByteBuffer head=ByteBuffer.allocate(WKBS_RecordHeadLen);
+			ReadFully(file, head, offset);
+			ByteBuffer wkb=ByteBuffer.allocate(head.getInt(13));
+			ReadFully(file, wkb, offset+WKBS_RecordHeadLen);
+			return wkb.array();
+		}
+		static private void ReadFully(FileChannel file, ByteBuffer buf, long pos) throws Exception {
+			while(buf.hasRemaining()) {
+				if(file.read(buf, pos+buf.position())<=0) {
+					throw new Exception("wkbs文件读取失败，可能文件已损坏");
+				}
+			}
+			buf.flip();
 		}
-		LineSubsPos=lineSubsPos;
-		WKTDataStores=wktDataStores;
-		EnvelopeSTRTree=rtree;
-	}
-	static private final String WKB_SP_Prop="|Prop:",WKB_SP_Pos="|Pos:",WKB_SP_WKB="|WKB:";
-	
-	
-	private String getProp(Map<String,Object> store) {
-		return ((String[])store.get("prop"))[0];
-	}
-	/**从保存的数据中提取出位置信息**/
-	private String[] getWkbPos(Map<String,Object> store) {
-		String str=(String)store.get("wkbPos");
-		int p0=str.indexOf(':');
-		int p1=str.indexOf(':', p0+1);
-		return new String[] {
-			str.substring(0, p0)
-			,str.substring(p0+1, p1)
-			,str.substring(p1+1)
-		};
 	}
 	/**
-	 * 检测结构化数据文件是否有效
+	 * 数据文件有变动、重新生成wkbs文件时，从旧的wkbs文件中复用内容没有变的行已拆分好的记录：按行哈希查找，读取这行的所有记录（Parent+Sub，或者Full、Empty），外接矩形等从索引中读取，无需再解析和按网格拆分图形
 	 */
-	private boolean AvailableWkbsFile(String path) {
-		File file=new File(path);
-		if(!file.exists())return false;
-		try(FileInputStream in=new FileInputStream(path)) {
-			byte[] buffer=new byte[8*1024];
-			int len=in.read(buffer);
-			String txt=new String(buffer, "utf-8");
-			if(!txt.contains("@Version: "+Version+"\n")) {
-				return false;
+	static private class __WkbsReuse {
+		/** 打开旧的wkbs文件，文件中没有索引或行哈希时无法复用，返回null **/
+		static public __WkbsReuse Open(String path) throws Exception {
+			__WkbsReader reader=__WkbsReader.Open(path);
+			if(reader.Index==null || reader.LineHashes==null) {
+				reader.Close();
+				return null;
 			}
-			if(!txt.contains("@GridFactor: "+SetGridFactor+"\n")) {
-				return false;
+			__WkbsReuse reuse=new __WkbsReuse();
+			reuse.reader=reader;
+			int count=reader.Offsets.length;
+			ByteBuffer index=reader.Index;
+			reuse.indexPos=new int[count];
+			index.position(4);
+			for(int i=0;i<count;i++) {
+				reuse.indexPos[i]=index.position();
+				byte type=(byte)(index.get(index.position()) & ~(WKBS_Flag_FullCell | WKBS_Flag_Deleted));
+				index.position(index.position()+13+(type==WKBS_Type_Sub || type==WKBS_Type_Full?32:0));
 			}
-			
-			in.skip(-len);// 请注意，倒车
-			in.skip(file.length()-1);
-			return in.read()==']';// 成功写入了结尾符号
-		}catch (Exception e) {
-			return false;
+			ByteBuffer hashes=reader.LineHashes;
+			for(int i=0,n=hashes.getInt();i<n;i++) {
+				long hash=hashes.getLong();
+				int first=hashes.getInt(), num=hashes.getInt();
+				reuse.lines.put(hash, new int[] { first, num });
+			}
+			return reuse;
 		}
-	}
-	/**
-	 * 从结构化数据文件中读取一条wkb数据
-	 */
-	private byte[] ReadWkbFromFile(int pos) throws Exception {
-		try(FileInputStream in=new FileInputStream(WkbsFilePath)) { // RandomAccessFile 没有区别，文件流无需缓存 新打开流不消耗性能，并发控制反而会影响性能
-			in.skip(pos);
-			ByteArrayOutputStream bs=new ByteArrayOutputStream();
-			byte[] buffer=new byte[32*1024];
-			int len=0;
-			boolean isStart=false;
-			int findLen=0;
-			char[] FindChars=WKB_SP_WKB.toCharArray();
-			while((len=in.read(buffer))!=-1) {
-				int i0=0;
-				if(!isStart) {//查找 WKB_SP_WKB
-					for(int i=0;i<len;i++) {
-						if(buffer[i]==FindChars[0]) {
-							findLen=1;
-							continue;
-						}
-						if(findLen==0)continue;
-						if(buffer[i]==FindChars[findLen]) {
-							findLen++;
-							if(findLen==FindChars.length) {
-								isStart=true;
-								i0=i+1;
-								break;
-							}
-						} else {
-							findLen=0;
-						}
-					}
-				}
-				//查找结尾的\n
-				boolean isEnd=false;
-				int i1=len;
-				for(int i=i0;i<len;i++) {
-					if(buffer[i]=='\n') {
-						isEnd=true;
-						i1=i;
-						break;
-					}
-				}
-				
-				if(i1-i0>0) {
-					bs.write(buffer, i0, i1-i0);
-				}
-				if(isEnd) {
-					byte[] byts=bs.toByteArray();
-					if(byts.length%2==1) {
-						throw new Exception("结构化数据内部存在错误");
-					}
-					return Hex2Bytes(byts, 0);
+		private __WkbsReader reader;
+		private int[] indexPos;
+		private HashMap<Long, int[]> lines=new HashMap<>();
+		
+		/** 查找内容哈希值为hash的行，读取这行的所有记录，第一条为Parent、Full或Empty；找不到、属性不同、或者记录已被删除时返回null；线程安全 **/
+		public __WkbsRecord[] Read(long hash, String prop) throws Exception {
+			int[] line=lines.get(hash);
+			if(line==null) {
+				return null;
+			}
+			int first=line[0], num=line[1];
+			ByteBuffer buf=reader.ReadRecords(first, first+num);
+			__WkbsRecord[] recs=new __WkbsRecord[num];
+			for(int i=0;i<num;i++) {
+				__WkbsRecord rec=new __WkbsRecord();
+				__WkbsReader.ReadRecord(buf, first+i, rec);
+				if((rec.Type & WKBS_Flag_Deleted)!=0 || !prop.equals(reader.Props[rec.PropId])) {
+					return null;
 				}
+				recs[i]=rec;
 			}
+			return recs;
+		}
+		/** Sub、Full记录的外接矩形 **/
+		public Envelope Env(int idx) {
+			int pos=indexPos[idx]+13;
+			ByteBuffer index=reader.Index;
+			return new Envelope(index.getDouble(pos), index.getDouble(pos+8), index.getDouble(pos+16), index.getDouble(pos+24));
+		}
+		/** 记录是否是和外接矩形完全相同的矩形 **/
+		public boolean FullCell(int idx) {
+			return (reader.Index.get(indexPos[idx]) & WKBS_Flag_FullCell)!=0;
+		}
+		public void Close() throws Exception {
+			reader.Close();
 		}
-		throw new Exception("结构化数据文件已损坏");
 	}
 	
 	
@@ -1200,6 +5174,32 @@ public class AreaCityQuery {
 	
 	
 	
+	/** geojson中一行数据内容（geometry+properties）的64位哈希值（FNV-1a），行尾的逗号不参与计算；用于重新生成wkbs文件时识别内容没有变的行 **/
+	static private long LineHash(String line) {
+		int len=line.length();
+		if(len>0 && line.charAt(len-1)==',') len--;
+		long hash=0xcbf29ce484222325L;
+		for(int i=0;i<len;i++) {
+			hash^=line.charAt(i);
+			hash*=0x100000001b3L;
+		}
+		return hash;
+	}
+	/** 从geojson的一行数据中手工提取properties的json字符串，无需解析整个json **/
+	static private String JSONLineProp(String line) {
+		int i0=line.indexOf("properties\"");
+		int i1=line.indexOf("{", i0);
+		int i2=line.indexOf("}", i0);
+		return line.substring(i1, i2+1);
+	}
+	/** 从geojson的一行数据中手工提取geometry的类型 **/
+	static private String JSONLineGeometryType(String line) {
+		int iGeom=line.indexOf("geometry\"");
+		int i0=line.indexOf("type\"", iGeom);
+		int i1=line.indexOf("\"", i0+5);
+		int i2=line.indexOf("\"", i1+1);
+		return line.substring(i1+1, i2);
+	}
 	/**
 	 * 将一行JSON数据转换成Geometry对象，要求一个JSON图形数据必须占用一行文本，高性能！
 	 */
@@ -1305,15 +5305,70 @@ public class AreaCityQuery {
 	
 	
 	/**
-	 * 将坐标点数过多的边界，使用网格进行拆分成小块
+	 * 判断Polygon是否是一个和外接矩形完全相同的矩形，网格拆分后内部的格子基本都是这种；没有孔洞、所有坐标点都在外接矩形的边上、并且4个角都有坐标点，简单多边形的这些点只能围成外接矩形本身
+	 */
+	static private boolean IsFullCell(Polygon polygon) {
+		if(polygon.isEmpty() || polygon.getNumInteriorRing()>0) {
+			return false;
+		}
+		Envelope env=polygon.getEnvelopeInternal();
+		double x0=env.getMinX(), x1=env.getMaxX(), y0=env.getMinY(), y1=env.getMaxY();
+		if(x0==x1 || y0==y1) {
+			return false;
+		}
+		int corners=0;
+		Coordinate[] ps=polygon.getExteriorRing().getCoordinates();
+		for(int i=0;i<ps.length;i++) {
+			Coordinate p=ps[i];
+			boolean onX=p.x==x0 || p.x==x1, onY=p.y==y0 || p.y==y1;
+			if(!onX && !onY) {
+				return false;
+			}
+			if(onX && onY && i<ps.length-1) {//首尾为同一个点
+				corners|=(p.x==x0?1:2)<<(p.y==y0?0:2);
+			}
+		}
+		return corners==(1|2|4|8);
+	}
+	/**
+	 * 调试用的，将图形按网格拆分成多个小Polygon（和init时的拆分一样），用于核对和测试网格拆分的性能
+	 * @param gridFactor 网格拆分系数，init时使用的是SetGridFactor
+	 * @param pool 为null时在当前线程中拆分，否则超大的Polygon会在这个线程池中并行拆分（比如ForkJoinPool.commonPool()）；两种方式拆分结果完全一致
+	 * @param rectClip 是否使用矩形裁剪切割网格，init时使用的是SetGridSplitUseRectClip，false时使用Polygon.intersection
+	 */
+	static public Geometry Debug_GeometryGridSplit(Geometry geom, int gridFactor, ForkJoinPool pool, boolean rectClip) {
+		return GeometryGridSplit(Factory, geom, gridFactor, pool, rectClip, false);
+	}
+	/**
+	 * 调试用的，用网格拆分时的矩形裁剪算法计算Polygon和矩形的交集，用于和Polygon.intersection的结果进行核对；碰到退化情况无法裁剪时返回null（网格拆分时会改用Polygon.intersection）
+	 */
+	static public Geometry Debug_RectangleClip(Polygon polygon, Envelope rect) {
+		ArrayList<Polygon> pols=__RectClip.Clip(Factory, polygon, rect);
+		if(pols==null) {
+			return null;
+		}
+		if(pols.size()==1) {
+			return pols.get(0);
+		}
+		return Factory.createMultiPolygon(pols.toArray(new Polygon[0]));
+	}
+	/**
+	 * 将图形按网格拆分成多个小Polygon，pool不为null时超大的Polygon会在pool中并行拆分；并行和单线程拆分得到的Polygon和顺序完全一致
+	 * <br>initBudget为true时（init中调用，调用线程已占用了一个共享的init线程预算），并行的子任务也要占用SetInitSharedThreadBudget预算，拿不到预算的子任务直接在当前线程中拆分
 	 */
-	static private Geometry GeometryGridSplit(GeometryFactory factory, Geometry geom, int gridFactor) {
-		ArrayList<Polygon> pols=new ArrayList<>();
-		if(geom instanceof Polygon) {
-			__PolygonGridSplit(factory, gridFactor, pols, (Polygon)geom);
+	static private Geometry GeometryGridSplit(GeometryFactory factory, Geometry geom, int gridFactor, ForkJoinPool pool, boolean rectClip, boolean initBudget) {
+		ArrayList<Polygon> pols;
+		if(pool!=null && geom.getNumPoints()>=SetGridSplitForkPoints) {
+			//调用线程等待期间占着的预算转给了第一个任务使用
+			pols=pool.invoke(new __GridSplitTask(factory, gridFactor, rectClip, geom, null, initBudget));
 		} else {
-			for(int i=0,L=geom.getNumGeometries();i<L;i++) {
-				__PolygonGridSplit(factory, gridFactor, pols, (Polygon)geom.getGeometryN(i));
+			pols=new ArrayList<>();
+			if(geom instanceof Polygon) {
+				__PolygonGridSplit(factory, gridFactor, rectClip, pols, (Polygon)geom);
+			} else {
+				for(int i=0,L=geom.getNumGeometries();i<L;i++) {
+					__PolygonGridSplit(factory, gridFactor, rectClip, pols, (Polygon)geom.getGeometryN(i));
+				}
 			}
 		}
 		if(pols.size()==1) {
@@ -1321,13 +5376,36 @@ public class AreaCityQuery {
 		}
 		return factory.createMultiPolygon(pols.toArray(new Polygon[0]));
 	}
-	static private void __PolygonGridSplit(GeometryFactory factory, int gridFactor, ArrayList<Polygon> pols, Polygon polygon) {
-		int pointCount=polygon.getNumPoints();
-		int gridPoint=(int)Math.round(1.0*pointCount/gridFactor);//最外层的1格平均分担点数，计算最外层网格边数
-		if(gridPoint<2) {//没必要拆分了
+	static private void __PolygonGridSplit(GeometryFactory factory, int gridFactor, boolean rectClip, ArrayList<Polygon> pols, Polygon polygon) {
+		ArrayList<Envelope> grids=__PolygonGridCells(gridFactor, polygon);
+		if(grids==null) {//没必要拆分了
 			pols.add(polygon);
 			return;
 		}
+		for(Envelope gridItem : grids) {
+			Geometry chunk=__PolygonGridClip(factory, rectClip, polygon, gridItem);
+			if(!chunk.isEmpty()) {
+				//如果有大的就继续拆分
+				if(chunk instanceof Polygon) {
+					__PolygonGridSplit(factory, gridFactor, rectClip, pols, (Polygon)chunk);
+				} else {
+					for(int i2=0,L2=chunk.getNumGeometries();i2<L2;i2++) {
+						Geometry item=chunk.getGeometryN(i2);
+						if(item instanceof Polygon) { //偶尔出现LineString
+							__PolygonGridSplit(factory, gridFactor, rectClip, pols, (Polygon)item);
+						}
+					}
+				}
+			}
+		}
+	}
+	/** 计算Polygon需要切成的网格，返回null代表不需要再拆分 **/
+	static private ArrayList<Envelope> __PolygonGridCells(int gridFactor, Polygon polygon) {
+		int pointCount=polygon.getNumPoints();
+		int gridPoint=(int)Math.round(1.0*pointCount/gridFactor);//最外层的1格平均分担点数，计算最外层网格边数
+		if(gridPoint<2) {
+			return null;
+		}
 		Envelope box=polygon.getEnvelopeInternal();
 		
 		//按最长的一边，对中切开，切成两块，然后递归去切
@@ -1342,6 +5420,7 @@ public class AreaCityQuery {
 		double xStep=width/gridX;
 		double yStep=height/gridY;
 		
+		ArrayList<Envelope> grids=new ArrayList<>();
 		double x_0=box.getMinX(),y_00=box.getMinY();
 		double x_1=box.getMaxX(),y_1=box.getMaxY();
 		while(x_0-x_1<-xStep/2) {//注意浮点数±0.000000001的差异
@@ -1349,30 +5428,353 @@ public class AreaCityQuery {
 			double y_0=y_00;
 			while(y_0-y_1<-yStep/2) {
 				double y0=y_0, y1=y_0+yStep; y_0=y1;
-				Polygon gridItem=factory.createPolygon(new Coordinate[] {
-					new Coordinate(x0, y0)
-					, new Coordinate(x0, y1)
-					, new Coordinate(x1, y1)
-					, new Coordinate(x1, y0)
-					, new Coordinate(x0, y0)
-				});
-				Geometry chunk=polygon.intersection(gridItem);
-				if(!chunk.isEmpty()) {
-					//如果有大的就继续拆分
-					if(chunk instanceof Polygon) {
-						__PolygonGridSplit(factory, gridFactor, pols, (Polygon)chunk);
-					} else {
-						for(int i2=0,L2=chunk.getNumGeometries();i2<L2;i2++) {
-							Geometry item=chunk.getGeometryN(i2);
-							if(item instanceof Polygon) { //偶尔出现LineString
-								__PolygonGridSplit(factory, gridFactor, pols, (Polygon)item);
-							}
+				grids.add(new Envelope(x0, x1, y0, y1));
+			}
+		}
+		return grids;
+	}
+	/** 切出Polygon在一个网格内的部分，rectClip时优先使用矩形裁剪，碰到退化情况时和未开启时使用Polygon.intersection **/
+	static private Geometry __PolygonGridClip(GeometryFactory factory, boolean rectClip, Polygon polygon, Envelope gridItem) {
+		if(rectClip) {
+			ArrayList<Polygon> pols=__RectClip.Clip(factory, polygon, gridItem);
+			if(pols!=null) {
+				if(pols.size()==1) {
+					return pols.get(0);
+				}
+				return factory.createMultiPolygon(pols.toArray(new Polygon[0]));
+			}
+		}
+		return polygon.intersection(factory.toGeometry(gridItem));
+	}
+	/**
+	 * 网格拆分的fork/join任务：gridItem不为null时先用geom和这个网格求交集，再把得到的Polygon继续拆分；
+	 * <br>每个网格、每个交集部分都是一个子任务，子任务结果按原递归的顺序拼接，和__PolygonGridSplit单线程拆分的结果完全一致
+	 * <br>initBudget时每个放到线程池中并行执行的子任务都占用一个共享的init线程预算（不等待），执行完后归还；拿不到预算的子任务在当前线程中执行，同时在工作的线程数不会超过预算
+	 */
+	static private class __GridSplitTask extends RecursiveTask<ArrayList<Polygon>> {
+		private static final long serialVersionUID = 1L;
+		public __GridSplitTask(GeometryFactory factory, int gridFactor, boolean rectClip, Geometry geom, Envelope gridItem, boolean initBudget) {
+			this.factory=factory;
+			this.gridFactor=gridFactor;
+			this.rectClip=rectClip;
+			this.geom=geom;
+			this.gridItem=gridItem;
+			this.initBudget=initBudget;
+		}
+		private final GeometryFactory factory;
+		private final int gridFactor;
+		private final boolean rectClip;
+		private final Geometry geom;
+		private final Envelope gridItem;
+		private final boolean initBudget;
+		/** 这个任务是否占用了一个共享的init线程预算，执行完后归还 **/
+		private boolean holdBudget;
+		/** 是否已放到线程池中并行执行 **/
+		private boolean forked;
+		
+		@Override
+		protected ArrayList<Polygon> compute() {
+			try {
+				return __Compute();
+			} finally {
+				if(holdBudget) {
+					holdBudget=false;
+					__InitBudgetRelease();
+				}
+			}
+		}
+		private ArrayList<Polygon> __Compute() {
+			ArrayList<Polygon> pols=new ArrayList<>();
+			Geometry chunk=gridItem==null?geom:__PolygonGridClip(factory, rectClip, (Polygon)geom, gridItem);
+			if(chunk.isEmpty()) {
+				return pols;
+			}
+			ArrayList<__GridSplitTask> tasks=new ArrayList<>();
+			if(chunk instanceof Polygon) {
+				Polygon polygon=(Polygon)chunk;
+				ArrayList<Envelope> grids=null;
+				if(polygon.getNumPoints()>=SetGridSplitForkPoints) {
+					grids=__PolygonGridCells(gridFactor, polygon);
+				}
+				if(grids==null) {//小的直接在当前线程递归拆分
+					__PolygonGridSplit(factory, gridFactor, rectClip, pols, polygon);
+					return pols;
+				}
+				for(Envelope grid : grids) {
+					tasks.add(new __GridSplitTask(factory, gridFactor, rectClip, polygon, grid, initBudget));
+				}
+			} else {
+				for(int i=0,L=chunk.getNumGeometries();i<L;i++) {
+					Geometry item=chunk.getGeometryN(i);
+					if(item instanceof Polygon) { //偶尔出现LineString
+						tasks.add(new __GridSplitTask(factory, gridFactor, rectClip, item, null, initBudget));
+					}
+				}
+			}
+			if(!initBudget) {
+				invokeAll(tasks);
+			} else {
+				//拿到了预算的子任务并行执行，第一个和拿不到预算的在当前线程中执行
+				for(int i=1;i<tasks.size();i++) {
+					__GridSplitTask task=tasks.get(i);
+					if(__InitBudgetTryAcquire()) {
+						task.holdBudget=true;
+						task.forked=true;
+						task.fork();
+					}
+				}
+				for(__GridSplitTask task : tasks) {
+					if(!task.forked) task.invoke();
+				}
+			}
+			for(__GridSplitTask task : tasks) {
+				pols.addAll(task.join());
+			}
+			return pols;
+		}
+	}
+	
+	/**
+	 * 网格拆分用的矩形裁剪，网格都是和坐标轴对齐的矩形，用不着通用的Polygon.intersection叠加分析（又慢、还会产生零碎的LineString）。
+	 * <br>按矩形的4条边依次做半平面裁剪：坐标点全在保留一侧的环原样保留，全在另一侧的丢弃；穿过裁剪线的环切成多段，
+	 * 每段从裁剪线上进入、从裁剪线上离开，再沿着裁剪线把段首尾相连成新的外环（洞穿过裁剪线时会和外环连成一体），剩下的洞放回包含它的外环内。
+	 * <br>裁剪线统一转换成 u<=c 的形式处理：x<=c 为(x,y)，x>=c 为(-x,-y)，y<=c 为(y,-x)，y>=c 为(-y,x)，都是旋转变换，不会改变环的方向。
+	 * <br>穿过裁剪线的环上有坐标点正好落在裁剪线上、或者段的端点无法正常配对时属于退化情况，直接返回null，由调用方改用Polygon.intersection计算。
+	 */
+	static private class __RectClip {
+		/** 裁剪得到的Polygon列表，可能为空列表；退化情况返回null **/
+		static public ArrayList<Polygon> Clip(GeometryFactory factory, Polygon polygon, Envelope rect) {
+			ArrayList<Polygon> pols=new ArrayList<>();
+			pols.add(polygon);
+			for(int side=0;side<4;side++) {
+				boolean axisX=side<2;
+				int sign=side%2==0?1:-1;
+				double cut=side==0?rect.getMaxX():side==1?rect.getMinX():side==2?rect.getMaxY():rect.getMinY();
+				ArrayList<Polygon> arr=new ArrayList<>();
+				for(Polygon pol : pols) {
+					__RectClip clip=new __RectClip(factory, axisX, sign, cut);
+					if(!clip.ClipHalf(pol, arr)) {
+						return null;
+					}
+				}
+				pols=arr;
+			}
+			return pols;
+		}
+		
+		private __RectClip(GeometryFactory factory, boolean axisX, int sign, double cut) {
+			this.factory=factory;
+			this.axisX=axisX;
+			this.sign=sign;
+			this.cut=cut;
+			this.c=sign*cut;
+		}
+		private final GeometryFactory factory;
+		private final boolean axisX;
+		private final int sign;
+		/** 原始坐标的裁剪线，和转换后的裁剪线 **/
+		private final double cut, c;
+		/** 穿过裁剪线的环切出来的段 **/
+		private final ArrayList<__ClipChain> chains=new ArrayList<>();
+		
+		private double U(Coordinate p) {
+			return sign*(axisX?p.x:p.y);
+		}
+		private double V(Coordinate p) {
+			return sign*(axisX?p.y:-p.x);
+		}
+		
+		/** 保留u<=c的部分，结果添加到out中；退化情况返回false **/
+		private boolean ClipHalf(Polygon polygon, ArrayList<Polygon> out) {
+			Envelope env=polygon.getEnvelopeInternal();
+			double uMin=sign>0?(axisX?env.getMinX():env.getMinY()):-(axisX?env.getMaxX():env.getMaxY());
+			double uMax=sign>0?(axisX?env.getMaxX():env.getMaxY()):-(axisX?env.getMinX():env.getMinY());
+			if(uMax<=c) {//全部在保留一侧
+				out.add(polygon);
+				return true;
+			}
+			if(uMin>=c) {//全部在另一侧
+				return true;
+			}
+			
+			if(!AddRingChains(polygon.getExteriorRing().getCoordinates(), true)) {
+				return false;
+			}
+			ArrayList<LinearRing> holes=new ArrayList<>();
+			for(int i=0,L=polygon.getNumInteriorRing();i<L;i++) {
+				LinearRing hole=polygon.getInteriorRingN(i);
+				Envelope hEnv=hole.getEnvelopeInternal();
+				double hMin=sign>0?(axisX?hEnv.getMinX():hEnv.getMinY()):-(axisX?hEnv.getMaxX():hEnv.getMaxY());
+				double hMax=sign>0?(axisX?hEnv.getMaxX():hEnv.getMaxY()):-(axisX?hEnv.getMinX():hEnv.getMinY());
+				if(hMax<c) {
+					holes.add(hole);
+				} else if(hMin>=c) {
+					continue;
+				} else if(hMax==c) {//洞碰到了裁剪线，和新的外环边界重叠或接触
+					return false;
+				} else if(!AddRingChains(hole.getCoordinates(), false)) {
+					return false;
+				}
+			}
+			
+			//沿着裁剪线从下往上（v增大）排序段的端点，离开点和上方紧挨着的进入点相连
+			int count=chains.size();
+			__ClipChain[] points=new __ClipChain[count*2];
+			for(int i=0;i<count;i++) {
+				__ClipChain chain=chains.get(i);
+				points[i*2]=chain;
+				points[i*2+1]=chain.Exit;
+			}
+			Arrays.sort(points, new Comparator<__ClipChain>() {
+				@Override
+				public int compare(__ClipChain a, __ClipChain b) {
+					int v=Double.compare(a.V, b.V);
+					return v!=0?v:Double.compare(a.K, b.K);
+				}
+			});
+			for(int i=0;i<points.length;i+=2) {
+				__ClipChain exit=points[i], entry=points[i+1];
+				if(!exit.IsExit || entry.IsExit
+						|| (exit.V==entry.V && exit.K==entry.K)) {//必须是一个离开点紧接着一个进入点
+					return false;
+				}
+				exit.Chain.Next=entry;
+			}
+			
+			//连成新的外环，都是逆时针的外环，洞不会单独跨过裁剪线
+			ArrayList<LinearRing> shells=new ArrayList<>();
+			for(__ClipChain start : chains) {
+				if(start.Points==null) {
+					continue;
+				}
+				ArrayList<Coordinate> ring=new ArrayList<>();
+				__ClipChain chain=start;
+				do {
+					for(Coordinate p : chain.Points) {
+						if(ring.size()==0 || !ring.get(ring.size()-1).equals2D(p)) {
+							ring.add(p);
 						}
 					}
+					chain.Points=null;
+					chain=chain.Next;
+				} while(chain.Points!=null);
+				if(chain!=start) {
+					return false;
+				}
+				if(!ring.get(0).equals2D(ring.get(ring.size()-1))) {
+					ring.add(ring.get(0));
+				}
+				if(ring.size()>=4) {
+					shells.add(factory.createLinearRing(ring.toArray(new Coordinate[0])));
+				}
+			}
+			
+			//洞放回包含它的外环内
+			ArrayList<ArrayList<LinearRing>> shellHoles=new ArrayList<>();
+			for(int i=0;i<shells.size();i++) {
+				shellHoles.add(new ArrayList<>());
+			}
+			for(LinearRing hole : holes) {
+				int idx=shells.size()==1?0:FindShell(shells, hole);
+				if(idx==-1) {
+					return false;
+				}
+				shellHoles.get(idx).add(hole);
+			}
+			for(int i=0;i<shells.size();i++) {
+				out.add(factory.createPolygon(shells.get(i), shellHoles.get(i).toArray(new LinearRing[0])));
+			}
+			return true;
+		}
+		private int FindShell(ArrayList<LinearRing> shells, LinearRing hole) {
+			Envelope hEnv=hole.getEnvelopeInternal();
+			Coordinate[] hPs=hole.getCoordinates();
+			for(int i=0;i<shells.size();i++) {
+				LinearRing shell=shells.get(i);
+				if(!shell.getEnvelopeInternal().contains(hEnv)) {
+					continue;
+				}
+				Coordinate[] ps=shell.getCoordinates();
+				for(Coordinate p : hPs) {//洞可能在某个点上接触外环，找一个不在外环上的点判断
+					int loc=PointLocation.locateInRing(p, ps);
+					if(loc==Location.INTERIOR) return i;
+					if(loc==Location.EXTERIOR) break;
+				}
+			}
+			return -1;
+		}
+		/** 将穿过裁剪线的环切成段，外环需要为逆时针、洞需要为顺时针（保留的区域始终在环的左侧）；有坐标点正好在裁剪线上时返回false **/
+		private boolean AddRingChains(Coordinate[] ps, boolean isShell) {
+			if(Orientation.isCCW(ps)!=isShell) {
+				Coordinate[] arr=new Coordinate[ps.length];
+				for(int i=0;i<ps.length;i++) {
+					arr[i]=ps[ps.length-1-i];
+				}
+				ps=arr;
+			}
+			int n=ps.length-1, start=-1;
+			for(int i=0;i<n;i++) {
+				double u=U(ps[i]);
+				if(u==c) {
+					return false;
+				}
+				if(start==-1 && u>c) {
+					start=i;
+				}
+			}
+			__ClipChain chain=null;
+			Coordinate prev=ps[start];
+			double prevU=U(prev);
+			for(int k=1;k<=n;k++) {
+				Coordinate p=ps[(start+k)%n];
+				double u=U(p);
+				if(u<c) {
+					if(chain==null) {//进入保留一侧
+						Coordinate e=Intersection(prev, prevU, p, u);
+						chain=new __ClipChain();
+						chain.Points=new ArrayList<>();
+						chain.Points.add(e);
+						chain.V=V(e);
+						chain.K=(V(p)-chain.V)/(c-u);
+						chains.add(chain);
+					}
+					chain.Points.add(p);
+				} else if(chain!=null) {//离开保留一侧
+					Coordinate e=Intersection(prev, prevU, p, u);
+					chain.Points.add(e);
+					__ClipChain exit=new __ClipChain();
+					exit.V=V(e);
+					exit.K=(V(prev)-exit.V)/(c-prevU);
+					exit.IsExit=true;
+					exit.Chain=chain;
+					chain.Exit=exit;
+					chain=null;
 				}
+				prev=p;
+				prevU=u;
+			}
+			return true;
+		}
+		/** 计算线段和裁剪线的交点，裁剪线方向上的坐标直接取裁剪线的值，保证切开的两边完全对齐 **/
+		private Coordinate Intersection(Coordinate a, double uA, Coordinate b, double uB) {
+			double t=(c-uA)/(uB-uA);
+			if(axisX) {
+				return new Coordinate(cut, a.y+t*(b.y-a.y));
 			}
+			return new Coordinate(a.x+t*(b.x-a.x), cut);
 		}
 	}
+	/**
+	 * 矩形裁剪时环切出来的段，从裁剪线上的进入点开始、到离开点结束；段对象本身也作为进入点参与排序，Exit为离开点
+	 * <br>V为端点在裁剪线上的位置，K为端点相邻的保留一侧坐标点的斜率（裁剪线往保留一侧微小平移时端点的偏移方向），端点位置相同时按K排序
+	 */
+	static private class __ClipChain {
+		public double V, K;
+		/** 是否是离开点，离开点的Chain为所属的段；段的Next为沿着裁剪线相连的下一段 **/
+		public boolean IsExit;
+		public __ClipChain Chain, Exit, Next;
+		public ArrayList<Coordinate> Points;
+	}
 	
 	
 	/** 计算两个坐标的距离，单位米 **/
@@ -1419,18 +5821,6 @@ public class AreaCityQuery {
 		return path.toLowerCase().endsWith(".wkbs");
 	}
 	
-	/**二进制内容转成16进制文本(大写)**/
-	static private String Bytes2Hex(byte[] bytes) {
-		StringBuffer str=new StringBuffer();
-		for (int i=0; i<bytes.length; i++) {
-			byte b=bytes[i];
-			int b1=(b>>4) & 0x0F;
-			int b2=b & 0x0F;
-			str.append((char)(b1<=9?'0'+b1:'A'+b1-10));
-			str.append((char)(b2<=9?'0'+b2:'A'+b2-10));
-		}
-		return str.toString();
-	}
 	/**16进制文本转成二进制内容，从指定位置开始转**/
 	static private byte[] Hex2Bytes(String hex, int start) {
 		byte[] val=new byte[(hex.length()-start)/2];
@@ -1445,20 +5835,6 @@ public class AreaCityQuery {
 		}
 		return val;
 	}
-	/**16进制数据转成二进制内容，从指定位置开始转**/
-	static private byte[] Hex2Bytes(byte[] hex, int start) {
-		byte[] val=new byte[(hex.length-start)/2];
-		for(int i=start,n=0,len=hex.length;i<len;n++) {
-			int c1=hex[i++];
-			int c2=hex[i++];
-			
-			c1=c1<'A'?c1-'0':c1<'a'?c1-'A'+10:c1-'a'+10;
-			c2=c2<'A'?c2-'0':c2<'a'?c2-'A'+10:c2-'a'+10;
-			
-			val[n]=(byte)((c1 << 4) | c2);
-		}
-		return val;
-	}
 	
 	
 	
@@ -1539,8 +5915,29 @@ public class AreaCityQuery {
 		public int GeometryCount;
 		/** 图形中的Polygon数量，一个图形包含1-n个Polygon，会用这些数量的Polygon外接矩形进行初步查找 **/
 		public int PolygonCount;
+		/** 外接矩形索引的分区信息，未分区为空字符串 **/
+		public String IndexPartitions="";
+		/** 外接矩形索引使用的索引树类型（SetEnvelopeIndexType） **/
+		public String EnvelopeIndexType="";
+		/** 外接矩形索引占用的内存字节数，估算值，未生成索引为-1 **/
+		public long EnvelopeIndexMemory=-1;
+		/** Polygon中和外接矩形完全相同的矩形数量（网格拆分后内部的完整格子），坐标点查询时落在这些格子内无需读取和解析图形 **/
+		public int FullCellCount;
 		/** 如果缓存了wkb数据在内存，这里将会有wkb总字节数，未缓存为-1 **/
 		public int WkbMemory=-1;
+		/** 如果使用了内存映射读取wkbs文件，这里将会有映射的总字节数（由操作系统页缓存管理，不占用Java堆内存），未映射为-1 **/
+		public long WkbsMmapSize=-1;
+		/** 所有图形的数据（属性编号、位置、外接矩形等，不含wkb数据）用基本类型数组紧凑存储占用的内存字节数，估算值 **/
+		public long StoreMemory=-1;
+		/** 紧凑存储比每条数据一个HashMap存储节省的内存字节数，估算值 **/
+		public long StoreMemorySaved;
+		/** 开启了已解码图形缓存时，缓存最多占用的内存字节数（估算值），未开启为-1；缓存的实时统计数据可通过GetGeometryCacheXXX方法获取 **/
+		public long GeometryCacheMaxSize=-1;
+		private __GeometryCache GeometryCache;
+		/** 开启了SetUsePreparedGeometry时，init时预处理了的Polygon数量（缓存中预处理的不计入） **/
+		public int PreparedGeometryCount;
+		/** init时预处理图形比直接存图形对象额外占用的内存字节数，估算值 **/
+		public long PreparedGeometryMemory;
 
 		/** 文件读取：文件内容读取耗时，纳秒 **/
 		public long DurationN_FileRead;
@@ -1550,8 +5947,31 @@ public class AreaCityQuery {
 		public long DurationN_GeometryParse;
 		/** Geometry对象进行索引耗时，纳秒 **/
 		public long DurationN_Index;
+		/** 图形按网格拆分耗时（包含在DurationN_Index内，所有线程累加），纳秒；wkbs文件中的图形已经拆好了，为0 **/
+		public long DurationN_GridSplit;
+		/** 网格拆分最慢的单个图形的拆分耗时（纳秒）、坐标点数、属性json字符串；坐标点很多的超大边界会在ForkJoinPool公共线程池中并行拆分 **/
+		public long DurationN_GridSplitMax;
+		public int GridSplitMaxPoints;
+		public String GridSplitMaxProp="";
 		/** 初始化结尾调用System.gc()回收内存的耗时，纳秒 **/
 		public long DurationN_JavaGC;
+		/** wkbs文件内存映射耗时，纳秒 **/
+		public long DurationN_WkbsMmap;
+		/** v1版本的wkbs文件转换成v2版本的耗时，纳秒 **/
+		public long DurationN_WkbsUpgrade;
+		/** init时图形预处理（PreparedGeometry）耗时，纳秒 **/
+		public long DurationN_PreparedGeometry;
+		/** init完成时从属性字典生成属性索引（id、pid、deep、ext_path等）耗时，纳秒 **/
+		public long DurationN_PropIndex;
+		
+		/** init流水线（读取 → 解析拆分 → 提交 → 索引）读取阶段、解析拆分阶段的线程数；提交阶段为1个线程，索引在所有数据提交完成后一次性生成；为0时没有使用流水线（比如直接从wkbs文件的索引中加载） **/
+		public int StageReadThreads, StageParseThreads;
+		/** 流水线中各阶段处理的数据条数，读取阶段的数据分成了StageBatchCount批交给解析拆分阶段 **/
+		public int StageReadCount, StageParseCount, StageCommitCount, StageBatchCount;
+		/** 流水线中各阶段处理数据的耗时（所有线程累加，不含等待），纳秒 **/
+		public long DurationN_StageRead, DurationN_StageParse, DurationN_StageCommit, DurationN_StageIndex;
+		/** 流水线中各阶段的等待耗时（所有线程累加），纳秒：读取阶段等待解析队列有空位（或等待提交阶段跟上），解析拆分阶段等待队列中有数据，提交阶段等待按顺序的下一批数据 **/
+		public long DurationN_WaitRead, DurationN_WaitParse, DurationN_WaitCommit;
 		
 		/** 初始化时提供的数据文件路径 **/
 		public String FilePath_Data;
@@ -1562,24 +5982,62 @@ public class AreaCityQuery {
 		public boolean DataFromWkbsFile;
 		/**初始化时是否使用或保存了wkbs结构化数据文件，没有wkbs文件时查询中不允许获取WKT数据**/
 		public boolean HasWkbsFile;
+		/**初始化时是否是直接从wkbs文件内的索引中加载的数据，无需解析图形，初始化速度极快**/
+		public boolean DataFromWkbsIndex;
+		/** 重新生成wkbs文件时复用的旧wkbs文件路径，没有复用为空字符串 **/
+		public String FilePath_ReuseWkbs="";
+		/** 重新生成wkbs文件时，从旧的wkbs文件中直接复用的图形数量（内容没有变的行，无需解析和按网格拆分） **/
+		public int WkbsReuseCount;
+		/** 从旧的wkbs文件中查找和读取复用的记录耗时（所有线程累加），纳秒 **/
+		public long DurationN_WkbsReuse;
+		/**初始化时读取的wkbs文件是否是v1版本的文本格式，已自动转换成了v2版本的二进制格式**/
+		public boolean WkbsFileUpgradeFromV1;
+		/** v1版本的wkbs文件转换到系统临时目录中的v2文件路径，查询时读取的是这个文件，进程退出时删除；原地转换或没有转换时为空字符串 **/
+		public String FilePath_WkbsUpgrade="";
 		/**初始化失败时的错误消息**/
 		public String ErrMsg="";
+		/** 初始化成功了但需要注意的提示消息，比如Reload、Compact时临时文件替换原文件失败，还在使用临时文件 **/
+		public String WarnMsg="";
+		
+		/** 多个实例同时init时，解析拆分阶段等待共享线程预算（SetInitSharedThreadBudget）的耗时（所有线程累加），纳秒 **/
+		public long DurationN_WaitThreadBudget;
+		/** 实时进度计数，GetInitProgress()无锁读取 **/
+		private final AtomicInteger ProgressRead=new AtomicInteger(), ProgressParse=new AtomicInteger(), ProgressCommit=new AtomicInteger(), ProgressPolygon=new AtomicInteger();
 		
 		/** 初始化是否出现了错误 **/
 		public boolean hasError() {
 			return ErrMsg!=null && ErrMsg.length()>0;
 		}
+		/** 已解码图形缓存当前占用的内存字节数（估算值），未开启缓存为-1 **/
+		public long GetGeometryCacheSize() {
+			return GeometryCache==null?-1:GeometryCache.Size;
+		}
+		/** 查询时已解码图形缓存的累计命中次数 **/
+		public long GetGeometryCacheHitCount() {
+			return GeometryCache==null?0:GeometryCache.HitCount.sum();
+		}
+		/** 查询时已解码图形缓存的累计未命中次数 **/
+		public long GetGeometryCacheMissCount() {
+			return GeometryCache==null?0:GeometryCache.MissCount.sum();
+		}
+		/** 已解码图形缓存满了后累计淘汰的图形数量 **/
+		public long GetGeometryCacheEvictCount() {
+			return GeometryCache==null?0:GeometryCache.EvictCount.sum();
+		}
 		@Override
 		public String toString() {
 			StringBuilder str=new StringBuilder();
 			str.append("[v"+AreaCityQuery.Version+"]"
-					+(DataFromWkbsFile?"wkbs+":"")
+					+(DataFromWkbsFile?(DataFromWkbsIndex?"wkbs索引+":"wkbs+"):"")
 					+"已读取Geometry "+GeometryCount+" 个（Grid切分Polygon "+PolygonCount+" 个）");
 			
 			if(hasError()) {
 				String errT="\n=============\n";
 				str.append(errT+ErrMsg+errT);
 			}
+			if(WarnMsg.length()>0) {
+				str.append("\n注意："+WarnMsg);
+			}
 			
 			str.append("\n");
 			long tn=EndTimeN-StartTimeN;
@@ -1587,10 +6045,29 @@ public class AreaCityQuery {
 			str.append("，平均: "+(GeometryCount==0?"-":Nano(tn*1.0/GeometryCount))+"/个Geometry，线程数: "+UseThreadCount);
 
 			if(WkbMemory!=-1)str.append("\nWKB内存: "+Memory(WkbMemory));
+			if(EnvelopeIndexMemory!=-1)str.append("\n外接矩形索引: "+EnvelopeIndexType+"，内存: "+Memory(EnvelopeIndexMemory)+"，生成耗时: "+Nano(DurationN_StageIndex));
+			if(IndexPartitions.length()>0)str.append("\n索引分区: "+IndexPartitions);
+			if(FullCellCount>0)str.append("\n内部完整格子: "+FullCellCount+" 个（坐标点查询时无需读取和解析图形）");
+			if(StoreMemory!=-1)str.append("\n图形数据内存: "+Memory(StoreMemory)+"，比HashMap存储节省: "+Memory(StoreMemorySaved));
+			if(DurationN_GridSplit>0)str.append("\n网格拆分: "+Nano(DurationN_GridSplit/UseThreadCount)+"/线程，最慢的单个图形: "+Nano(DurationN_GridSplitMax)+"（"+GridSplitMaxPoints+"个坐标点）");
+			if(PreparedGeometryCount>0)str.append("\n预处理图形: "+PreparedGeometryCount+"个，额外内存: "+Memory(PreparedGeometryMemory)+"，耗时: "+Nano(DurationN_PreparedGeometry/UseThreadCount)+"/线程");
+			if(GeometryCacheMaxSize!=-1)str.append("\n图形缓存: "+Memory(GetGeometryCacheSize())+" / "+Memory(GeometryCacheMaxSize)
+					+"，命中: "+GetGeometryCacheHitCount()+"，未命中: "+GetGeometryCacheMissCount()+"，淘汰: "+GetGeometryCacheEvictCount());
+			if(WkbsMmapSize!=-1)str.append("\nwkbs文件内存映射: "+Memory(WkbsMmapSize)+"（操作系统页缓存），耗时: "+Nano(DurationN_WkbsMmap));
+			if(WkbsFileUpgradeFromV1)str.append("\nwkbs文件v1转换成v2耗时: "+Nano(DurationN_WkbsUpgrade)+(FilePath_WkbsUpgrade.length()>0?"，临时文件: "+FilePath_WkbsUpgrade:"，已原地替换原文件"));
+			if(FilePath_ReuseWkbs.length()>0)str.append("\n复用旧wkbs文件中没有变的图形: "+WkbsReuseCount+" 个，耗时: "+Nano(DurationN_WkbsReuse/UseThreadCount)+"/线程");
 			str.append("\n文件读取耗时: "+Nano(DurationN_FileRead));
 			str.append("\n文件解析耗时: "+Nano(DurationN_FileParse/UseThreadCount)+"/线程，总: "+Nano(DurationN_FileParse));
 			str.append("\n创建图形耗时: "+Nano(DurationN_GeometryParse/UseThreadCount)+"/线程，总: "+Nano(DurationN_GeometryParse));
 			str.append("\n创建索引耗时: "+Nano(DurationN_Index/UseThreadCount)+"/线程，总: "+Nano(DurationN_Index));
+			str.append("\n属性索引耗时: "+Nano(DurationN_PropIndex));
+			if(StageParseThreads>0) {
+				str.append("\n流水线 读取: "+StageReadThreads+"个线程，"+StageReadCount+"条，"+StageBatchCount+"批，"+__StageInfo(StageReadCount, DurationN_StageRead, DurationN_WaitRead, StageReadThreads));
+				str.append("\n流水线 解析拆分: "+StageParseThreads+"个线程，"+__StageInfo(StageParseCount, DurationN_StageParse, DurationN_WaitParse, StageParseThreads));
+				str.append("\n流水线 提交: 1个线程，"+__StageInfo(StageCommitCount, DurationN_StageCommit, DurationN_WaitCommit, 1));
+				str.append("\n流水线 索引: "+Nano(DurationN_StageIndex));
+				if(DurationN_WaitThreadBudget>0)str.append("\n等待共享线程预算: "+Nano(DurationN_WaitThreadBudget*1.0/StageParseThreads)+"/线程");
+			}
 			
 			str.append("\n内存占用: "+Memory(EndMemory_JavaRuntime- StartMemory_JavaRuntime)+" (Java Runtime)");
 			str.append(", "+Memory(EndMemory_System - StartMemory_System)+" (系统)");
@@ -1601,12 +6078,126 @@ public class AreaCityQuery {
 			
 			return str.toString();
 		}
+		/** 流水线一个阶段的统计信息：平均每条耗时、吞吐量、等待耗时 **/
+		static private String __StageInfo(int count, long durationN, long waitN, int threads) {
+			double timeN=durationN*1.0/threads;
+			return "平均: "+(count==0?"-":Nano(durationN*1.0/count))+"/条，吞吐: "+(timeN<=0?"-":(long)(count/(timeN/1000000000))+"条/s")
+					+"，耗时: "+Nano(timeN)+"/线程，等待: "+Nano(waitN*1.0/threads)+"/线程";
+		}
+	}
+	/** init的实时进度（GetInitProgress()获取的快照） **/
+	static public class QueryInitProgress {
+		/** init状态：0未初始化，1初始化中，2初始化完成，3初始化失败 **/
+		public int Status;
+		/** 流水线各阶段已处理的数据条数：读取、解析拆分、提交；直接从wkbs文件的索引中加载时只有提交数量（记录数） **/
+		public int ReadCount, ParseCount, CommitCount;
+		/** 已提交的Polygon数量 **/
+		public int PolygonCount;
+		/** init已耗时，初始化结束后为总耗时，纳秒 **/
+		public long DurationN;
+		/** 初始化失败时的错误消息 **/
+		public String ErrMsg="";
+		
+		@Override
+		public String toString() {
+			String[] names=new String[] { "未初始化", "初始化中", "初始化完成", "初始化失败" };
+			return "["+names[Status]+"] 读取: "+ReadCount+"条，解析拆分: "+ParseCount+"条，提交: "+CommitCount+"条（Polygon "+PolygonCount+" 个），耗时: "+Nano(DurationN)
+				+(ErrMsg!=null && ErrMsg.length()>0?"\n"+ErrMsg:"");
+		}
+	}
+	/** 增量更新（UpdateFeature、RemoveFeature）的相关信息对象 **/
+	static public class QueryUpdateInfo {
+		/** 更新的数据id **/
+		public long Id;
+		/** 删除掉的旧图形数量，新增的图形没有旧数据时为0 **/
+		public int RemovedFeatureCount;
+		/** 删除掉的旧图形的Polygon数量 **/
+		public int RemovedPolygonCount;
+		/** 新增的图形网格拆分出来的Polygon数量，删除时为0 **/
+		public int AddedPolygonCount;
+		/** 有wkbs文件时，更新后文件中的记录总数（包括已删除的），没有wkbs文件为-1 **/
+		public int WkbsRecordCount=-1;
+		/** 有wkbs文件时，文件中已删除的记录数量，数量多了后可调用Compact整理文件 **/
+		public int WkbsDeletedCount;
+		/** 有wkbs文件时，更新后的文件字节数，没有wkbs文件为-1 **/
+		public long WkbsFileSize=-1;
+		
+		/** 新图形按网格拆分耗时，纳秒 **/
+		public long DurationN_GridSplit;
+		/** 追加写入wkbs文件耗时，纳秒 **/
+		public long DurationN_WkbsWrite;
+		/** 复制数据、生成新增数据的索引耗时，纳秒 **/
+		public long DurationN_Index;
+		/** 总耗时，纳秒 **/
+		public long DurationN_Total;
+		
+		@Override
+		public String toString() {
+			StringBuilder str=new StringBuilder();
+			str.append("增量更新id="+Id+"，删除图形: "+RemovedFeatureCount+" 个（Polygon "+RemovedPolygonCount+" 个），新增Polygon: "+AddedPolygonCount+" 个");
+			str.append("\n总耗时: "+Nano(DurationN_Total)+"，网格拆分: "+Nano(DurationN_GridSplit)+"，索引: "+Nano(DurationN_Index));
+			if(WkbsRecordCount!=-1) {
+				str.append("\nwkbs文件追加写入: "+Nano(DurationN_WkbsWrite)+"，文件大小: "+Memory(WkbsFileSize)+"，记录 "+WkbsRecordCount+" 条（已删除 "+WkbsDeletedCount+" 条）");
+			}
+			return str.toString();
+		}
 	}
 	
 	
 	
 	
 	
+	/**
+	 * 属性筛选条件，字段值为-1或null时不参与筛选；传给ReadWKT_FromWkbsFile、Debug_ReadGeometryGridSplitsWKT的where参数时，会直接从init时生成的属性索引中查找数据（按id、pid查找为O(1)），无需遍历所有属性字符串
+	 * <br>也可以当做普通的where函数传给其他查询方法使用，此时会逐条解析属性json进行筛选
+	 */
+	static public class PropWhere implements Func<String, Boolean> {
+		/** 匹配属性中的id或unique_id **/
+		public long Id=-1;
+		/** 匹配属性中的pid **/
+		public long Pid=-1;
+		/** 匹配属性中的deep **/
+		public int Deep=-1;
+		/** 匹配属性中的ext_path，支持*通配符：“湖北省 武汉市 洪山区”完全相同，“湖北省 武汉市*”开头相同，“*武汉市 洪山区”结尾相同，“*武汉市*”包含，“*”所有有ext_path的数据 **/
+		public String ExtPath=null;
+		/** 可选提供一个函数，以上条件都匹配后再调用此函数进行筛选，会传入属性的json字符串，返回false跳过这条数据 **/
+		public Func<String, Boolean> Where=null;
+		
+		public PropWhere() {}
+		public PropWhere(long id, long pid, int deep, String extPath) {
+			Id=id; Pid=pid; Deep=deep; ExtPath=extPath;
+		}
+		
+		/** ext_path是否匹配ExtPath通配符 **/
+		public boolean ExtPathMatch(String extPath) {
+			if(extPath==null) return false;
+			String exp=ExtPath;
+			boolean start=exp.startsWith("*"), end=exp.endsWith("*");
+			if(start) exp=exp.substring(1);
+			if(end && exp.length()>0) exp=exp.substring(0, exp.length()-1);
+			if(start && end) return extPath.contains(exp);
+			if(start) return extPath.endsWith(exp);
+			if(end) return extPath.startsWith(exp);
+			return extPath.equals(exp);
+		}
+		/** 逐条解析属性json进行筛选 **/
+		@Override
+		public Boolean Exec(String prop) throws Exception {
+			if(Id!=-1) {
+				if(__PropIndex.ParseLong(JsonValue(prop, "id"))!=Id && __PropIndex.ParseLong(JsonValue(prop, "unique_id"))!=Id) return false;
+			}
+			if(Pid!=-1 && __PropIndex.ParseLong(JsonValue(prop, "pid"))!=Pid) return false;
+			if(Deep!=-1 && __PropIndex.ParseLong(JsonValue(prop, "deep"))!=Deep) return false;
+			if(ExtPath!=null && ExtPath.length()>0 && !ExtPathMatch(JsonValue(prop, "ext_path"))) return false;
+			return __ExecWhere(prop);
+		}
+		private boolean __ExecWhere(String prop) throws Exception {
+			return Where==null || Where.Exec(prop);
+		}
+	}
+	
+	
+	
 	/** 查询控制+和结果信息对象 **/
 	static public class QueryResult {
 		/** 查询结果列表，为匹配的边界属性数据（prop json字符串）；如果设为null将只统计数据，不返回结果 **/
@@ -1630,10 +6221,49 @@ public class AreaCityQuery {
 		public int EnvelopeHitCount;
 		/** 精确查找到的边界数量 **/
 		public int ExactHitCount;
+		/** 坐标点查询时，落在内部完整格子中直接匹配的数量（无需读取和解析图形，已计入ExactHitCount） **/
+		public int FullCellHitCount;
+		/** QueryPointHierarchy查询时，通过上下级关系直接推导出来的上级数量（无需几何计算，已计入ExactHitCount） **/
+		public int HierarchyDerivedCount;
+		
+		/** 开启了已解码图形缓存时，缓存命中的次数 **/
+		public int GeometryCacheHitCount;
+		/** 开启了已解码图形缓存时，缓存未命中的次数（需要读取和解析wkb数据） **/
+		public int GeometryCacheMissCount;
+		/** 开启了已解码图形缓存时，因缓存满了淘汰的图形数量 **/
+		public int GeometryCacheEvictCount;
 		
 		/** 本结果对象经过了几次查询（性能测试用） **/
 		public int QueryCount;
 		
+		/** Set_ResultIds=true时的查询结果，为匹配的边界属性编号列表，前ResultIdsCount个为有效数据（数组长度可能更长）；可通过AreaCityQuery的GetPropString、GetPropValue方法取编号对应的属性数据 **/
+		public int[] ResultIds;
+		/** ResultIds中有效数据的数量，重复使用结果对象时可以直接设为0来清空结果 **/
+		public int ResultIdsCount;
+		/** 取Set_ResultIds=true时的查询结果，为匹配的边界属性编号列表 **/
+		public int[] GetResultIds() {
+			return ResultIds==null?new int[0]:Arrays.copyOf(ResultIds, ResultIdsCount);
+		}
+		private void addResultId(int id) {
+			if(ResultIds==null) {
+				ResultIds=new int[8];
+			} else if(ResultIdsCount==ResultIds.length) {
+				ResultIds=Arrays.copyOf(ResultIds, ResultIdsCount*2);
+			}
+			ResultIds[ResultIdsCount++]=id;
+		}
+		
+		/** 批量查询QueryPoints后，每个坐标点的结果在Result（Set_ResultIds=true时为ResultIds）中的位置：第i个坐标点的结果为[PointsResultIndex[i], PointsResultIndex[i+1])这段，数组长度为坐标点数量+1 **/
+		public int[] PointsResultIndex;
+		/** 批量查询QueryPoints后，取第i个坐标点的查询结果 **/
+		public List<String> GetPointResult(int i) {
+			return Result.subList(PointsResultIndex[i], PointsResultIndex[i+1]);
+		}
+		/** Set_ResultIds=true时批量查询QueryPoints后，取第i个坐标点的查询结果属性编号列表 **/
+		public int[] GetPointResultIds(int i) {
+			return Arrays.copyOfRange(ResultIds, PointsResultIndex[i], PointsResultIndex[i+1]);
+		}
+		
 		/** 将另一个的统计数据添加到这个里面来 **/
 		public void Add(QueryResult other) {
 			StartTimeN=Math.min(StartTimeN, other.StartTimeN);
@@ -1646,6 +6276,11 @@ public class AreaCityQuery {
 			
 			EnvelopeHitCount+=other.EnvelopeHitCount;
 			ExactHitCount+=other.ExactHitCount;
+			FullCellHitCount+=other.FullCellHitCount;
+			HierarchyDerivedCount+=other.HierarchyDerivedCount;
+			GeometryCacheHitCount+=other.GeometryCacheHitCount;
+			GeometryCacheMissCount+=other.GeometryCacheMissCount;
+			GeometryCacheEvictCount+=other.GeometryCacheEvictCount;
 			QueryCount+=other.QueryCount;
 		}
 		
@@ -1656,6 +6291,12 @@ public class AreaCityQuery {
 		/** 查询结果中要额外包含对应的边界wkt文本，此参数会作为wkt文本在json里的key；必须初始化时保存了wkbs结构化数据文件，或者用的wkbs文件初始化的 **/
 		public String Set_ReturnWKTKey=null;
 		
+		/** 不为null时，QueryPoint、QueryPoints、QueryGeometry等几何查询只查询外接矩形索引中的这些分区，分区值为init时SetIndexPartitionKey属性（默认deep）的值，比如：new String[] { "2" }只查询区县，new String[] { "0", "1" }只查询省、市；未设置SetIndexPartitionKey时不允许设置 **/
+		public String[] Set_Partitions=null;
+		
+		/** 设为true时，QueryPoint、QueryPoints、QueryGeometry查询匹配的结果不再往Result中添加属性json字符串，改成往ResultIds中添加属性编号（int），无需处理字符串，适合大批量查询时存储结果；此时Set_ReturnWKTKey无效，QueryGeometryProcess的process中修改的属性也不会生效；QueryPointWithTolerance不支持 **/
+		public boolean Set_ResultIds=false;
+		
 		
 		@Override
 		public String toString() {
@@ -1668,6 +6309,15 @@ public class AreaCityQuery {
 			str.append("，GeometryParse: "+Nano(DurationN_GeometryParse));
 			str.append("，EnvelopeHitQuery: "+Nano(DurationN_EnvelopeHitQuery));
 			str.append("，ExactHitQuery: "+Nano(DurationN_ExactHitQuery));
+			if(FullCellHitCount>0) {
+				str.append("，FullCellHitCount: "+FullCellHitCount);
+			}
+			if(HierarchyDerivedCount>0) {
+				str.append("，HierarchyDerivedCount: "+HierarchyDerivedCount);
+			}
+			if(GeometryCacheHitCount+GeometryCacheMissCount>0) {
+				str.append("，GeometryCache命中: "+GeometryCacheHitCount+"，未命中: "+GeometryCacheMissCount+"，淘汰: "+GeometryCacheEvictCount);
+			}
 			
 			if(QueryCount>1) {
 				double count=QueryCount;
@@ -1687,7 +6337,12 @@ public class AreaCityQuery {
 					str.append("\nHit["+i+"] "+(txt.length()<500?txt:txt.substring(0, 500)+" ... "+txt.length()+"字"));
 				}
 			}
-			if(Result!=null) {
+			if(Set_ResultIds) {
+				str.append("\n\n结果 ResultIds: "+ResultIdsCount+"条");
+				for(int i=0;i<ResultIdsCount && i<500;i++) {
+					str.append(i%20==0?"\n":" ").append(ResultIds[i]);
+				}
+			} else if(Result!=null) {
 				str.append("\n\n结果 Result: "+Result.size()+"条");
 				for(int i=0;i<Result.size();i++) {
 					String txt=Result.get(i);
@@ -3,19 +3,38 @@ package com.github.xiangyuecn.areacity.query;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.WKBWriter;
 import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.operation.distance.DistanceOp;
 
 import com.github.xiangyuecn.areacity.query.AreaCityQuery.Func;
+import com.github.xiangyuecn.areacity.query.AreaCityQuery.PropWhere;
 import com.github.xiangyuecn.areacity.query.AreaCityQuery.QueryInitInfo;
 import com.github.xiangyuecn.areacity.query.AreaCityQuery.QueryResult;
+import com.github.xiangyuecn.areacity.query.AreaCityQuery.QueryUpdateInfo;
 
 /**
  * AreaCityQuery测试控制台主程序
@@ -248,6 +267,8 @@ public class Test {
 				if(logTime==0) {
 					if(info.DataFromWkbsFile) {
 						System.out.println("正在从wkbs结构化数据文件中快速读取数据...");
+					} else if(info.FilePath_ReuseWkbs.length()>0){
+						System.out.println("正在重新生成wkbs结构化数据文件，旧文件中没有变的数据会直接复用...");
 					} else if(info.HasWkbsFile){
 						System.out.println("首次运行，正在生成wkbs结构化数据文件，速度可能会比较慢...");
 					} else {
@@ -299,7 +320,80 @@ public class Test {
 			}
 		}
 		return false;
+	}
+	/**
+	 * 新建一个实例加载和instance相同的数据，用于会修改数据的测试（热更新、增量更新、整理），不影响instance和它的数据文件：
+	 * 数据文件为wkbs文件时复制一份临时文件来加载，测试完成后调用DeleteTempInstance删除
+	 */
+	static AreaCityQuery NewTempInstance(AreaCityQuery instance) throws Exception {
+		QueryInitInfo info=instance.GetInitInfo();
+		String dataFile=info.FilePath_SaveWkbs.length()>0?info.FilePath_SaveWkbs:info.FilePath_Data;
+		AreaCityQuery val=new AreaCityQuery();
+		if(dataFile.toLowerCase().endsWith(".wkbs")) {
+			File tmp=File.createTempFile("AreaCityQuery-test-", ".wkbs");
+			Files.copy(Paths.get(dataFile), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			dataFile=tmp.getAbsolutePath();
+		}
+		if(instance.IsStoreInWkbsFile()) {
+			val.Init_StoreInWkbsFile(dataFile, null, true);
+		} else {
+			val.Init_StoreInMemory(dataFile, null, true);
+		}
+		if(val.GetInitInfo().hasError()) {
+			throw new Exception("测试实例初始化失败："+val.GetInitInfo().ErrMsg);
+		}
+		return val;
+	}
+	/** 释放NewTempInstance创建的实例，删除复制的临时文件 **/
+	static void DeleteTempInstance(AreaCityQuery val) {
+		String dataFile=val.GetInitInfo().FilePath_Data;
+		val.ResetInitStatus();
+		if(new File(dataFile).getName().startsWith("AreaCityQuery-test-")) {
+			new File(dataFile).delete();
+			new File(dataFile+".compact.tmp.wkbs").delete();
+		}
 	} 
+	/**
+	 * 新建一个实例加载一份很小的省市区三级嵌套测试数据（临时geojson文件），用于测试按deep分区查询、按上下级关系查询，测试完成后调用DeleteTempInstance删除：
+	 * <pre>
+	 * 省 91：经度100-104，纬度30-34
+	 *   市 9101：西半边100-102    区 910101：纬度30-32；区 910102：纬度32-34
+	 *   市 9102：东半边102-104    区 910201：纬度30-32；区 919901：经度103-104，纬度32-34，pid为不存在的9199，上下级关系不完整
+	 *   经度102-103，纬度32-34：只有市，没有区
+	 * </pre>
+	 */
+	static AreaCityQuery NewNestedTempInstance() throws Exception {
+		String[][] items=new String[][] {
+			//id, pid, deep, name, 矩形minX, minY, maxX, maxY
+			{ "91", "0", "0", "测试省", "100", "30", "104", "34" },
+			{ "9101", "91", "1", "测试省 西市", "100", "30", "102", "34" },
+			{ "9102", "91", "1", "测试省 东市", "102", "30", "104", "34" },
+			{ "910101", "9101", "2", "测试省 西市 南区", "100", "30", "102", "32" },
+			{ "910102", "9101", "2", "测试省 西市 北区", "100", "32", "102", "34" },
+			{ "910201", "9102", "2", "测试省 东市 南区", "102", "30", "104", "32" },
+			{ "919901", "9199", "2", "测试省 东市 无上级区", "103", "32", "104", "34" },
+		};
+		StringBuilder json=new StringBuilder("{\"type\": \"FeatureCollection\",\"features\": [\n");
+		for(int i=0;i<items.length;i++) {
+			String[] v=items[i];
+			String x0=v[4], y0=v[5], x1=v[6], y1=v[7];
+			json.append("{\"type\":\"Feature\",\"properties\":{\"id\":\""+v[0]+"\",\"pid\":\""+v[1]+"\",\"deep\":\""+v[2]+"\",\"name\":\""+v[3]+"\",\"ext_path\":\""+v[3]+"\"}");
+			json.append(",\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[["+x0+","+y0+"],["+x1+","+y0+"],["+x1+","+y1+"],["+x0+","+y1+"],["+x0+","+y0+"]]]}}");
+			json.append(i<items.length-1?",\n":"\n");
+		}
+		json.append("]}\n");
+		File tmp=File.createTempFile("AreaCityQuery-test-", ".json");
+		try(FileOutputStream out=new FileOutputStream(tmp)) {
+			out.write(json.toString().getBytes("utf-8"));
+		}
+		
+		AreaCityQuery val=new AreaCityQuery();
+		val.Init_StoreInMemory(tmp.getAbsolutePath(), null, true);
+		if(val.GetInitInfo().hasError()) {
+			throw new Exception("测试实例初始化失败："+val.GetInitInfo().ErrMsg);
+		}
+		return val;
+	}
 	static void BaseTest(int instanceIdx) throws Exception {
 		AreaCityQuery instance=AreaCityQuery.Instances[instanceIdx];
 		int loop=100;
@@ -319,6 +413,313 @@ public class Test {
 			}
 		}
 		
+		System.out.println();
+		System.out.println("========== QueryPoint 内存分配 ==========");
+		{
+			//同一个线程反复查询，查询上下文会被复用，统计每次查询当前线程分配的内存字节数
+			com.sun.management.ThreadMXBean mx=(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+			long tid=Thread.currentThread().getId();
+			QueryResult res=new QueryResult();
+			int count=100000;
+			long bytes=0;
+			for(int n=0;n<2;n++) {//第一轮预热
+				long b0=mx.getThreadAllocatedBytes(tid);
+				for(int i=0;i<count;i++) {
+					res.Result.clear();//清除一下上次的结果，只保留统计
+					res=instance.QueryPoint(114.044346, 22.691963, null, res);
+				}
+				bytes=mx.getThreadAllocatedBytes(tid)-b0;
+			}
+			long perQuery=bytes/count;
+			System.out.println("查询"+count+"次共分配内存: "+bytes/1024+"KB，单次查询分配: "+perQuery+"字节");
+			if(instance.IsStoreInMemory() && (instance.SetInitStoreInMemoryUseObject || instance.SetQueryPointUseWkbLocator)) {
+				//内存中直接存的图形对象无需解析wkb；默认的Init_StoreInMemory直接在内存中的wkb上用射线法计算，查询上下文复用，也基本不分配内存
+				System.out.println(perQuery<=512?"OK":"单次查询分配的内存过多！");
+			} else {
+				System.out.println("（查询时需要读取wkb数据或解析成图形对象，会分配内存）");
+			}
+		}
+		
+		System.out.println();
+		System.out.println("========== QueryPoint wkb射线法 vs JTS ==========");
+		if(instance.IsStoreInMemory() && instance.SetInitStoreInMemoryUseObject) {
+			System.out.println("内存中直接存的图形对象，不会使用wkb射线法计算，不测试。");
+		} else {
+			ArrayList<double[]> points=new ArrayList<>();
+			Random rnd=new Random(123);//伪随机点
+			for(int i=0;i<10000;i++) {
+				points.add(new double[] { 98+rnd.nextDouble()*37, 18+rnd.nextDouble()*24 });
+			}
+			//边界上的点：网格划分图形的顶点、边的中点，最容易出现计算差异
+			int[] edgeCount=new int[] { 0 };
+			if(instance.GetInitInfo().HasWkbsFile) {
+				WKTReader reader=new WKTReader(AreaCityQuery.Factory);
+				instance.Debug_ReadGeometryGridSplitsWKT("wkt", null, new Func<String, Boolean>() {
+					@Override
+					public Boolean Exec(String prop) throws Exception {
+						return true;
+					}
+				}, new Func<String[], Boolean>() {
+					@Override
+					public Boolean Exec(String[] args) throws Exception {
+						Coordinate[] ps=reader.read(args[1]).getCoordinates();
+						int step=Math.max(1, ps.length/200);//每个图形最多取200个点
+						for(int i=step;i<ps.length;i+=step) {
+							points.add(new double[] { ps[i].x, ps[i].y });
+							points.add(new double[] { (ps[i].x+ps[i-1].x)/2, (ps[i].y+ps[i-1].y)/2 });
+							edgeCount[0]+=2;
+						}
+						return false;
+					}
+				});
+			}
+			int diff=0;
+			for(double[] p : points) {
+				instance.SetQueryPointUseWkbLocator=true;
+				QueryResult res1=instance.QueryPoint(p[0], p[1], null, null);
+				instance.SetQueryPointUseWkbLocator=false;
+				QueryResult res2=instance.QueryPoint(p[0], p[1], null, null);
+				res1.Result.sort(null);
+				res2.Result.sort(null);
+				if(!res1.Result.equals(res2.Result)) {
+					if(diff<3) {
+						System.out.println("不一致 "+p[0]+" "+p[1]+"\n  wkb射线法: "+res1.Result+"\n  JTS: "+res2.Result);
+					}
+					diff++;
+				}
+			}
+			instance.SetQueryPointUseWkbLocator=true;
+			System.out.println(points.size()+"个坐标点（含"+edgeCount[0]+"个边界上的点），结果不一致: "+diff+"个");
+			System.out.println(diff==0?"OK":"查询失败！");
+		}
+		
+		System.out.println();
+		System.out.println("========== Set_ResultIds 返回属性编号 ==========");
+		{
+			double[] lngs=new double[] { 114.044346, 117.286491, 116.055588, 130.283168, 118.161624, 81.869760, 0 };
+			double[] lats=new double[] { 22.691963, 30.450399, 39.709385, 47.281807, 39.656532, 41.812321, 0 };
+			boolean ok=true;
+			QueryResult resIds=new QueryResult();
+			resIds.Set_ResultIds=true;
+			for(int i=0;i<lngs.length;i++) {
+				resIds.ResultIdsCount=0;
+				instance.QueryPoint(lngs[i], lats[i], null, resIds);
+				QueryResult resStr=instance.QueryPoint(lngs[i], lats[i], null, null);
+				int[] ids=resIds.GetResultIds();
+				ok&=ids.length==resStr.Result.size();
+				for(int n=0;ok && n<ids.length;n++) {
+					String prop=instance.GetPropString(ids[n]);
+					ok&=prop.equals(resStr.Result.get(n));
+					ok&=prop.contains("\"id\":\""+instance.GetPropValue(ids[n], "id")+"\"");
+				}
+				if(i==0) {
+					System.out.println("ResultIds: "+Arrays.toString(ids)+"，第一条的name: "+(ids.length>0?instance.GetPropValue(ids[0], "name"):null)
+						+"，deep: "+(ids.length>0?instance.GetPropLong(ids[0], "deep", -1):null));
+				}
+			}
+			//批量查询
+			resIds=new QueryResult();
+			resIds.Set_ResultIds=true;
+			instance.QueryPoints(lngs, lats, null, resIds);
+			QueryResult resStr=instance.QueryPoints(lngs, lats, null, null);
+			ok&=resIds.ResultIdsCount==resStr.Result.size() && Arrays.equals(resIds.PointsResultIndex, resStr.PointsResultIndex);
+			for(int n=0;ok && n<resIds.ResultIdsCount;n++) {
+				ok&=instance.GetPropString(resIds.ResultIds[n]).equals(resStr.Result.get(n));
+			}
+			System.out.println("属性字典数量: "+instance.GetPropCount());
+			System.out.println(ok?"OK":"查询失败！");
+		}
+		
+		System.out.println();
+		System.out.println("========== Set_Partitions 按deep分区查询 ==========");
+		{
+			//三级嵌套的测试数据有多个分区，只查询区县分区，结果必须全是deep=2的，并且和查询所有分区+where筛选deep=2的结果一致
+			AreaCityQuery val=NewNestedTempInstance();
+			Func<String, Boolean> where=new Func<String, Boolean>() {
+				@Override
+				public Boolean Exec(String prop) throws Exception {
+					return "2".equals(AreaCityQuery.JsonValue(prop, "deep"));
+				}
+			};
+			boolean ok=true;
+			QueryResult res1=new QueryResult(), res2=new QueryResult();
+			res1.Set_Partitions=new String[] { "2" };
+			for(int x=0;x<50;x++) {
+				for(int y=0;y<50;y++) {//坐标不会落在边界上
+					double lng=99.55+x*0.1, lat=29.55+y*0.1;
+					int len1=res1.Result.size(), len2=res2.Result.size();
+					val.QueryPoint(lng, lat, null, res1);
+					val.QueryPoint(lng, lat, where, res2);
+					ArrayList<String> list1=new ArrayList<>(res1.Result.subList(len1, res1.Result.size()));
+					ArrayList<String> list2=new ArrayList<>(res2.Result.subList(len2, res2.Result.size()));
+					list1.sort(null);
+					list2.sort(null);
+					for(String prop : list1) {
+						ok&="2".equals(AreaCityQuery.JsonValue(prop, "deep"));
+					}
+					ok&=list1.equals(list2);
+				}
+			}
+			ok&=res1.Result.size()>0 && res1.EnvelopeHitCount<res2.EnvelopeHitCount;
+			System.out.println("三级嵌套测试数据，"+val.GetInitInfo().IndexPartitions);
+			System.out.println("只查询分区2：匹配"+res1.Result.size()+"条，EnvelopeHitCount: "+res1.EnvelopeHitCount+"；所有分区+where筛选deep=2：匹配"+res2.Result.size()+"条，EnvelopeHitCount: "+res2.EnvelopeHitCount);
+			System.out.println(ok?"OK":"查询失败！");
+			DeleteTempInstance(val);
+		}
+		
+		if(!"deep".equals(instance.SetIndexPartitionKey)) {
+			System.out.println("init时未按deep分区，不测试。");
+		} else {
+			System.out.println(instance.GetInitInfo().IndexPartitions);
+			//只查询一个分区，结果必须和where筛选deep的结果一致，并且初步筛选的数量更少
+			boolean ok=true;
+			for(int deep=0;deep<4;deep++) {
+				String deepStr=deep+"";
+				QueryResult res1=new QueryResult(), res2=new QueryResult();
+				res1.Set_Partitions=new String[] { deepStr };
+				Func<String, Boolean> where=new Func<String, Boolean>() {
+					@Override
+					public Boolean Exec(String prop) throws Exception {
+						return deepStr.equals(AreaCityQuery.JsonValue(prop, "deep"));
+					}
+				};
+				Random rnd=new Random(123);
+				for(int i=0;i<3000;i++) {
+					double lng=98+rnd.nextDouble()*37, lat=18+rnd.nextDouble()*24;
+					int len1=res1.Result.size(), len2=res2.Result.size();
+					instance.QueryPoint(lng, lat, null, res1);
+					instance.QueryPoint(lng, lat, where, res2);
+					ArrayList<String> list1=new ArrayList<>(res1.Result.subList(len1, res1.Result.size()));
+					ArrayList<String> list2=new ArrayList<>(res2.Result.subList(len2, res2.Result.size()));
+					list1.sort(null);
+					list2.sort(null);
+					ok&=list1.equals(list2);
+				}
+				System.out.println("deep="+deep+"：匹配"+res1.Result.size()+"条，分区查询EnvelopeHitCount: "+res1.EnvelopeHitCount+"，所有分区+where筛选EnvelopeHitCount: "+res2.EnvelopeHitCount);
+			}
+			System.out.println(ok?"OK":"查询失败！");
+		}
+		
+		System.out.println();
+		System.out.println("========== QueryPointHierarchy 按上下级关系查询 ==========");
+		{
+			//三级嵌套的测试数据，区县的上级市、省直接推导出来，结果必须和QueryPoint的一致；上下级关系不完整的区县要回退到几何查询
+			AreaCityQuery val=NewNestedTempInstance();
+			boolean ok=true;
+			QueryResult res1=new QueryResult(), res2=new QueryResult();
+			for(int x=0;x<50;x++) {
+				for(int y=0;y<50;y++) {//坐标不会落在边界上
+					double lng=99.55+x*0.1, lat=29.55+y*0.1;
+					int len1=res1.Result.size(), len2=res2.Result.size();
+					val.QueryPointHierarchy(lng, lat, null, res1);
+					val.QueryPoint(lng, lat, null, res2);
+					ArrayList<String> list1=new ArrayList<>(res1.Result.subList(len1, res1.Result.size()));
+					ArrayList<String> list2=new ArrayList<>(res2.Result.subList(len2, res2.Result.size()));
+					list1.sort(null);
+					list2.sort(null);
+					if(!list1.equals(list2)) {
+						if(ok) System.out.println("不一致 "+lng+" "+lat+"\n  QueryPointHierarchy: "+list1+"\n  QueryPoint: "+list2);
+						ok=false;
+					}
+				}
+			}
+			ok&=res1.HierarchyDerivedCount>0;
+			System.out.println("三级嵌套测试数据 QueryPointHierarchy：匹配"+res1.Result.size()+"条，推导出的上级: "+res1.HierarchyDerivedCount+"条；QueryPoint：匹配"+res2.Result.size()+"条");
+			
+			//西市南区：上级市、省都是推导出来的
+			QueryResult res=val.QueryPointHierarchy(101, 31, null, null);
+			ArrayList<String> ids=new ArrayList<>();
+			for(String prop : res.Result) ids.add(AreaCityQuery.JsonValue(prop, "id"));
+			ids.sort(null);
+			ok&=ids.toString().equals("[91, 9101, 910101]") && res.HierarchyDerivedCount==2;
+			System.out.println("(101, 31) "+ids+"，推导出的上级: "+res.HierarchyDerivedCount+"条");
+			
+			//无上级区：pid不存在，上级市、省通过几何查询得到
+			res=val.QueryPointHierarchy(103.5, 33, null, null);
+			ids=new ArrayList<>();
+			for(String prop : res.Result) ids.add(AreaCityQuery.JsonValue(prop, "id"));
+			ids.sort(null);
+			ok&=ids.toString().equals("[91, 9102, 919901]") && res.HierarchyDerivedCount==0;
+			System.out.println("(103.5, 33) "+ids+"，推导出的上级: "+res.HierarchyDerivedCount+"条");
+			
+			System.out.println(ok?"OK":"查询失败！");
+			DeleteTempInstance(val);
+		}
+		
+		{
+			//结果必须和QueryPoint的一致，精确计算的数量更少
+			boolean ok=true;
+			QueryResult res1=new QueryResult(), res2=new QueryResult();
+			Random rnd=new Random(123);
+			for(int i=0;i<3000;i++) {
+				double lng=98+rnd.nextDouble()*37, lat=18+rnd.nextDouble()*24;
+				int len1=res1.Result.size(), len2=res2.Result.size();
+				instance.QueryPointHierarchy(lng, lat, null, res1);
+				instance.QueryPoint(lng, lat, null, res2);
+				ArrayList<String> list1=new ArrayList<>(res1.Result.subList(len1, res1.Result.size()));
+				ArrayList<String> list2=new ArrayList<>(res2.Result.subList(len2, res2.Result.size()));
+				list1.sort(null);
+				list2.sort(null);
+				if(!list1.equals(list2)) {
+					if(ok) System.out.println("不一致 "+lng+" "+lat+"\n  QueryPointHierarchy: "+list1+"\n  QueryPoint: "+list2);
+					ok=false;
+				}
+			}
+			System.out.println("QueryPointHierarchy：匹配"+res1.Result.size()+"条，EnvelopeHitCount: "+res1.EnvelopeHitCount+"，推导出的上级: "+res1.HierarchyDerivedCount+"条");
+			System.out.println("QueryPoint：匹配"+res2.Result.size()+"条，EnvelopeHitCount: "+res2.EnvelopeHitCount);
+			System.out.println(ok?"OK":"查询失败！");
+		}
+		
+		System.out.println();
+		System.out.println("========== PropWhere 属性索引查找 ==========");
+		{
+			//收集一些查找条件：部分id、pid、deep、ext_path通配符
+			ArrayList<PropWhere> wheres=new ArrayList<>();
+			int propCount=instance.GetPropCount();
+			for(int i=0;i<propCount;i+=Math.max(1, propCount/50)) {
+				wheres.add(new PropWhere(instance.GetPropLong(i, "id", -1), -1, -1, null));
+				wheres.add(new PropWhere(-1, instance.GetPropLong(i, "pid", -1), -1, null));
+				String path=instance.GetPropValue(i, "ext_path");
+				if(path!=null) {
+					wheres.add(new PropWhere(-1, -1, -1, path));
+					wheres.add(new PropWhere(-1, -1, -1, path.substring(0, path.length()/2)+"*"));
+					wheres.add(new PropWhere(-1, -1, (int)instance.GetPropLong(i, "deep", -1), "*"+path.substring(path.length()/2)));
+				}
+			}
+			for(int i=0;i<4;i++) wheres.add(new PropWhere(-1, -1, i, null));
+			wheres.add(new PropWhere(-1, -1, -1, "*"));
+			wheres.add(new PropWhere(-1, -1, -1, "*市*"));
+			wheres.add(new PropWhere(-1, -1, -1, "*不存在的城市*"));
+			wheres.add(new PropWhere(-1, 0, 0, "*省"));
+			
+			//和遍历所有属性字符串的结果对比
+			boolean ok=true;
+			long indexTime=0, scanTime=0;
+			for(int n=0;n<2;n++) {//第一轮作为预热
+				indexTime=0; scanTime=0;
+				for(PropWhere where : wheres) {
+					long t1=System.nanoTime();
+					QueryResult res1=instance.ReadWKT_FromWkbsFile(null, null, where, null);
+					long t2=System.nanoTime();
+					QueryResult res2=instance.ReadWKT_FromWkbsFile(null, null, new Func<String, Boolean>() {
+						@Override
+						public Boolean Exec(String prop) throws Exception {
+							return where.Exec(prop);//逐条解析属性json
+						}
+					}, null);
+					long t3=System.nanoTime();
+					indexTime+=t2-t1;
+					scanTime+=t3-t2;
+					if(!res1.Result.equals(res2.Result)) {
+						System.out.println("不一致 id:"+where.Id+" pid:"+where.Pid+" deep:"+where.Deep+" ext_path:"+where.ExtPath+"，索引: "+res1.Result.size()+"条，遍历: "+res2.Result.size()+"条");
+						ok=false;
+					}
+				}
+			}
+			System.out.println(wheres.size()+"个查找条件，属性索引查找总耗时: "+indexTime/1000000.0+"ms，遍历所有属性总耗时: "+scanTime/1000000.0+"ms");
+			System.out.println(ok?"OK":"查询失败！");
+		}
+		
 		System.out.println();
 		System.out.println("========== QueryPointWithTolerance ==========");
 		{
@@ -336,6 +737,66 @@ public class Test {
 				System.out.println(ResultHas(res, "象山县\"") && res2.Result.size()==0?"OK":"查询失败！");
 			}
 		}
+		
+		System.out.println();
+		System.out.println("========== QueryPointWithTolerance 最近距离查找 vs 遍历计算所有数据 ==========");
+		{
+			//海岸线外的坐标点，遍历计算所有数据的距离，每一级取最近的，结果必须和索引最近距离查找的一致
+			boolean ok=true;
+			int pointCount=0, resultCount=0;
+			long findTime=0, scanTime=0;
+			QueryResult findRes=new QueryResult();
+			DecimalFormat df=new DecimalFormat("0.00");
+			Random rnd=new Random(123);
+			for(int i=0;i<300 && pointCount<30;i++) {
+				double lng=118+rnd.nextDouble()*7, lat=24+rnd.nextDouble()*8;
+				if(instance.QueryPoint(lng, lat, null, null).Result.size()>0) continue;
+				pointCount++;
+				
+				for(int tolerance : new int[] { -1, 2500, 50000 }) {
+					long t1=System.nanoTime();
+					int len=findRes.Result.size();
+					instance.QueryPointWithTolerance(lng, lat, null, findRes, tolerance);
+					findTime+=System.nanoTime()-t1;
+					HashMap<String, String> finds=new HashMap<>();
+					for(int n=len;n<findRes.Result.size();n++) {
+						String prop=findRes.Result.get(n);
+						String deep=AreaCityQuery.JsonValue(prop, "deep");
+						finds.put(deep==null?"":deep, AreaCityQuery.JsonValue(prop, "PointDistance"));
+					}
+					resultCount+=finds.size();
+					
+					long t2=System.nanoTime();
+					HashMap<String, Double> scans=new HashMap<>();
+					Point point=AreaCityQuery.Factory.createPoint(new Coordinate(lng, lat));
+					instance.QueryGeometryProcess(AreaCityQuery.CreateRect(-180, -90, 180, 90), null, null, new Func<Object[], Boolean>() {
+						@Override
+						public Boolean Exec(Object[] args) throws Exception {
+							Coordinate[] ps=DistanceOp.nearestPoints((Geometry)args[1], point);
+							double dist=AreaCityQuery.Distance(ps[0].x, ps[0].y, ps[1].x, ps[1].y);
+							if(tolerance>0 && dist>tolerance) return false;
+							String deep=AreaCityQuery.JsonValue((String)args[0], "deep");
+							if(deep==null) deep="";
+							Double exists=scans.get(deep);
+							if(exists==null || exists>dist) scans.put(deep, dist);
+							return false;
+						}
+					});
+					scanTime+=System.nanoTime()-t2;
+					
+					boolean same=finds.size()==scans.size();
+					for(String deep : scans.keySet()) {
+						same&=df.format(scans.get(deep)).equals(finds.get(deep));
+					}
+					if(!same) {
+						if(ok) System.out.println("不一致 "+lng+" "+lat+" tolerance="+tolerance+"\n  最近距离查找: "+finds+"\n  遍历计算: "+scans);
+						ok=false;
+					}
+				}
+			}
+			System.out.println(pointCount+"个坐标点，"+resultCount+"条结果，最近距离查找总耗时: "+findTime/1000000+"ms（EnvelopeHitCount: "+findRes.EnvelopeHitCount+"），遍历计算所有数据总耗时: "+scanTime/1000000+"ms");
+			System.out.println(ok?"OK":"查询失败！");
+		}
 
 		System.out.println();
 		System.out.println("========== QueryGeometry ==========");
@@ -399,6 +860,122 @@ public class Test {
 						&& ResultHas(res, "台北市 中山区\"") ?"OK":"查询失败！");
 			}
 		}
+		
+		System.out.println();
+		System.out.println("========== Reload 热更新数据：重新加载期间并发查询 ==========");
+		{
+			//在单独的实例上测试，优先从已生成的wkbs文件（复制的临时文件）重新加载，比较快
+			AreaCityQuery val=NewTempInstance(AreaCityQuery.Instances[instanceIdx]);
+			String dataFile=val.GetInitInfo().FilePath_Data;
+			String expect=val.QueryPoint(114.044346, 22.691963, null, null).Result.toString();
+			
+			boolean[] stop=new boolean[] {false};
+			int[] counts=new int[] {0, 0};//查询次数，失败次数
+			Thread[] threads=new Thread[2];
+			for(int i=0;i<threads.length;i++) {
+				threads[i]=new Thread(() -> {
+					while(!stop[0]) {
+						boolean ok;
+						try {
+							ok=expect.equals(val.QueryPoint(114.044346, 22.691963, null, null).Result.toString());
+						} catch(Exception e) {
+							ok=false;
+						}
+						synchronized (counts) {
+							counts[0]++;
+							if(!ok) counts[1]++;
+						}
+					}
+				});
+				threads[i].start();
+			}
+			long t1=System.nanoTime();
+			String errMsg="";
+			try {
+				if(val.IsStoreInWkbsFile()) {
+					val.Reload_StoreInWkbsFile(dataFile, null);
+				} else {
+					val.Reload_StoreInMemory(dataFile, null);
+				}
+			} catch(Exception e) {
+				errMsg=e.getMessage();
+			}
+			long time=(System.nanoTime()-t1)/1000000;
+			Thread.sleep(100);
+			stop[0]=true;
+			for(Thread t : threads) t.join();
+			
+			boolean ok=errMsg.length()==0 && counts[0]>0 && counts[1]==0 && val.GetInitStatus()==2
+					&& expect.equals(val.QueryPoint(114.044346, 22.691963, null, null).Result.toString());
+			System.out.println("从"+dataFile+"重新加载耗时"+time+"ms，期间并发查询"+counts[0]+"次，失败"+counts[1]+"次"+errMsg);
+			System.out.println(ok?"OK":"查询失败！");
+			DeleteTempInstance(val);
+		}
+		
+		System.out.println();
+		System.out.println("========== UpdateFeature 增量更新：新增、修改、删除一个边界，然后整理数据 ==========");
+		{
+			//在单独的实例上测试，会修改wkbs文件（复制的临时文件），不影响后续测试用到的数据
+			AreaCityQuery val=NewTempInstance(AreaCityQuery.Instances[instanceIdx]);
+			String prop="{\"id\":999999999,\"pid\":-1,\"deep\":9,\"name\":\"增量更新测试\"}";
+			String feature1="{\"type\":\"Feature\",\"properties\":"+prop+",\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[[170,-50],[171,-50],[171,-49],[170,-49],[170,-50]]]}}";
+			String feature2=feature1.replace("170,", "160,").replace("171,", "161,");
+			String expect=val.QueryPoint(114.044346, 22.691963, null, null).Result.toString();
+			
+			QueryUpdateInfo info1=val.UpdateFeature(feature1);
+			boolean ok1=ResultHas(val.QueryPoint(170.5, -49.5, null, null), "增量更新测试");
+			QueryUpdateInfo info2=val.UpdateFeature(feature2);
+			boolean ok2=val.QueryPoint(170.5, -49.5, null, null).Result.size()==0
+					&& ResultHas(val.QueryPoint(160.5, -49.5, null, null), "增量更新测试")
+					&& val.FindPropIds(new PropWhere(999999999, -1, -1, null)).length==1;
+			QueryUpdateInfo info3=val.RemoveFeature(999999999);
+			boolean ok3=val.QueryPoint(160.5, -49.5, null, null).Result.size()==0;
+			
+			long t1=System.nanoTime();
+			val.Compact();
+			long time=(System.nanoTime()-t1)/1000000;
+			boolean ok4=expect.equals(val.QueryPoint(114.044346, 22.691963, null, null).Result.toString());
+			
+			System.out.println("新增："+info1);
+			System.out.println("修改："+info2);
+			System.out.println("删除："+info3);
+			System.out.println("Compact整理耗时"+time+"ms");
+			System.out.println(ok1 && ok2 && ok3 && ok4?"OK":"查询失败！");
+			DeleteTempInstance(val);
+		}
+		
+		System.out.println();
+		System.out.println("========== InitAsync 异步初始化：两个新实例同时初始化，初始化完成前的查询等待数据就绪 ==========");
+		{
+			QueryInitInfo info=instance.GetInitInfo();
+			String dataFile=info.FilePath_SaveWkbs.length()>0?info.FilePath_SaveWkbs:info.FilePath_Data;
+			String expect=instance.QueryPoint(114.044346, 22.691963, null, null).Result.toString();
+			
+			ExecutorService pool=Executors.newFixedThreadPool(2);
+			AreaCityQuery[] instances=new AreaCityQuery[] { new AreaCityQuery(), new AreaCityQuery() };
+			ArrayList<CompletableFuture<QueryInitInfo>> futures=new ArrayList<>();
+			long t1=System.nanoTime();
+			for(AreaCityQuery val : instances) {
+				val.SetQueryWaitInitTimeout=60000;
+				futures.add(val.InitAsync_StoreInMemory(dataFile, null, true, pool));
+			}
+			long timeSubmit=(System.nanoTime()-t1)/1000000;
+			String progress=instances[0].GetInitProgress().toString();
+			
+			boolean ok=true;
+			for(AreaCityQuery val : instances) {//不用等init完成，查询会等待数据就绪
+				ok=ok && expect.equals(val.QueryPoint(114.044346, 22.691963, null, null).Result.toString());
+			}
+			for(CompletableFuture<QueryInitInfo> future : futures) {
+				ok=ok && !future.get().hasError();
+			}
+			long time=(System.nanoTime()-t1)/1000000;
+			pool.shutdown();
+			
+			System.out.println("调用耗时"+timeSubmit+"ms，初始化中的进度："+progress);
+			System.out.println("两个实例全部初始化完成耗时"+time+"ms，完成后的进度："+instances[0].GetInitProgress());
+			System.out.println(ok?"OK":"查询失败！");
+		}
 		System.out.println();
 	}
 	
@@ -433,6 +1010,377 @@ public class Test {
 			System.out.println(res.toString());
 			System.out.println();
 		}
+		
+		System.out.println("========== QueryPoints：10万个伪随机点批量查询 ==========");
+		System.out.println("坐标点为无序的10万个伪随机点，对比逐个调用QueryPoint和批量调用QueryPoints（按希尔伯特曲线排序后查询）");
+		int count=100000;
+		double[] lngs=new double[count], lats=new double[count];
+		Random rnd=new Random(123);
+		for(int i=0;i<count;i++) {
+			lngs[i]=98+rnd.nextDouble()*37;
+			lats[i]=18+rnd.nextDouble()*24;
+		}
+		QueryResult res1=null, res2=null;
+		long loopTime=Long.MAX_VALUE, batchTime=Long.MAX_VALUE;
+		for(int loop=0;loop<5;loop++) {//前面的作为预热，取最快的一次
+			long t1=System.nanoTime();
+			res1=new QueryResult();
+			for(int i=0;i<count;i++) {
+				res1=instance.QueryPoint(lngs[i], lats[i], null, res1);
+			}
+			long t2=System.nanoTime();
+			res2=instance.QueryPoints(lngs, lats, null, null);
+			long t3=System.nanoTime();
+			if(loop>0) {
+				loopTime=Math.min(loopTime, t2-t1);
+				batchTime=Math.min(batchTime, t3-t2);
+			}
+		}
+		//结果必须和逐个查询的完全一致
+		boolean ok=res1.Result.equals(res2.Result) && res2.PointsResultIndex[count]==res2.Result.size();
+		for(int i=0,n=0;ok && i<count;i++) {
+			ok=res2.PointsResultIndex[i]==n;
+			n+=res2.GetPointResult(i).size();
+		}
+		ArrayList<String> result=res2.Result;
+		res1.Result=null;
+		res2.Result=null;
+		System.out.println("QueryPoint逐个查询："+res1.toString());
+		System.out.println("QueryPoints批量查询："+res2.toString());
+		//批量查询的吞吐量必须比逐个查询的高
+		System.out.println("最快一次耗时：逐个查询"+loopTime/1000000+"ms，批量查询"+batchTime/1000000+"ms，吞吐量提升"+String.format("%.0f", (loopTime*100.0/batchTime)-100)+"%");
+		ok=ok && batchTime<loopTime;
+		System.out.println(ok?"OK":"查询失败！");
+		System.out.println();
+		
+		System.out.println("========== QueryPointsParallel：10万个伪随机点多线程并行查询 ==========");
+		int cpus=Runtime.getRuntime().availableProcessors();
+		System.out.println("CPU核心数："+cpus+"，不同线程数时的耗时，结果必须和QueryPoints的完全一致");
+		double time1=0;
+		for(int threads=1;threads>0;threads=threads==cpus?0:Math.min(cpus, threads*2)) {
+			QueryResult res3=null;
+			long t1=0;
+			for(int loop=0;loop<3;loop++) {//前面的作为预热
+				t1=System.nanoTime();
+				res3=instance.QueryPointsParallel(lngs, lats, null, null, threads);
+			}
+			double time=(System.nanoTime()-t1)/1000000.0;
+			if(threads==1) time1=time;
+			ok=result.equals(res3.Result) && Arrays.equals(res2.PointsResultIndex, res3.PointsResultIndex)
+					&& res3.QueryCount==count && res3.ExactHitCount==res2.ExactHitCount;
+			System.out.println("  "+threads+"个线程：耗时"+(long)time+"ms，"+(long)(count/time*1000)+"次/秒，加速比"+String.format("%.2f", time1/time)+"，"+(ok?"OK":"查询失败！"));
+		}
+		System.out.println();
+	}
+	static void BenchmarkTest(int instanceIdx) throws Exception {
+		AreaCityQuery instance=AreaCityQuery.Instances[instanceIdx];
+		QueryInitInfo info=instance.GetInitInfo();
+		System.out.println("========== 性能基准测试 ==========");
+		System.out.println("---------- 图形数据存储：HashMap vs 基本类型数组 ----------");
+		{
+			//模拟每次EnvelopeHit时取出位置和属性的开销，老的存储方式每条数据一个HashMap，位置为"行号:parent:sub"字符串，每次命中都要拆分解析
+			int count=Math.max(1, info.PolygonCount), hits=2000000;
+			String[] propPtr=new String[] { "{}" };
+			ArrayList<HashMap<String,Object>> maps=new ArrayList<>();
+			int[] lineNos=new int[count], fullPoss=new int[count], subPoss=new int[count], propIds=new int[count];
+			for(int i=0;i<count;i++) {
+				HashMap<String,Object> store=new HashMap<>();
+				store.put("prop", propPtr);
+				store.put("wkbPos", (i/10)+":"+(i/10*11)+":"+(i+i/10+1));
+				maps.add(store);
+				lineNos[i]=i/10; fullPoss[i]=i/10*11; subPoss[i]=i+i/10+1;
+			}
+			int[] idxs=new int[hits];
+			Random rnd=new Random(123);
+			for(int i=0;i<hits;i++) idxs[i]=rnd.nextInt(count);
+			
+			for(int loop=0;loop<3;loop++) {//前面的作为预热
+				long sum=0, t1=System.nanoTime();
+				for(int i=0;i<hits;i++) {
+					HashMap<String,Object> store=maps.get(idxs[i]);
+					String str=(String)store.get("wkbPos");
+					int p0=str.indexOf(':'), p1=str.indexOf(':', p0+1);
+					sum+=Integer.parseInt(str.substring(0, p0))+Integer.parseInt(str.substring(p0+1, p1))+Integer.parseInt(str.substring(p1+1));
+					sum+=((String[])store.get("prop"))[0].length();
+				}
+				long t2=System.nanoTime();
+				for(int i=0;i<hits;i++) {
+					int idx=idxs[i];
+					sum+=lineNos[idx]+fullPoss[idx]+subPoss[idx];
+					sum+=propPtr[propIds[idx]].length();
+				}
+				long t3=System.nanoTime();
+				if(loop==2) {
+					System.out.println(count+"条数据，随机命中"+hits+"次（"+sum%10+"）");
+					System.out.println("  HashMap+位置字符串解析: "+(t2-t1)/hits+"ns/次命中");
+					System.out.println("  基本类型数组: "+(t3-t2)/hits+"ns/次命中");
+				}
+			}
+			System.out.println(info.StoreMemory==-1?"":"当前实例图形数据内存: "+info.StoreMemory/1024+"KB，比HashMap存储节省: "+info.StoreMemorySaved/1024+"KB");
+		}
+		
+		System.out.println();
+		System.out.println("---------- QueryPoint：wkb射线法 vs JTS解析图形 ----------");
+		if(instance.IsStoreInMemory() && instance.SetInitStoreInMemoryUseObject) {
+			System.out.println("内存中直接存的图形对象，不会使用wkb射线法计算，不测试。");
+		} else {
+			double[] lngs=new double[10000], lats=new double[10000];
+			Random rnd=new Random(123);
+			for(int i=0;i<lngs.length;i++) {
+				lngs[i]=98+rnd.nextDouble()*37;
+				lats[i]=18+rnd.nextDouble()*24;
+			}
+			for(int loop=0;loop<3;loop++) {//第一轮作为预热
+				for(int n=0;n<2;n++) {
+					instance.SetQueryPointUseWkbLocator=n==0;
+					QueryResult res=new QueryResult();
+					for(int i=0;i<lngs.length;i++) {
+						res.Result.clear();
+						res=instance.QueryPoint(lngs[i], lats[i], null, res);
+					}
+					if(loop==2) {
+						res.Result=null;
+						System.out.println((n==0?"wkb射线法":"JTS解析图形")+"："+res.toString().replace("\n", "\n  "));
+					}
+				}
+			}
+			instance.SetQueryPointUseWkbLocator=true;
+		}
+		
+		System.out.println();
+		System.out.println("---------- QueryPoints结果：属性json字符串+解析id vs 属性编号 ----------");
+		{
+			int count=100000;
+			double[] lngs=new double[count], lats=new double[count];
+			Random rnd=new Random(123);
+			for(int i=0;i<count;i++) {
+				lngs[i]=98+rnd.nextDouble()*37;
+				lats[i]=18+rnd.nextDouble()*24;
+			}
+			Pattern exp=Pattern.compile("\"id[\\s\":]+(\\d+)");
+			for(int loop=0;loop<3;loop++) {//前面的作为预热
+				long sum=0, t1=System.nanoTime();
+				QueryResult res=instance.QueryPoints(lngs, lats, null, null);
+				for(String prop : res.Result) {//调用方需要从json中提取出id
+					Matcher m=exp.matcher(prop);
+					if(m.find()) sum+=Long.parseLong(m.group(1));
+				}
+				long t2=System.nanoTime();
+				res=new QueryResult();
+				res.Set_ResultIds=true;
+				instance.QueryPoints(lngs, lats, null, res);
+				for(int i=0;i<res.ResultIdsCount;i++) {//属性编号直接存到int列里面，用到时才取属性
+					sum-=res.ResultIds[i]>=0?0:1;
+				}
+				long t3=System.nanoTime();
+				if(loop==2) {
+					System.out.println(count+"个坐标点，匹配"+res.ResultIdsCount+"条（"+sum%10+"）");
+					System.out.println("  属性json字符串+正则解析id: "+(t2-t1)/1000000+"ms");
+					System.out.println("  属性编号ResultIds: "+(t3-t2)/1000000+"ms");
+				}
+			}
+		}
+		
+		System.out.println();
+		System.out.println("---------- 网格拆分：超大图形 单线程 vs ForkJoinPool并行 ----------");
+		{
+			//init时网格拆分最慢的图形（坐标点数一般达不到SetGridSplitForkPoints，临时调小让它也并行切），和一个合成的超大图形（默认值就会并行切）
+			ArrayList<String> names=new ArrayList<>();
+			ArrayList<Geometry> geoms=new ArrayList<>();
+			ArrayList<Integer> forkPoints=new ArrayList<>();
+			if(info.GridSplitMaxProp.length()==0 || !info.HasWkbsFile) {
+				System.out.println("需要用geojson文件初始化并且保存了wkbs文件，才能取到init时网格拆分最慢的图形，只测试合成的超大图形。");
+			} else {
+				String maxProp=info.GridSplitMaxProp;
+				String[] wkt=new String[] { "" };
+				instance.ReadWKT_FromWkbsFile(null, null, (prop)->{
+					return prop.equals(maxProp);
+				}, (arr)->{
+					wkt[0]=arr[1];
+					return false;
+				});
+				names.add("init时最慢的图形，init时耗时"+info.DurationN_GridSplitMax/1000000+"ms："+maxProp);
+				geoms.add(new WKTReader(AreaCityQuery.Factory).read(wkt[0]));
+				forkPoints.add(256);
+			}
+			int num=60000;
+			Coordinate[] coords=new Coordinate[num+1];
+			for(int i=0;i<num;i++) {//边界弯弯曲曲的圆
+				double a=2*Math.PI*i/num, r=5+0.5*Math.sin(a*37)+0.2*Math.sin(a*301);
+				coords[i]=new Coordinate(110+r*Math.cos(a), 30+r*Math.sin(a));
+			}
+			coords[num]=coords[0];
+			names.add("合成的超大图形");
+			geoms.add(AreaCityQuery.Factory.createPolygon(coords));
+			forkPoints.add(AreaCityQuery.SetGridSplitForkPoints);
+			
+			ForkJoinPool pool=ForkJoinPool.commonPool();
+			int forkPoints0=AreaCityQuery.SetGridSplitForkPoints;
+			WKBWriter wkbWriter=new WKBWriter();
+			try {
+				for(int n=0;n<geoms.size();n++) {
+					Geometry geom=geoms.get(n);
+					AreaCityQuery.SetGridSplitForkPoints=forkPoints.get(n);
+					for(int loop=0;loop<3;loop++) {//第一轮作为预热
+						long t1=System.nanoTime();
+						Geometry grid1=AreaCityQuery.Debug_GeometryGridSplit(geom, instance.SetGridFactor, null, instance.SetGridSplitUseRectClip);
+						long t2=System.nanoTime();
+						Geometry grid2=AreaCityQuery.Debug_GeometryGridSplit(geom, instance.SetGridFactor, pool, instance.SetGridSplitUseRectClip);
+						long t3=System.nanoTime();
+						if(loop==2) {
+							//并行拆分的结果必须和单线程的完全一致，包括Polygon的顺序
+							boolean same=Arrays.equals(wkbWriter.write(grid1), wkbWriter.write(grid2));
+							System.out.println(names.get(n));
+							System.out.println(geom.getNumPoints()+"个坐标点，拆分成"+grid1.getNumGeometries()+"个Polygon，达到"+AreaCityQuery.SetGridSplitForkPoints+"个坐标点的Polygon会并行切，并行结果"+(same?"和单线程的wkb完全一致":"和单线程的wkb不一致！"));
+							System.out.println("  单线程: "+(t2-t1)/1000000+"ms");
+							System.out.println("  ForkJoinPool并行（"+pool.getParallelism()+"线程）: "+(t3-t2)/1000000+"ms");
+							System.out.println(same?"OK":"查询失败！");
+						}
+					}
+				}
+			} finally {
+				AreaCityQuery.SetGridSplitForkPoints=forkPoints0;
+			}
+		}
+		
+		System.out.println();
+		System.out.println("---------- 网格拆分：矩形裁剪 vs Polygon.intersection ----------");
+		if(!info.HasWkbsFile) {
+			System.out.println("需要保存了wkbs文件才能读取图形，不测试。");
+		} else {
+			ArrayList<Geometry> geoms=new ArrayList<>();
+			WKTReader reader=new WKTReader(AreaCityQuery.Factory);
+			instance.ReadWKT_FromWkbsFile(null, null, new PropWhere(-1, -1, 0, null), (arr)->{
+				try {
+					geoms.add(reader.read(arr[1]));
+				} catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+				return false;
+			});
+			
+			//按网格拆分的方式对半切开，每一步都和Polygon.intersection的结果核对
+			ArrayDeque<Polygon> queue=new ArrayDeque<>();
+			for(Geometry geom : geoms) {
+				for(int i=0;i<geom.getNumGeometries();i++) {
+					queue.add((Polygon)geom.getGeometryN(i));
+				}
+			}
+			int okCount=0, errCount=0, nullCount=0;
+			long t_Clip=0, t_Overlay=0;
+			while(!queue.isEmpty() && okCount+errCount+nullCount<5000) {
+				Polygon polygon=queue.poll();
+				Envelope env=polygon.getEnvelopeInternal();
+				double midX=(env.getMinX()+env.getMaxX())/2, midY=(env.getMinY()+env.getMaxY())/2;
+				Envelope[] cells=env.getWidth()>env.getHeight()*2
+						?new Envelope[] { new Envelope(env.getMinX(), midX, env.getMinY(), env.getMaxY()), new Envelope(midX, env.getMaxX(), env.getMinY(), env.getMaxY()) }
+						:new Envelope[] { new Envelope(env.getMinX(), env.getMaxX(), env.getMinY(), midY), new Envelope(env.getMinX(), env.getMaxX(), midY, env.getMaxY()) };
+				for(Envelope cell : cells) {
+					long t1=System.nanoTime();
+					Geometry clip=AreaCityQuery.Debug_RectangleClip(polygon, cell);
+					long t2=System.nanoTime();
+					Geometry overlay=polygon.intersection(AreaCityQuery.Factory.toGeometry(cell));
+					long t3=System.nanoTime();
+					if(clip==null) {//退化情况，网格拆分时会改用Polygon.intersection
+						nullCount++;
+						continue;
+					}
+					t_Clip+=t2-t1;
+					t_Overlay+=t3-t2;
+					double area=overlay.getArea(), diff;
+					try {
+						diff=clip.symDifference(overlay).getArea();
+					} catch(Exception e) {
+						diff=area;
+					}
+					if(clip.isValid() && Math.abs(clip.getArea()-area)<=area*1e-6 && diff<=area*1e-6) {
+						okCount++;
+					} else {
+						errCount++;
+						if(errCount<=3) System.out.println("  不一致："+polygon.getNumPoints()+"个坐标点，"+cell+"，面积"+clip.getArea()+" vs "+area+"，差异"+diff);
+					}
+					for(int i=0;i<clip.getNumGeometries();i++) {
+						if(clip.getGeometryN(i).getNumPoints()>=instance.SetGridFactor*2) {
+							queue.add((Polygon)clip.getGeometryN(i));
+						}
+					}
+				}
+			}
+			System.out.println(geoms.size()+"个deep=0的图形，核对"+(okCount+errCount)+"次裁剪，一致"+okCount+"次，"+(errCount>0?"不一致"+errCount+"次！":"全部一致")+"，退化情况"+nullCount+"次（改用Polygon.intersection）");
+			System.out.println("  矩形裁剪: "+t_Clip/1000000+"ms");
+			System.out.println("  Polygon.intersection: "+t_Overlay/1000000+"ms");
+			
+			for(int loop=0;loop<2;loop++) {//第一轮作为预热
+				long t1=System.nanoTime();
+				for(Geometry geom : geoms) {
+					AreaCityQuery.Debug_GeometryGridSplit(geom, instance.SetGridFactor, null, true);
+				}
+				long t2=System.nanoTime();
+				for(Geometry geom : geoms) {
+					AreaCityQuery.Debug_GeometryGridSplit(geom, instance.SetGridFactor, null, false);
+				}
+				long t3=System.nanoTime();
+				if(loop==1) {
+					System.out.println("整个图形网格拆分（单线程）：");
+					System.out.println("  矩形裁剪: "+(t2-t1)/1000000+"ms");
+					System.out.println("  Polygon.intersection: "+(t3-t2)/1000000+"ms");
+				}
+			}
+		}
+		
+		System.out.println();
+		System.out.println("---------- 外接矩形索引：STRtree vs HPRtree vs PackedHilbert ----------");
+		{
+			//用同一份数据分别生成三种索引，对比生成耗时、内存占用、查询性能，并核对查询结果
+			String dataFile=info.FilePath_SaveWkbs.length()>0?info.FilePath_SaveWkbs:info.FilePath_Data;
+			String[] types=new String[] { AreaCityQuery.EnvelopeIndex_STRtree, AreaCityQuery.EnvelopeIndex_HPRtree, AreaCityQuery.EnvelopeIndex_PackedHilbert };
+			int count=100000, countNearest=10000;
+			double[] lngs=new double[count], lats=new double[count];
+			Random rnd=new Random(123);
+			for(int i=0;i<count;i++) {
+				lngs[i]=98+rnd.nextDouble()*37;
+				lats[i]=18+rnd.nextDouble()*24;
+			}
+			String expect=null;
+			for(String type : types) {
+				AreaCityQuery val=new AreaCityQuery();
+				val.SetEnvelopeIndexType=type;
+				val.SetGridFactor=instance.SetGridFactor;
+				val.SetIndexPartitionKey=instance.SetIndexPartitionKey;
+				val.Init_StoreInMemory(dataFile, null, true);
+				QueryInitInfo valInfo=val.GetInitInfo();
+				if(valInfo.hasError()) {
+					System.out.println(type+"初始化失败："+valInfo.ErrMsg);
+					continue;
+				}
+				for(int loop=0;loop<3;loop++) {//前面的作为预热
+					QueryResult res=new QueryResult();
+					res.Set_ResultIds=true;
+					long t1=System.nanoTime();
+					for(int i=0;i<count;i++) {
+						val.QueryPoint(lngs[i], lats[i], null, res);
+					}
+					long t2=System.nanoTime();
+					for(int i=0;i<countNearest;i++) {
+						val.QueryPointWithTolerance(lngs[i], lats[i], null, null, 2500);
+					}
+					long t3=System.nanoTime();
+					long sum=0;//结果顺序和索引的遍历顺序有关，只核对数量和属性编号之和
+					for(int i=0;i<res.ResultIdsCount;i++) {
+						sum+=res.ResultIds[i];
+					}
+					String result=res.ResultIdsCount+":"+sum;
+					if(expect==null) expect=result;
+					if(loop==2) {
+						System.out.println(type+"：生成耗时"+valInfo.DurationN_StageIndex/1000000+"ms，内存"+valInfo.EnvelopeIndexMemory/1024+"KB，结果"+(result.equals(expect)?"一致":"不一致！"));
+						System.out.println("  QueryPoint "+count+"次: "+(t2-t1)/1000000+"ms，外接矩形初步筛选: "+res.DurationN_EnvelopeHitQuery/count+"ns/次");
+						System.out.println("  QueryPointWithTolerance "+countNearest+"次: "+(t3-t2)/1000000+"ms");
+					}
+				}
+				val.ResetInitStatus();
+			}
+		}
+		System.out.println();
 	}
 	static void ThreadRun(ArrayList<Integer> idxs) throws Exception {
 		System.out.println("========== 多线程性能测试 ==========");
@@ -717,12 +1665,7 @@ public class Test {
 			@Override
 			public Object Exec(ExtPathExpInArgs args) throws Exception {
 				int[] count=new int[] { 0 };
-				Current.ReadWKT_FromWkbsFile("", null, new Func<String, Boolean>() {
-					@Override
-					public Boolean Exec(String prop) throws Exception {
-						return ExtPathMatch(prop, args.extPath_exp);
-					}
-				}, getWktReadFn("ReadWKT", args, count));
+				Current.ReadWKT_FromWkbsFile("", null, new PropWhere(-1, -1, -1, args.extPath_inputTxt), getWktReadFn("ReadWKT", args, count));
 				if(count[0] == 0) {
 					System.out.println("未找到“"+args.extPath_inputTxt+"”匹配的属性！");
 				} else {
@@ -743,12 +1686,7 @@ public class Test {
 			@Override
 			public Object Exec(ExtPathExpInArgs args) throws Exception {
 				int[] count=new int[] { 0 };
-				Current.Debug_ReadGeometryGridSplitsWKT("", null, new Func<String, Boolean>() {
-					@Override
-					public Boolean Exec(String prop) throws Exception {
-						return ExtPathMatch(prop, args.extPath_exp);
-					}
-				}, getWktReadFn("GirdWKT", args, count));
+				Current.Debug_ReadGeometryGridSplitsWKT("", null, new PropWhere(-1, -1, -1, args.extPath_inputTxt), getWktReadFn("GirdWKT", args, count));
 				if(count[0] == 0) {
 					System.out.println("未找到“"+args.extPath_inputTxt+"”匹配的边界！");
 				} else {
@@ -786,15 +1724,7 @@ public class Test {
 			}
 		};
 	}
-	static boolean ExtPathMatch(String prop, String exp) {
-		int i0=prop.indexOf("ext_path");
-		if(i0==-1)return false;
-		int i1=prop.indexOf(",", i0);
-		if(i1==-1)i1=prop.length();
-		return prop.substring(i0+9, i1).contains(exp);
-	}
 	static class ExtPathExpInArgs{
-		String extPath_exp;
 		String extPath_inputTxt;
 		String outFilePath;
 		FileOutputStream outFile;
@@ -838,24 +1768,6 @@ public class Test {
 			args.outFilePath=outFilePath;
 			args.outFile=outFile;
 			
-			
-			String exp=ins[0];
-			if(exp.equals("*")) {
-				exp="";
-			} else {
-				if(exp.startsWith("*")) {
-					exp=exp.substring(1);
-				}else {
-					exp="\""+exp;
-				}
-				if(exp.endsWith("*")) {
-					exp=exp.substring(0, exp.length()-1);
-				}else {
-					exp=exp+"\"";
-				}
-			}
-			args.extPath_exp=exp;
-			
 			fn.Exec(args);
 			
 			if(outFile!=null)outFile.close();
@@ -966,6 +1878,7 @@ public class Test {
 				System.out.println("3. 测试：基础功能测试");
 				System.out.println("4. 测试：1万个伪随机点测试");
 				System.out.println("5. 测试：多线程性能测试");
+				System.out.println("B. 测试：性能基准测试");
 				System.out.println(HR);
 				System.out.println("6. 查询: QueryPoint 查找坐标点所在省市区乡镇");
 				System.out.println("A. 查询: QueryGeometry 查找和图形相交的省市区乡镇");
@@ -1010,6 +1923,11 @@ public class Test {
 							if(idxs.size()>1) System.out.println("【测试实例"+i+"】 Instances["+i+"]");
 							LargeRndPointTest(i);
 						}
+					} else if(isInit && inTxt.equals("B")) {
+						for(int i : idxs) {
+							if(idxs.size()>1) System.out.println("【测试实例"+i+"】 Instances["+i+"]");
+							BenchmarkTest(i);
+						}
 					} else if(isInit && inTxt.equals("5")) {
 						ThreadRun(idxs);
 						waitAnyKey=false;
@@ -19,6 +19,7 @@ import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.io.WKTReader;
 
 import com.github.xiangyuecn.areacity.query.AreaCityQuery.Func;
+import com.github.xiangyuecn.areacity.query.AreaCityQuery.PropWhere;
 import com.github.xiangyuecn.areacity.query.AreaCityQuery.QueryInitInfo;
 import com.github.xiangyuecn.areacity.query.AreaCityQuery.QueryResult;
 //jre rt.jar com.sun，Eclips不允许引用：Access restriction: The type 'HttpServer' is not API
@@ -158,58 +159,14 @@ public class Test_HttpApiServer {
 		AreaCityQuery instance=GetInstance(query, responseErr);
 		if(instance==null) return;
 		
-		String exp=extPath;
-		if(extPath!=null && extPath.length()>0) {
-			if(exp.equals("*")) {
-				exp="";
-			} else {
-				if(exp.startsWith("*")) {
-					exp=exp.substring(1);
-				}else {
-					exp="\""+exp;
-				}
-				if(exp.endsWith("*")) {
-					exp=exp.substring(0, exp.length()-1);
-				}else {
-					exp=exp+"\"";
-				}
-			}
-		}
-		String exp_=exp;
-		String extPath_=extPath;
-		
 		int[] readCount=new int[] {0};
 		boolean[] isWktSizeErr=new boolean[] {false};
 		int[] wktSize=new int[] {0};
-		Func<String, Boolean> where=new Func<String, Boolean>() {
+		//从属性索引中直接查找，无需遍历所有属性
+		PropWhere where=new PropWhere(id, pid, (int)deep, extPath);
+		where.Where=new Func<String, Boolean>() {
 			@Override
 			public Boolean Exec(String prop) throws Exception {
-				String prop2=(","+prop.substring(1, prop.length()-1)+",").replace("\"", "").replace(" ", ""); //不解析json，简单处理
-				if(id!=-1) {
-					if(!prop2.contains(",id:"+id+",") && !prop2.contains(",unique_id:"+id+",")) {
-						return false;
-					}
-				}
-				if(pid!=-1) {
-					if(!prop2.contains(",pid:"+pid+",")) {
-						return false;
-					}
-				}
-				if(deep!=-1) {
-					if(!prop2.contains(",deep:"+deep+",")) {
-						return false;
-					}
-				}
-				if(extPath_.length()>0) {
-					int i0=prop.indexOf("ext_path");
-					if(i0==-1)return false;
-					int i1=prop.indexOf(",", i0);
-					if(i1==-1)i1=prop.length();
-					if(!prop.substring(i0+9, i1).contains(exp_)) {
-						return false;
-					}
-				}
-				
 				readCount[0]++;
 				if(isWktSizeErr[0]) {
 					return false;